@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.fi.dc.irlab.metarecsys;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import es.udc.fi.dc.irlab.metarecsys.structures.SegmentOutputStore;
+
+/**
+ * The Class ExtractRun. It lists the fused runs stored in segment files and
+ * extracts them in TREC format.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public class ExtractRun {
+
+    /** The Constant STORE_OPTION. */
+    private static final String STORE_OPTION = "out";
+
+    /** The Constant NAME_OPTION. */
+    private static final String NAME_OPTION = "name";
+
+    /** The Constant DEST_OPTION. */
+    private static final String DEST_OPTION = "dest";
+
+    /** The Constant LIST_OPTION. */
+    private static final String LIST_OPTION = "list";
+
+    /**
+     * Gets the cmd options.
+     *
+     * @return the cmd options
+     */
+    private static Options getCmdOptions() {
+        final Options options = new Options();
+
+        options.addOption("h", "help", false, "show help");
+
+        final Option store = Option.builder(STORE_OPTION).argName("folder").hasArg()
+                .desc("path to the output folder with the segment files").longOpt("output")
+                .required().build();
+        options.addOption(store);
+
+        final Option name = Option.builder(NAME_OPTION).argName("run_name").hasArg()
+                .desc("name of a run to extract (e.g., borda-none-n2-a-b-fold1.txt)")
+                .longOpt("name").build();
+        options.addOption(name);
+
+        final Option dest = Option.builder(DEST_OPTION).argName("folder").hasArg()
+                .desc("folder where the runs are extracted with their names (standard "
+                        + "output by default)")
+                .longOpt("destination").build();
+        options.addOption(dest);
+
+        options.addOption(LIST_OPTION, "list", false, "list the names of the runs");
+
+        return options;
+    }
+
+    /**
+     * The main method.
+     *
+     * @param args
+     *            the arguments
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public static void main(final String args[]) throws IOException {
+
+        final Options options = getCmdOptions();
+        final CommandLineParser parser = new DefaultParser();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (final ParseException exp) {
+            Logger.getGlobal().severe(exp.getMessage());
+            cmd = null;
+        }
+
+        if (cmd == null || cmd.hasOption("h")
+                || !cmd.hasOption(NAME_OPTION) && !cmd.hasOption(LIST_OPTION)) {
+            final HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("extractrun", options);
+            System.exit(0);
+        }
+
+        final Path folder = Paths.get(cmd.getOptionValue(STORE_OPTION));
+        final Path dest = cmd.hasOption(DEST_OPTION)
+                ? Paths.get(cmd.getOptionValue(DEST_OPTION)) : null;
+
+        try (SegmentOutputStore store = SegmentOutputStore.open(folder)) {
+
+            if (cmd.hasOption(LIST_OPTION)) {
+                store.names().forEach(System.out::println);
+            }
+
+            if (cmd.hasOption(NAME_OPTION)) {
+                if (dest != null) {
+                    Files.createDirectories(dest);
+                }
+                for (final String name : cmd.getOptionValues(NAME_OPTION)) {
+                    if (dest == null) {
+                        store.extract(name, System.out);
+                        continue;
+                    }
+                    try (OutputStream out = new BufferedOutputStream(
+                            Files.newOutputStream(dest.resolve(name)))) {
+                        store.extract(name, out);
+                    }
+                }
+            }
+
+        }
+
+    }
+
+}
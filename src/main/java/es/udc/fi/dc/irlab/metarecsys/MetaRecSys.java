@@ -17,10 +17,13 @@
 package es.udc.fi.dc.irlab.metarecsys;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -33,9 +36,21 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import es.udc.fi.dc.irlab.metarecsys.algorithms.Comb;
+import es.udc.fi.dc.irlab.metarecsys.algorithms.CombinationFusion;
+import es.udc.fi.dc.irlab.metarecsys.algorithms.FusionScheduler;
 import es.udc.fi.dc.irlab.metarecsys.algorithms.RankAggregation;
+import es.udc.fi.dc.irlab.metarecsys.normalisation.NoneNormalisation;
 import es.udc.fi.dc.irlab.metarecsys.normalisation.NormalisationAlgorithm;
+import es.udc.fi.dc.irlab.metarecsys.structures.AsyncFileWriter;
+import es.udc.fi.dc.irlab.metarecsys.structures.FoldLoader;
+import es.udc.fi.dc.irlab.metarecsys.structures.FolderOutputStore;
+import es.udc.fi.dc.irlab.metarecsys.structures.OutputStore;
+import es.udc.fi.dc.irlab.metarecsys.structures.RunCache;
 import es.udc.fi.dc.irlab.metarecsys.structures.RunFile;
+import es.udc.fi.dc.irlab.metarecsys.structures.RunSorter;
+import es.udc.fi.dc.irlab.metarecsys.structures.SegmentOutputStore;
+import es.udc.fi.dc.irlab.metarecsys.structures.Storage;
 
 /**
  * The Class Metasearch.
@@ -47,10 +62,6 @@ public class MetaRecSys {
     static {
         // Logging format
         System.setProperty("java.util.logging.SimpleFormatter.format", "%5$s%6$s%n");
-
-        // Use old MergeSort algorithm instead of Java 7+ TimSort algorithm
-        // because it supports non-transitive Comparators.
-        System.setProperty("java.util.Arrays.useLegacyMergeSort", "true");
     }
 
     /** The Constant OUT_OPTION. */
@@ -68,6 +79,42 @@ public class MetaRecSys {
     /** The Constant MAX_OPTION. */
     private static final String MAX_OPTION = "max";
 
+    /** The Constant CACHE_OPTION. */
+    private static final String CACHE_OPTION = "cache";
+
+    /** The Constant STORAGE_OPTION. */
+    private static final String STORAGE_OPTION = "storage";
+
+    /** The Constant LATTICE_OPTION. */
+    private static final String LATTICE_OPTION = "lattice";
+
+    /** The Constant SIZE_OPTION. */
+    private static final String SIZE_OPTION = "k";
+
+    /** The Constant THREADS_OPTION. */
+    private static final String THREADS_OPTION = "threads";
+
+    /** The Constant QUEUE_OPTION. */
+    private static final String QUEUE_OPTION = "queue";
+
+    /** The Constant SEGMENTS_OPTION. */
+    private static final String SEGMENTS_OPTION = "segments";
+
+    /** The Constant STREAM_OPTION. */
+    private static final String STREAM_OPTION = "stream";
+
+    /** The Constant SORT_OPTION. */
+    private static final String SORT_OPTION = "sort";
+
+    /** The Constant BUDGET_OPTION. */
+    private static final String BUDGET_OPTION = "budget";
+
+    /** The Constant RUN_CACHE_OPTION. */
+    private static final String RUN_CACHE_OPTION = "run_cache";
+
+    /** The Constant THRESHOLD_OPTION. */
+    private static final String THRESHOLD_OPTION = "threshold";
+
     /** The Constant DEFAULT_MAX_RANK. */
     private static final String DEFAULT_MAX_RANK = "100";
 
@@ -104,6 +151,72 @@ public class MetaRecSys {
                 .longOpt("max_rank").type(Integer.class).build();
         options.addOption(max);
 
+        final Option cache = Option.builder(CACHE_OPTION).argName("folder").hasArg()
+                .desc("path to the folder where binary copies of the parsed runs are cached")
+                .longOpt("cache").build();
+        options.addOption(cache);
+
+        final Option storage = Option.builder(STORAGE_OPTION).argName("storage_name").hasArg()
+                .desc("where the runs are stored (heap, offheap; heap by default)")
+                .longOpt("storage").build();
+        options.addOption(storage);
+
+        final Option lattice = Option.builder(LATTICE_OPTION).argName("cache_mb").hasArg()
+                .desc("derive the fusion of each combination from its subsets keeping up to "
+                        + "cache_mb MB of partial fusions per fold (borda and comb* only)")
+                .longOpt("lattice").build();
+        options.addOption(lattice);
+
+        final Option size = Option.builder(SIZE_OPTION).argName("range").hasArg()
+                .desc("number of runs of the combinations: a number, a range (e.g., 2-4) "
+                        + "or a minimum (e.g., 3-); all by default")
+                .longOpt("combination_size").build();
+        options.addOption(size);
+
+        final Option threads = Option.builder(THREADS_OPTION).argName("num").hasArg()
+                .desc("number of fusion threads (number of processors by default)")
+                .longOpt("threads").type(Integer.class).build();
+        options.addOption(threads);
+
+        final Option queue = Option.builder(QUEUE_OPTION).argName("num").hasArg()
+                .desc("maximum number of fusion tasks waiting for a thread (twice the number "
+                        + "of threads by default)")
+                .longOpt("queue").type(Integer.class).build();
+        options.addOption(queue);
+
+        final Option segments = Option.builder(SEGMENTS_OPTION).argName("size_mb").hasArg()
+                .desc("append the fused runs to segment files of about size_mb MB indexed in "
+                        + "the output folder instead of writing a file per run")
+                .longOpt("segments").type(Integer.class).build();
+        options.addOption(segments);
+
+        options.addOption(STREAM_OPTION, "stream", false,
+                "fuse the runs user by user while reading them instead of loading them "
+                        + "(the runs must be sorted by user; -cache and -lattice are ignored)");
+
+        final Option sort = Option.builder(SORT_OPTION).argName("folder").hasArg()
+                .desc("sort the runs by user into the given folder (with an index of the "
+                        + "users of each run) and read them from there")
+                .longOpt("sort").build();
+        options.addOption(sort);
+
+        final Option budget = Option.builder(BUDGET_OPTION).argName("mb").hasArg()
+                .desc("read and fuse the folds one at a time reading the next folds while "
+                        + "the current one is fused if their runs fit in about mb MB")
+                .longOpt("memory_budget").type(Integer.class).build();
+        options.addOption(budget);
+
+        final Option runCache = Option.builder(RUN_CACHE_OPTION).argName("mb").hasArg()
+                .desc("keep the runs read and normalised in a cache of about mb MB while the "
+                        + "folds are fused one at a time (-stream and -budget take precedence)")
+                .longOpt("run_cache").type(Integer.class).build();
+        options.addOption(runCache);
+
+        options.addOption(THRESHOLD_OPTION, "threshold", false,
+                "rank the users with the threshold algorithm with combSum and combMNZ when the "
+                        + "scores of the runs decrease with the rank (-lattice and -stream "
+                        + "take precedence)");
+
         return options;
     }
 
@@ -126,6 +239,80 @@ public class MetaRecSys {
         }
     }
 
+    /**
+     * Parses a range of combination sizes: a number, a range (min-max) or a
+     * minimum (min-).
+     *
+     * @param value
+     *            the value of the option (null for all sizes)
+     * @return the minimum and the maximum size
+     */
+    private static int[] parseSizeRange(final String value) {
+
+        if (value == null) {
+            return new int[] { 2, Integer.MAX_VALUE };
+        }
+
+        final int dash = value.indexOf('-');
+        final int[] range = new int[2];
+        try {
+            if (dash < 0) {
+                range[0] = Integer.parseInt(value.trim());
+                range[1] = range[0];
+            } else {
+                range[0] = Integer.parseInt(value.substring(0, dash).trim());
+                final String max = value.substring(dash + 1).trim();
+                range[1] = max.isEmpty() ? Integer.MAX_VALUE : Integer.parseInt(max);
+            }
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException(value + " is not a valid combination size", e);
+        }
+
+        if (range[0] < 2 || range[1] < range[0]) {
+            throw new IllegalArgumentException(value + " is not a valid combination size");
+        }
+
+        return range;
+
+    }
+
+    /**
+     * Fuse all the combinations of the runs of a fold.
+     *
+     * @param scheduler
+     *            the scheduler of the fusion tasks
+     * @param fold
+     *            the fold
+     * @param runs
+     *            the normalised runs of the fold
+     * @param latticeAlgs
+     *            the algorithms which walk the lattice of combinations
+     * @param sharedAlgs
+     *            the algorithms which share a pass per combination
+     * @param store
+     *            the store of the outputs
+     * @param sizes
+     *            the minimum and the maximum number of runs of a combination
+     * @param latticeCache
+     *            the size in bytes of the cache of the lattice
+     */
+    private static void fuseFold(final FusionScheduler scheduler, final int fold,
+            final List<RunFile> runs, final List<RankAggregation> latticeAlgs,
+            final List<RankAggregation> sharedAlgs, final OutputStore store, final int[] sizes,
+            final long latticeCache) {
+
+        if (!latticeAlgs.isEmpty()) {
+            final CombinationFusion fusion = new CombinationFusion(latticeAlgs);
+            fusion.computeCombinationLattice(scheduler, fold, runs, store, sizes[0], sizes[1],
+                    latticeCache);
+        }
+        if (!sharedAlgs.isEmpty()) {
+            final CombinationFusion fusion = new CombinationFusion(sharedAlgs);
+            fusion.computeAllCombinations(scheduler, fold, runs, store, sizes[0], sizes[1]);
+        }
+
+    }
+
     /**
      * The main method.
      *
@@ -148,34 +335,167 @@ public class MetaRecSys {
             System.exit(0);
         }
 
-        final Path runsFolder = Paths.get(cmd.getOptionValue(RUN_OPTION));
+        final Path inputFolder = Paths.get(cmd.getOptionValue(RUN_OPTION));
         final Path outputFolder = Paths.get(cmd.getOptionValue(OUT_OPTION));
         final int maxRank = Integer.parseInt(cmd.getOptionValue(MAX_OPTION, DEFAULT_MAX_RANK));
+        final Path cacheFolder = cmd.hasOption(CACHE_OPTION)
+                ? Paths.get(cmd.getOptionValue(CACHE_OPTION)) : null;
+
+        final Storage storage = Storage.build(cmd.getOptionValue(STORAGE_OPTION, "heap"));
+        final long latticeCache = cmd.hasOption(LATTICE_OPTION)
+                ? Long.parseLong(cmd.getOptionValue(LATTICE_OPTION)) << 20 : -1;
+        final int[] sizes = parseSizeRange(cmd.getOptionValue(SIZE_OPTION));
+        final int numThreads = cmd.hasOption(THREADS_OPTION)
+                ? Integer.parseInt(cmd.getOptionValue(THREADS_OPTION))
+                : Runtime.getRuntime().availableProcessors();
+        final int queueCapacity = cmd.hasOption(QUEUE_OPTION)
+                ? Integer.parseInt(cmd.getOptionValue(QUEUE_OPTION)) : 2 * numThreads;
+        final long segmentSize = cmd.hasOption(SEGMENTS_OPTION)
+                ? Long.parseLong(cmd.getOptionValue(SEGMENTS_OPTION)) << 20 : -1;
+        final boolean stream = cmd.hasOption(STREAM_OPTION);
+        final long budget = cmd.hasOption(BUDGET_OPTION)
+                ? Long.parseLong(cmd.getOptionValue(BUDGET_OPTION)) << 20 : -1;
+        final long runCacheSize = cmd.hasOption(RUN_CACHE_OPTION)
+                ? Long.parseLong(cmd.getOptionValue(RUN_CACHE_OPTION)) << 20 : -1;
+
+        if (cacheFolder != null) {
+            Files.createDirectories(cacheFolder);
+        }
+
+        // Sort the runs by user if requested
+        final Path runsFolder;
+        if (cmd.hasOption(SORT_OPTION)) {
+            runsFolder = Paths.get(cmd.getOptionValue(SORT_OPTION));
+            new RunSorter(runsFolder, RunSorter.DEFAULT_CHUNK_SIZE).sortRuns(inputFolder,
+                    runsFolder);
+        } else {
+            runsFolder = inputFolder;
+        }
 
         // Build metarecsys algorithms
         final List<RankAggregation> algs = Arrays.stream(cmd.getOptionValues(ALG_OPTION))
                 .map(name -> RankAggregation.build(name, maxRank)).collect(Collectors.toList());
-
-        // For each normalisation algorithm
-        for (final String norm : cmd.getOptionValues(NORM_OPTION)) {
-
-            // Read runs by fold
-            final ConcurrentMap<Integer, List<RunFile>> runsByFold = RunFile.readRuns(runsFolder,
-                    maxRank, NormalisationAlgorithm.build(norm));
-
-            // For each metarecsys algorithm
-            for (final RankAggregation alg : algs) {
-
-                // For each fold
-                runsByFold.forEach((fold, runs) -> {
-                    alg.computeAllCombinations(fold, runs, outputFolder);
-                });
+        final List<Comb> thresholdAlgs = algs.stream()
+                .filter(alg -> cmd.hasOption(THRESHOLD_OPTION) && alg instanceof Comb
+                        && ((Comb) alg).isMonotone())
+                .map(alg -> (Comb) alg).collect(Collectors.toList());
+        thresholdAlgs.forEach(alg -> alg.setThreshold(true));
+
+        final List<NormalisationAlgorithm> norms = Arrays
+                .stream(cmd.getOptionValues(NORM_OPTION)).map(NormalisationAlgorithm::build)
+                .collect(Collectors.toList());
+
+        // The additive algorithms walk the lattice, the rest share a pass
+        final List<RankAggregation> latticeAlgs = algs.stream()
+                .filter(alg -> latticeCache >= 0 && alg.isAdditive()).collect(Collectors.toList());
+        final List<RankAggregation> sharedAlgs = algs.stream()
+                .filter(alg -> !latticeAlgs.contains(alg)).collect(Collectors.toList());
+
+        final RunCache cache = runCacheSize >= 0
+                ? new RunCache(maxRank, cacheFolder, storage, runCacheSize) : null;
+
+        // The outputs are closed after the scheduler has finished the tasks
+        try (AsyncFileWriter writer = new AsyncFileWriter(4 * numThreads);
+                SegmentOutputStore segments = segmentSize >= 0
+                        ? new SegmentOutputStore(outputFolder, segmentSize) : null;
+                FusionScheduler scheduler = new FusionScheduler(numThreads, queueCapacity)) {
+
+            final OutputStore store = segments != null ? segments
+                    : new FolderOutputStore(outputFolder, writer);
+
+            if (stream) {
+
+                // Read the runs of each combination while they are fused
+                final CombinationFusion fusion = new CombinationFusion(algs);
+                final SortedMap<Integer, List<Path>> runPathsByFold = RunFile
+                        .listRuns(runsFolder);
+                for (final NormalisationAlgorithm norm : norms) {
+                    runPathsByFold.forEach((fold, runPaths) -> {
+                        fusion.computeStreamingCombinations(scheduler, fold, runPaths, maxRank,
+                                norm, store, sizes[0], sizes[1]);
+                    });
+                }
+
+            } else if (budget >= 0) {
+
+                // A fold keeps a view of its runs and a lattice per normalisation
+                final int numViews = (int) norms.stream()
+                        .filter(norm -> !(norm instanceof NoneNormalisation)).count();
+                final long overhead = latticeAlgs.isEmpty() ? 0 : norms.size() * latticeCache;
+
+                // Read the raw runs of the next folds while a fold is fused
+                try (FoldLoader loader = new FoldLoader(RunFile.listRuns(runsFolder), maxRank,
+                        new NoneNormalisation(), cacheFolder, storage, budget, numViews,
+                        overhead)) {
+
+                    for (List<RunFile> next = loader.next(); next != null; next = loader
+                            .next()) {
+
+                        final List<RunFile> rawRuns = next;
+                        final int fold = rawRuns.get(0).getFold();
+
+                        // The fold is released once all its tasks have finished
+                        try (FusionScheduler group = scheduler
+                                .newGroup(() -> loader.release(fold))) {
+                            for (final NormalisationAlgorithm norm : norms) {
+                                final List<RunFile> runs = rawRuns.parallelStream()
+                                        .map(run -> run.normalise(norm))
+                                        .collect(Collectors.toList());
+                                fuseFold(group, fold, runs, latticeAlgs, sharedAlgs, store,
+                                        sizes, latticeCache);
+                            }
+                        }
+
+                    }
+
+                }
+
+            } else if (cache != null) {
+
+                // Acquire the runs of each fold and normalisation from the cache
+                final SortedMap<Integer, List<Path>> runPathsByFold = RunFile
+                        .listRuns(runsFolder);
+                for (final Map.Entry<Integer, List<Path>> entry : runPathsByFold.entrySet()) {
+                    for (final NormalisationAlgorithm norm : norms) {
+                        final List<RunFile> runs = cache.acquire(entry.getValue(), norm);
+                        // The runs are released once all their tasks have finished
+                        try (FusionScheduler group = scheduler
+                                .newGroup(() -> cache.release(runs))) {
+                            fuseFold(group, entry.getKey(), runs, latticeAlgs, sharedAlgs,
+                                    store, sizes, latticeCache);
+                        }
+                    }
+                }
+
+            } else {
+
+                // Read the raw runs by fold once
+                final ConcurrentMap<Integer, List<RunFile>> rawRuns = RunFile.readRuns(
+                        runsFolder, maxRank, new NoneNormalisation(), cacheFolder, storage);
+
+                // For each normalisation algorithm
+                for (final NormalisationAlgorithm norm : norms) {
+
+                    // Normalise the runs by fold
+                    final ConcurrentMap<Integer, List<RunFile>> runsByFold = RunFile
+                            .normalise(rawRuns, norm);
+
+                    // For each fold
+                    runsByFold.forEach((fold, runs) -> {
+                        fuseFold(scheduler, fold, runs, latticeAlgs, sharedAlgs, store, sizes,
+                                latticeCache);
+                    });
+
+                }
 
             }
 
         }
 
-        RankAggregation.finishPool();
+        if (cache != null) {
+            Logger.getGlobal().info(cache.toString());
+        }
+        thresholdAlgs.forEach(alg -> Logger.getGlobal().info(alg.describeThreshold()));
         Logger.getGlobal().info("Finished!");
 
     }
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.algorithms;
+
+import java.util.Arrays;
+
+import es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings;
+import es.udc.fi.dc.irlab.metarecsys.structures.RunFile;
+
+/**
+ * The Class AccumulatorTable. It stores the accumulated rankings of every user
+ * in a combination of runs: for each user, its candidate items in order of
+ * appearance with the number of runs that rank them, the sum of their ranks,
+ * the number of runs that score them and the sum of their scores. These are
+ * the values accumulated by {@link UserRankings}.
+ *
+ * The table of a combination is obtained by adding the rankings of a run to
+ * the table of the combination without that run. When runs are added in
+ * order of name, the accumulated values are exactly those computed by
+ * {@link UserRankings} from scratch.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+final class AccumulatorTable {
+
+    /** The number of bytes of each user. */
+    private static final int USER_BYTES = 8;
+
+    /** The number of bytes of each entry. */
+    private static final int ENTRY_BYTES = 28;
+
+    /** The sorted user keys. */
+    private final int[] userKeys;
+
+    /** The offsets of the entries of each user. */
+    private final int[] offsets;
+
+    /** The item key of each entry. */
+    private final int[] itemKeys;
+
+    /** The number of runs that rank each entry. */
+    private final int[] hits;
+
+    /** The sum of the ranks of each entry. */
+    private final long[] rankSums;
+
+    /** The number of runs that score each entry. */
+    private final int[] counts;
+
+    /** The sum of the scores of each entry. */
+    private final double[] sums;
+
+    /**
+     * Instantiates a new accumulator table.
+     *
+     * @param userKeys
+     *            the sorted user keys
+     * @param offsets
+     *            the offsets of the entries of each user
+     * @param itemKeys
+     *            the item keys
+     * @param hits
+     *            the number of runs that rank each entry
+     * @param rankSums
+     *            the sum of the ranks of each entry
+     * @param counts
+     *            the number of runs that score each entry
+     * @param sums
+     *            the sum of the scores of each entry
+     */
+    private AccumulatorTable(final int[] userKeys, final int[] offsets, final int[] itemKeys,
+            final int[] hits, final long[] rankSums, final int[] counts, final double[] sums) {
+        this.userKeys = userKeys;
+        this.offsets = offsets;
+        this.itemKeys = itemKeys;
+        this.hits = hits;
+        this.rankSums = rankSums;
+        this.counts = counts;
+        this.sums = sums;
+    }
+
+    /**
+     * Estimate the number of bytes taken by a table.
+     *
+     * @param numUsers
+     *            the number of users
+     * @param numEntries
+     *            the number of entries
+     * @return the number of bytes
+     */
+    static long estimateSize(final long numUsers, final long numEntries) {
+        return numUsers * USER_BYTES + numEntries * ENTRY_BYTES;
+    }
+
+    /**
+     * Build the table of a combination from the table of the combination
+     * without the given run.
+     *
+     * @param parent
+     *            the table without the run (null for an empty combination)
+     * @param run
+     *            the run to add
+     * @param positions
+     *            a scratch array with one element per item key of the fold
+     * @return the table with the run
+     */
+    static AccumulatorTable extend(final AccumulatorTable parent, final RunFile run,
+            final int[] positions) {
+
+        final CompactRankings rankings = run.getRankings();
+        final int parentUsers = parent == null ? 0 : parent.numUsers();
+        final int parentEntries = parent == null ? 0 : parent.numEntries();
+        final int runUsers = rankings.numUsers();
+
+        final int[] userKeys = new int[parentUsers + runUsers];
+        final int[] offsets = new int[parentUsers + runUsers + 1];
+        final int capacity = parentEntries + rankings.numEntries();
+        final int[] itemKeys = new int[capacity];
+        final int[] hits = new int[capacity];
+        final long[] rankSums = new long[capacity];
+        final int[] counts = new int[capacity];
+        final double[] sums = new double[capacity];
+
+        // Merge the users of the parent and the run, both sorted by key
+        int numUsers = 0;
+        int size = 0;
+        int p = 0;
+        int u = 0;
+        while (p < parentUsers || u < runUsers) {
+
+            final int parentKey = p < parentUsers ? parent.userKeys[p] : Integer.MAX_VALUE;
+            final int runKey = u < runUsers ? run.getUserKey(u) : Integer.MAX_VALUE;
+            final int userKey = Math.min(parentKey, runKey);
+            final int start = size;
+
+            if (parentKey == userKey) {
+                final int from = parent.offsets[p];
+                final int length = parent.offsets[p + 1] - from;
+                System.arraycopy(parent.itemKeys, from, itemKeys, size, length);
+                System.arraycopy(parent.hits, from, hits, size, length);
+                System.arraycopy(parent.rankSums, from, rankSums, size, length);
+                System.arraycopy(parent.counts, from, counts, size, length);
+                System.arraycopy(parent.sums, from, sums, size, length);
+                for (int e = size; e < size + length; e++) {
+                    positions[itemKeys[e]] = e;
+                }
+                size += length;
+                p++;
+            }
+
+            if (runKey == userKey) {
+                for (int pos = rankings.getStart(u); pos < rankings.getEnd(u); pos++) {
+                    final int itemKey = run.getItemKey(pos);
+                    int e = positions[itemKey];
+                    if (e < start || e >= size || itemKeys[e] != itemKey) {
+                        e = size++;
+                        positions[itemKey] = e;
+                        itemKeys[e] = itemKey;
+                    }
+                    hits[e]++;
+                    rankSums[e] += rankings.getRank(pos);
+                    final double score = rankings.getScore(pos);
+                    if (!Double.isNaN(score)) {
+                        counts[e]++;
+                        sums[e] += score;
+                    }
+                }
+                u++;
+            }
+
+            userKeys[numUsers++] = userKey;
+            offsets[numUsers] = size;
+
+        }
+
+        return new AccumulatorTable(Arrays.copyOf(userKeys, numUsers),
+                Arrays.copyOf(offsets, numUsers + 1), Arrays.copyOf(itemKeys, size),
+                Arrays.copyOf(hits, size), Arrays.copyOf(rankSums, size),
+                Arrays.copyOf(counts, size), Arrays.copyOf(sums, size));
+
+    }
+
+    /**
+     * Gets the number of users.
+     *
+     * @return the number of users
+     */
+    int numUsers() {
+        return userKeys.length;
+    }
+
+    /**
+     * Gets the number of entries.
+     *
+     * @return the number of entries
+     */
+    int numEntries() {
+        return itemKeys.length;
+    }
+
+    /**
+     * Estimate the number of bytes taken by the table.
+     *
+     * @return the number of bytes
+     */
+    long size() {
+        return estimateSize(numUsers(), numEntries());
+    }
+
+    /**
+     * Gets the key of the given user.
+     *
+     * @param u
+     *            the user index
+     * @return the user key
+     */
+    int getUserKey(final int u) {
+        return userKeys[u];
+    }
+
+    /**
+     * Gets the position of the first entry of the given user.
+     *
+     * @param u
+     *            the user index
+     * @return the start position
+     */
+    int getStart(final int u) {
+        return offsets[u];
+    }
+
+    /**
+     * Gets the position after the last entry of the given user.
+     *
+     * @param u
+     *            the user index
+     * @return the end position
+     */
+    int getEnd(final int u) {
+        return offsets[u + 1];
+    }
+
+    /**
+     * Gets the item key of the given entry.
+     *
+     * @param e
+     *            the entry
+     * @return the item key
+     */
+    int getItemKey(final int e) {
+        return itemKeys[e];
+    }
+
+    /**
+     * Gets the number of runs that rank the given entry.
+     *
+     * @param e
+     *            the entry
+     * @return the number of runs
+     */
+    int getHits(final int e) {
+        return hits[e];
+    }
+
+    /**
+     * Gets the sum of the ranks of the given entry.
+     *
+     * @param e
+     *            the entry
+     * @return the sum of the ranks
+     */
+    long getRankSum(final int e) {
+        return rankSums[e];
+    }
+
+    /**
+     * Gets the number of runs that score the given entry.
+     *
+     * @param e
+     *            the entry
+     * @return the number of runs
+     */
+    int getCount(final int e) {
+        return counts[e];
+    }
+
+    /**
+     * Gets the sum of the scores of the given entry.
+     *
+     * @param e
+     *            the entry
+     * @return the sum of the scores
+     */
+    double getSum(final int e) {
+        return sums[e];
+    }
+
+}
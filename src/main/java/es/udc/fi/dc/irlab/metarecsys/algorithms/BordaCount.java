@@ -15,13 +15,7 @@
  */
 package es.udc.fi.dc.irlab.metarecsys.algorithms;
 
-import java.util.Set;
-import java.util.TreeMap;
-import java.util.function.LongConsumer;
-
-import es.udc.fi.dc.irlab.metarecsys.structures.MutableDouble;
-import es.udc.fi.dc.irlab.metarecsys.structures.RunFile;
-import net.openhft.koloboke.collect.set.LongSet;
+import es.udc.fi.dc.irlab.metarecsys.structures.TopKCollector;
 
 /**
  * The Class BordaCount.
@@ -49,24 +43,32 @@ public final class BordaCount extends RankAggregation {
     /*
      * (non-Javadoc)
      *
-     * @see es.udc.fi.dc.irlab.metarecsys.algorithms.MetasearchAlgorithm#
-     * fuseRunsAndPrint(int, java.util.Set,
-     * net.openhft.koloboke.collect.set.LongSet,
-     * net.openhft.koloboke.collect.set.LongSet, java.nio.file.Path)
+     * @see es.udc.fi.dc.irlab.metarecsys.algorithms.RankAggregation#isAdditive()
+     */
+    @Override
+    public final boolean isAdditive() {
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.algorithms.RankAggregation#
+     * computeUserRanking(es.udc.fi.dc.irlab.metarecsys.algorithms.UserRankings,
+     * es.udc.fi.dc.irlab.metarecsys.structures.TopKCollector)
      */
     @Override
-    protected void computeUserRanking(final Set<RunFile> runs, final long userID,
-            final LongSet candidateItems, final TreeMap<Double, LongSet> ranking) {
+    protected void computeUserRanking(final UserRankings user,
+            final TopKCollector ranking) {
 
-        final int c = maxRank - 1;
+        final long c = maxRank - 1;
 
-        candidateItems.forEach((LongConsumer) itemID -> {
-            final MutableDouble score = new MutableDouble(0.0);
-            runs.forEach(run -> {
-                score.add(c - run.getRank(userID, itemID, c));
-            });
-            saveScore(ranking, itemID, score.get());
-        });
+        // Runs which do not rank an item contribute c - c = 0
+        for (int i = 0; i < user.numCandidates(); i++) {
+            final int itemKey = user.getCandidate(i);
+            final long score = user.getHits(itemKey) * c - user.getRankSum(itemKey);
+            saveScore(ranking, user.getItemID(itemKey), score);
+        }
 
     }
 
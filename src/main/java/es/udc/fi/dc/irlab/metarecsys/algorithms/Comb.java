@@ -15,14 +15,13 @@
  */
 package es.udc.fi.dc.irlab.metarecsys.algorithms;
 
-import java.util.Set;
-import java.util.TreeMap;
-import java.util.function.LongConsumer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
 
-import es.udc.fi.dc.irlab.metarecsys.structures.MutableDouble;
-import es.udc.fi.dc.irlab.metarecsys.structures.MutableInt;
 import es.udc.fi.dc.irlab.metarecsys.structures.RunFile;
-import net.openhft.koloboke.collect.set.LongSet;
+import es.udc.fi.dc.irlab.metarecsys.structures.TopKCollector;
 
 /**
  * The Class Comb* (common class for CombANZ, CombMNZ and CombSum.
@@ -31,10 +30,42 @@ import net.openhft.koloboke.collect.set.LongSet;
  * Proceedings of the Second Conference on Text Retrieval Conference (pp.
  * 243–252).
  *
+ * The algorithms whose score is monotone (see {@link #isMonotone()}) can rank
+ * the users with the threshold algorithm instead of accumulating all the
+ * candidates:
+ *
+ * Fagin, R., Lotem, A., &amp; Naor, M. (2003). Optimal aggregation algorithms
+ * for middleware. Journal of Computer and System Sciences, 66(4), 614–656.
+ *
+ * The rankings of each run are read in parallel by rank and each new item is
+ * scored with a lookup in the other runs. The traversal stops once the worst
+ * item kept scores strictly more than any unseen item could, so the output is
+ * the same as without it. It requires the scores of the user in each run to
+ * decrease with the rank (see {@link RunFile#isScoreSorted(int)}); otherwise,
+ * all the candidates of the user are accumulated.
+ *
  * @author daniel.valcarce@udc.es
  */
 public abstract class Comb extends RankAggregation {
 
+    /** Whether the users are ranked with the threshold algorithm. */
+    private boolean threshold;
+
+    /** The number of users ranked with the threshold algorithm. */
+    private final LongAdder thresholdUsers = new LongAdder();
+
+    /** The number of entries read by the threshold algorithm. */
+    private final LongAdder accesses = new LongAdder();
+
+    /** The number of entries of the users ranked with the threshold algorithm. */
+    private final LongAdder entries = new LongAdder();
+
+    /** The number of users accumulated because their scores are not sorted. */
+    private final LongAdder unsortedUsers = new LongAdder();
+
+    /** Whether a user with unsorted scores has been reported. */
+    private final AtomicBoolean unsortedReported = new AtomicBoolean();
+
     /**
      * Instantiates a new comb*.
      *
@@ -48,33 +79,295 @@ public abstract class Comb extends RankAggregation {
     /*
      * (non-Javadoc)
      *
-     * @see es.udc.fi.dc.irlab.metarecsys.algorithms.MetasearchAlgorithm#
-     * computeUserRanking(java.util.Set, long,
-     * net.openhft.koloboke.collect.set.LongSet, java.util.TreeMap)
+     * @see es.udc.fi.dc.irlab.metarecsys.algorithms.RankAggregation#isAdditive()
+     */
+    @Override
+    public final boolean isAdditive() {
+        return true;
+    }
+
+    /**
+     * Check whether the score never decreases when the number of runs or the
+     * sum of the scores increase, and it is not positive for a negative sum.
+     * The threshold algorithm is only available for monotone algorithms.
+     *
+     * @return true if the score is monotone
+     */
+    public boolean isMonotone() {
+        return false;
+    }
+
+    /**
+     * Rank the users with the threshold algorithm when the scores of the runs
+     * are sorted.
+     *
+     * @param threshold
+     *            true to use the threshold algorithm
+     */
+    public void setThreshold(final boolean threshold) {
+        if (threshold && !isMonotone()) {
+            throw new IllegalStateException(this + " is not monotone");
+        }
+        this.threshold = threshold;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.algorithms.RankAggregation#usesThreshold()
      */
     @Override
-    protected final void computeUserRanking(final Set<RunFile> runs, final long userID,
-            final LongSet candidateItems, final TreeMap<Double, LongSet> ranking) {
+    boolean usesThreshold() {
+        return threshold;
+    }
 
-        candidateItems.forEach((LongConsumer) itemID -> {
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.algorithms.RankAggregation#
+     * computeUserRanking(es.udc.fi.dc.irlab.metarecsys.algorithms.UserRankings,
+     * es.udc.fi.dc.irlab.metarecsys.structures.TopKCollector)
+     */
+    @Override
+    protected final void computeUserRanking(final UserRankings user,
+            final TopKCollector ranking) {
 
-            final MutableInt n = new MutableInt(0);
-            final MutableDouble accum = new MutableDouble(0.0);
+        if (!user.isAccumulated()) {
+            if (isScoreSorted(user)) {
+                computeThresholdRanking(user, ranking);
+                return;
+            }
+            reportUnsorted(user);
+            user.accumulate();
+        }
+
+        for (int i = 0; i < user.numCandidates(); i++) {
+            final int itemKey = user.getCandidate(i);
+            final int n = user.getCount(itemKey);
+            if (n > 0) {
+                saveScore(ranking, user.getItemID(itemKey),
+                        computeScore(n, user.getSum(itemKey)));
+            }
+        }
 
-            runs.forEach(run -> {
-                final double score = run.getScore(userID, itemID, Double.NaN);
-                if (!Double.isNaN(score)) {
-                    n.increment();
-                    accum.add(score);
+    }
+
+    /**
+     * Check whether the scores of the user are sorted in its runs.
+     *
+     * @param user
+     *            the located rankings of the user in the runs
+     * @return true if the scores of the user decrease with the rank in every
+     *         run
+     */
+    private static boolean isScoreSorted(final UserRankings user) {
+        for (int r = 0; r < user.numRuns(); r++) {
+            final int u = user.getUserIndex(r);
+            if (u >= 0 && !user.getRun(r).isScoreSorted(u)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Count a user that cannot be ranked with the threshold algorithm and warn
+     * about the first one.
+     *
+     * @param user
+     *            the located rankings of the user in the runs
+     */
+    private void reportUnsorted(final UserRankings user) {
+        unsortedUsers.increment();
+        if (unsortedReported.compareAndSet(false, true)) {
+            Logger.getGlobal().warning(String.format(Locale.ENGLISH,
+                    "%s: the scores of user %d are not sorted or are NaN (norm %s), so its "
+                            + "candidates are accumulated instead of using the threshold "
+                            + "algorithm",
+                    this, user.getUserID(), user.getRun(0).getNorm()));
+        }
+    }
+
+    /**
+     * Rank the located user with the threshold algorithm. Each round reads the
+     * next entry of every run and then scores the new items, unless their
+     * upper bound shows that they cannot enter the ranking. The score of an
+     * item adds its scores in the order of the runs, as the accumulation does.
+     *
+     * @param user
+     *            the located rankings of the user in the runs
+     * @param ranking
+     *            the ranking
+     */
+    private void computeThresholdRanking(final UserRankings user,
+            final TopKCollector ranking) {
+
+        final int numRuns = user.numRuns();
+        final int[] next = new int[numRuns];
+        final double[] last = new double[numRuns];
+        final int[] read = new int[numRuns];
+        long userEntries = 0;
+        for (int r = 0; r < numRuns; r++) {
+            next[r] = user.getStart(r);
+            userEntries += user.getEnd(r) - user.getStart(r);
+        }
+
+        long userAccesses = 0;
+        user.clearMarks();
+
+        while (true) {
+
+            // Read the next entry of each run
+            int numRead = 0;
+            for (int r = 0; r < numRuns; r++) {
+                if (next[r] < user.getEnd(r)) {
+                    last[r] = user.getRun(r).getRankings().getScore(next[r]);
+                    read[numRead++] = r;
+                    next[r]++;
+                    userAccesses++;
                 }
-            });
+            }
+            if (numRead == 0) {
+                break;
+            }
 
-            if (n.get() > 0) {
-                saveScore(ranking, itemID, computeScore(n.get(), accum.get()));
+            // Score the new items which can enter the ranking
+            for (int i = 0; i < numRead; i++) {
+                final int r = read[i];
+                final int itemKey = user.getRun(r).getItemKey(next[r] - 1);
+                if (!user.mark(itemKey)) {
+                    continue;
+                }
+                if (ranking.isFull() && Double.compare(ranking.getMinScore(),
+                        upperBound(user, next, last, r)) > 0) {
+                    continue;
+                }
+                int n = 0;
+                double sum = 0.0;
+                for (int s = 0; s < numRuns; s++) {
+                    // The item is not before the entry read in this round
+                    final RunFile run = user.getRun(s);
+                    int pos = -1;
+                    if (s >= r && next[s] > user.getStart(s)
+                            && run.getItemKey(next[s] - 1) == itemKey) {
+                        pos = next[s] - 1;
+                    } else if (next[s] < user.getEnd(s)) {
+                        pos = run.findKey(user.getUserIndex(s), itemKey);
+                        userAccesses++;
+                    }
+                    if (pos >= 0) {
+                        n++;
+                        sum += run.getRankings().getScore(pos);
+                    }
+                }
+                saveScore(ranking, user.getItemID(itemKey), computeScore(n, sum));
             }
 
-        });
+            // An unseen item scores at most the last score read in each run
+            int remaining = 0;
+            double bound = 0.0;
+            for (int r = 0; r < numRuns; r++) {
+                if (next[r] < user.getEnd(r)) {
+                    remaining++;
+                    bound += Math.max(0.0, last[r]);
+                }
+            }
+            if (remaining == 0 || ranking.isFull()
+                    && Double.compare(ranking.getMinScore(), computeScore(remaining, bound)) > 0) {
+                break;
+            }
 
+        }
+
+        thresholdUsers.increment();
+        accesses.add(userAccesses);
+        entries.add(userEntries);
+
+    }
+
+    /**
+     * Compute an upper bound of the score of an item read for the first time
+     * in the given run. In any other run, the item is either missing or ranked
+     * after the entries read before the last one. Negative scores are taken as
+     * zero, since they cannot raise the score of a monotone algorithm.
+     *
+     * @param user
+     *            the located rankings of the user in the runs
+     * @param next
+     *            the position of the next entry to read in each run
+     * @param last
+     *            the last score read in each run
+     * @param r
+     *            the run where the item has been read
+     * @return the upper bound
+     */
+    private double upperBound(final UserRankings user, final int[] next, final double[] last,
+            final int r) {
+
+        int n = 0;
+        double sum = 0.0;
+        for (int s = 0; s < user.numRuns(); s++) {
+            if (s == r || next[s] > user.getStart(s)) {
+                n++;
+                sum += Math.max(0.0, last[s]);
+            }
+        }
+
+        return computeScore(n, sum);
+
+    }
+
+    /**
+     * Gets the number of users ranked with the threshold algorithm.
+     *
+     * @return the number of users
+     */
+    public long getThresholdUsers() {
+        return thresholdUsers.sum();
+    }
+
+    /**
+     * Gets the number of users accumulated instead of ranked with the threshold
+     * algorithm because their scores are not sorted.
+     *
+     * @return the number of users
+     */
+    public long getUnsortedUsers() {
+        return unsortedUsers.sum();
+    }
+
+    /**
+     * Gets the number of entries read by the threshold algorithm, in order or
+     * by lookup.
+     *
+     * @return the number of accesses
+     */
+    public long getAccesses() {
+        return accesses.sum();
+    }
+
+    /**
+     * Gets the number of accesses saved by the threshold algorithm compared to
+     * reading all the entries of the users (negative if the lookups cost more).
+     *
+     * @return the number of saved accesses
+     */
+    public long getSavedAccesses() {
+        return entries.sum() - accesses.sum();
+    }
+
+    /**
+     * Describe the accesses saved by the threshold algorithm.
+     *
+     * @return the description
+     */
+    public String describeThreshold() {
+        final long users = getThresholdUsers();
+        return String.format(Locale.ENGLISH,
+                "%s: %d users ranked with the threshold algorithm, %d of %d accesses saved "
+                        + "(%.1f per user), %d users with unsorted scores accumulated",
+                this, users, getSavedAccesses(), entries.sum(),
+                users == 0 ? 0.0 : (double) getSavedAccesses() / users, getUnsortedUsers());
     }
 
     /**
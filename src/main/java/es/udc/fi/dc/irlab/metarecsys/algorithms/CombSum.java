@@ -36,6 +36,16 @@ public final class CombSum extends Comb {
         super(maxRank);
     }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.algorithms.Comb#isMonotone()
+     */
+    @Override
+    public boolean isMonotone() {
+        return true;
+    }
+
     /*
      * (non-Javadoc)
      *
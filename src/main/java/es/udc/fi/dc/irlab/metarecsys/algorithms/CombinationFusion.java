@@ -0,0 +1,911 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.algorithms;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import es.udc.fi.dc.irlab.metarecsys.normalisation.NormalisationAlgorithm;
+import es.udc.fi.dc.irlab.metarecsys.structures.FoldDictionary;
+import es.udc.fi.dc.irlab.metarecsys.structures.OutputStore;
+import es.udc.fi.dc.irlab.metarecsys.structures.RunCursor;
+import es.udc.fi.dc.irlab.metarecsys.structures.RunFile;
+import es.udc.fi.dc.irlab.metarecsys.structures.TopKCollector;
+import es.udc.fi.dc.irlab.metarecsys.structures.TrecEncoder;
+
+/**
+ * The Class CombinationFusion. It fuses the combinations of the runs of a fold
+ * with one or more algorithms in a single pass: the rankings of each user in a
+ * combination are gathered once and every algorithm computes its ranking from
+ * them, writing its own output run to an {@link OutputStore}.
+ *
+ * The rankings are encoded into byte buffers by the fusion threads and written
+ * to the store in order.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public final class CombinationFusion {
+
+    /** The number of users of each block fused by a fork-join task. */
+    static final int USER_BLOCK_SIZE = 256;
+
+    /** The algorithms. */
+    private final List<RankAggregation> algs;
+
+    /** The initial size of the buffer of an encoded block. */
+    private static final int BLOCK_BUFFER_SIZE = 1 << 16;
+
+    /** The label of the tasks. */
+    private final String label;
+
+    /**
+     * Instantiates a new combination fusion.
+     *
+     * @param algs
+     *            the algorithms
+     */
+    public CombinationFusion(final List<RankAggregation> algs) {
+
+        if (algs.isEmpty()) {
+            throw new IllegalArgumentException("At least one algorithm is required");
+        }
+
+        this.algs = new ArrayList<RankAggregation>(algs);
+        this.label = String.join("+",
+                algs.stream().map(RankAggregation::toString).collect(Collectors.toList()));
+
+    }
+
+    /**
+     * The Functional Interface OutputWriter.
+     *
+     * @author daniel.valcarce@udc.es
+     */
+    @FunctionalInterface
+    interface OutputWriter {
+
+        /**
+         * Write the outputs of a combination.
+         *
+         * @param pendingAlgs
+         *            the algorithms whose output has to be written
+         * @param outputs
+         *            the output of each algorithm
+         * @throws IOException
+         *             Signals that an I/O exception has occurred.
+         */
+        void write(List<RankAggregation> pendingAlgs, List<? extends OutputStream> outputs)
+                throws IOException;
+    }
+
+    /**
+     * The Functional Interface UserLoader.
+     *
+     * @author daniel.valcarce@udc.es
+     */
+    @FunctionalInterface
+    interface UserLoader {
+
+        /**
+         * Load the rankings of a user.
+         *
+         * @param user
+         *            the rankings of the user
+         * @param u
+         *            the user index
+         */
+        void load(UserRankings user, int u);
+    }
+
+    /**
+     * Check whether all the algorithms are additive.
+     *
+     * @return true if all the algorithms are additive
+     * @see RankAggregation#isAdditive()
+     */
+    public boolean isAdditive() {
+        return algs.stream().allMatch(RankAggregation::isAdditive);
+    }
+
+    /**
+     * Estimate the cost of fusing a combination of runs with all the
+     * algorithms.
+     *
+     * @param numRuns
+     *            the number of runs
+     * @param numUsers
+     *            the number of users
+     * @param numEntries
+     *            the total number of entries of the runs
+     * @return the estimated cost
+     * @see RankAggregation#estimateCost(int, long, long)
+     */
+    double estimateCost(final int numRuns, final long numUsers, final long numEntries) {
+        double cost = 0;
+        for (final RankAggregation alg : algs) {
+            cost += alg.estimateCost(numRuns, numUsers, numEntries);
+        }
+        return cost;
+    }
+
+    /**
+     * Compute all combinations with a number of runs in the given range. The
+     * combinations are enumerated lazily and submitted as the scheduler makes
+     * room for them.
+     *
+     * @param scheduler
+     *            the scheduler of the fusion tasks
+     * @param fold
+     *            the fold
+     * @param runs
+     *            the runs
+     * @param store
+     *            the store of the outputs
+     * @param minK
+     *            the minimum number of runs of a combination
+     * @param maxK
+     *            the maximum number of runs of a combination
+     */
+    public void computeAllCombinations(final FusionScheduler scheduler, final int fold,
+            final List<RunFile> runs, final OutputStore store, final int minK, final int maxK) {
+
+        // The runs of the fold share a dictionary
+        FoldDictionary.encode(runs);
+
+        final int n = runs.size();
+        final int from = Math.max(2, minK);
+        final int to = Math.min(maxK, n);
+        Logger.getGlobal().info(String.format(Locale.ENGLISH,
+                "Fold %d: %d combinations of %d to %d runs out of %d", fold,
+                CombinationUtils.count(n, from, to), from, to, n));
+
+        // The size of each run for the cost model
+        final long[] numUsers = new long[n];
+        final long[] numEntries = new long[n];
+        for (int r = 0; r < n; r++) {
+            numUsers[r] = runs.get(r).getRankings().numUsers();
+            numEntries[r] = runs.get(r).getRankings().numEntries();
+        }
+
+        // Create a parallel task for each combination, biggest combinations first
+        for (int k = to; k >= from; k--) {
+
+            final String taskLabel = String.format(Locale.ENGLISH, "%s-n%d", label, k);
+
+            for (final int[] indexes : CombinationUtils.indexCombination(n, k)) {
+
+                long users = 0;
+                long entries = 0;
+                for (final int r : indexes) {
+                    users = Math.max(users, numUsers[r]);
+                    entries += numEntries[r];
+                }
+
+                final Runnable task = () -> {
+                    final List<RunFile> combination = CombinationUtils.select(runs, indexes);
+                    writeOutputs(fold, combination, store, (pendingAlgs, outputs) -> {
+                        final BitSet allUsers = new BitSet();
+                        combination.forEach(run -> {
+                            allUsers.or(run.getUserSet());
+                        });
+                        fuseAndPrint(scheduler.getForkJoinPool(), pendingAlgs, combination,
+                                allUsers, outputs);
+                    });
+                };
+
+                scheduler.submit(taskLabel, estimateCost(k, users, entries), task);
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Compute all combinations with a number of runs in the given range walking
+     * the lattice of subsets of runs. The fusion of each combination is derived
+     * from the fusion of the combination without its last run (in order of
+     * name), which is kept in memory while the cache size allows it and
+     * computed again otherwise. The output is identical to that of
+     * {@link #computeAllCombinations(FusionScheduler, int, List, OutputStore, int, int)}.
+     *
+     * There is a parallel task for each pair of runs, which computes the
+     * combinations that start with that pair.
+     *
+     * @param scheduler
+     *            the scheduler of the fusion tasks
+     * @param fold
+     *            the fold
+     * @param runs
+     *            the runs
+     * @param store
+     *            the store of the outputs
+     * @param minK
+     *            the minimum number of runs of a combination
+     * @param maxK
+     *            the maximum number of runs of a combination
+     * @param cacheSize
+     *            the maximum number of bytes of the cached fusions of the fold
+     */
+    public void computeCombinationLattice(final FusionScheduler scheduler, final int fold,
+            final List<RunFile> runs, final OutputStore store, final int minK, final int maxK,
+            final long cacheSize) {
+
+        if (!isAdditive()) {
+            throw new IllegalStateException(
+                    label + " cannot derive the fusion of a combination from its subsets");
+        }
+
+        // The runs of the fold share a dictionary
+        FoldDictionary.encode(runs);
+
+        final List<RunFile> sortedRuns = runs.stream()
+                .sorted(Comparator.comparing(RunFile::getName)).collect(Collectors.toList());
+        final AtomicLong budget = new AtomicLong(cacheSize);
+
+        final int n = sortedRuns.size();
+        final int from = Math.max(2, minK);
+        final int to = Math.min(maxK, n);
+        Logger.getGlobal().info(String.format(Locale.ENGLISH,
+                "Fold %d: %d combinations of %d to %d runs out of %d", fold,
+                CombinationUtils.count(n, from, to), from, to, n));
+
+        for (int first = 0; first < n && from <= to; first++) {
+            for (int second = first + 1; second < n; second++) {
+                final LatticeWalk walk = new LatticeWalk(scheduler.getForkJoinPool(), fold,
+                        sortedRuns, store, from, to, budget);
+                final int[] root = { first, second };
+                scheduler.submit(label + "-lattice", estimateLatticeCost(sortedRuns, second, to),
+                        () -> walk.fuse(root));
+            }
+        }
+
+    }
+
+    /**
+     * Compute all combinations with a number of runs in the given range
+     * streaming the run files: the users of each combination are fused one at
+     * a time advancing a cursor per run file in order of user id, so the
+     * memory used by a task does not depend on the number of users. The run
+     * files must be sorted by user id. The output is identical to that of
+     * {@link #computeAllCombinations(FusionScheduler, int, List, OutputStore, int, int)}.
+     *
+     * @param scheduler
+     *            the scheduler of the fusion tasks
+     * @param fold
+     *            the fold
+     * @param runPaths
+     *            the paths to the run files of the fold
+     * @param maxRank
+     *            the maximum rank of the runs
+     * @param norm
+     *            the normalisation algorithm of the runs
+     * @param store
+     *            the store of the outputs
+     * @param minK
+     *            the minimum number of runs of a combination
+     * @param maxK
+     *            the maximum number of runs of a combination
+     */
+    public void computeStreamingCombinations(final FusionScheduler scheduler, final int fold,
+            final List<Path> runPaths, final int maxRank, final NormalisationAlgorithm norm,
+            final OutputStore store, final int minK, final int maxK) {
+
+        final int n = runPaths.size();
+        final int from = Math.max(2, minK);
+        final int to = Math.min(maxK, n);
+        Logger.getGlobal().info(String.format(Locale.ENGLISH,
+                "Fold %d: %d combinations of %d to %d runs out of %d (streaming)", fold,
+                CombinationUtils.count(n, from, to), from, to, n));
+
+        // The runs ordered by name, as in the fusion of loaded runs
+        final List<Path> sortedPaths = new ArrayList<Path>(runPaths);
+        sortedPaths.sort(Comparator.comparing(RunFile::nameOf));
+        final List<String> names = sortedPaths.stream().map(RunFile::nameOf)
+                .collect(Collectors.toList());
+
+        // The size of each run for the cost model
+        final long[] numEntries = new long[n];
+        for (int r = 0; r < n; r++) {
+            numEntries[r] = RunFile.estimateEntries(sortedPaths.get(r));
+        }
+
+        for (int k = to; k >= from; k--) {
+
+            final String taskLabel = String.format(Locale.ENGLISH, "%s-stream-n%d", label, k);
+
+            for (final int[] indexes : CombinationUtils.indexCombination(n, k)) {
+
+                long entries = 0;
+                for (final int r : indexes) {
+                    entries += numEntries[r];
+                }
+
+                final Runnable task = () -> {
+                    final List<Path> combination = CombinationUtils.select(sortedPaths, indexes);
+                    writeOutputs(fold, CombinationUtils.select(names, indexes), norm.toString(),
+                            store, (pendingAlgs, outputs) -> {
+                                streamUsers(pendingAlgs, combination, maxRank, norm, outputs);
+                            });
+                };
+
+                scheduler.submit(taskLabel,
+                        estimateCost(k, Math.max(1, entries / (k * maxRank)), entries), task);
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Fuse and print the rankings of the users of a combination streaming its
+     * run files.
+     *
+     * @param pendingAlgs
+     *            the algorithms
+     * @param runPaths
+     *            the paths to the run files of the combination ordered by name
+     * @param maxRank
+     *            the maximum rank of the runs
+     * @param norm
+     *            the normalisation algorithm of the runs
+     * @param outputs
+     *            the output of each algorithm
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    static void streamUsers(final List<RankAggregation> pendingAlgs, final List<Path> runPaths,
+            final int maxRank, final NormalisationAlgorithm norm,
+            final List<? extends OutputStream> outputs) throws IOException {
+
+        final int numAlgs = pendingAlgs.size();
+        final RunCursor[] cursors = new RunCursor[runPaths.size()];
+
+        try {
+
+            for (int r = 0; r < cursors.length; r++) {
+                cursors[r] = new RunCursor(runPaths.get(r), maxRank, norm);
+                cursors[r].next();
+            }
+
+            final UserRankings user = new UserRankings(cursors.length);
+            final TrecEncoder[] encoders = newEncoders(numAlgs);
+            final TopKCollector[] rankings = new TopKCollector[numAlgs];
+            for (int a = 0; a < numAlgs; a++) {
+                rankings[a] = new TopKCollector(pendingAlgs.get(a).maxRank);
+            }
+
+            while (true) {
+
+                // The next user is the smallest user of the cursors
+                boolean found = false;
+                long userID = Long.MAX_VALUE;
+                for (final RunCursor cursor : cursors) {
+                    if (cursor.hasUser() && cursor.getUserID() <= userID) {
+                        userID = cursor.getUserID();
+                        found = true;
+                    }
+                }
+                if (!found) {
+                    break;
+                }
+
+                user.load(userID, cursors);
+                for (int a = 0; a < numAlgs; a++) {
+                    final RankAggregation alg = pendingAlgs.get(a);
+                    rankings[a].clear();
+                    alg.computeUserRanking(user, rankings[a]);
+                    alg.printRanking(userID, rankings[a], encoders[a]);
+                    if (encoders[a].size() >= BLOCK_BUFFER_SIZE) {
+                        encoders[a].writeTo(outputs.get(a));
+                        encoders[a].clear();
+                    }
+                }
+
+                for (final RunCursor cursor : cursors) {
+                    if (cursor.hasUser() && cursor.getUserID() == userID) {
+                        cursor.next();
+                    }
+                }
+
+            }
+
+            for (int a = 0; a < numAlgs; a++) {
+                encoders[a].writeTo(outputs.get(a));
+            }
+
+        } finally {
+            for (final RunCursor cursor : cursors) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Estimate the cost of a lattice task: the cost of the combinations that
+     * extend a pair of runs with runs that go after the second one, assuming
+     * that all the runs have the average size.
+     *
+     * @param sortedRuns
+     *            the runs of the fold ordered by name
+     * @param second
+     *            the index of the second run of the pair
+     * @param maxK
+     *            the maximum number of runs of a combination
+     * @return the estimated cost
+     */
+    private double estimateLatticeCost(final List<RunFile> sortedRuns, final int second,
+            final int maxK) {
+
+        long numUsers = 0;
+        long numEntries = 0;
+        for (final RunFile run : sortedRuns) {
+            numUsers = Math.max(numUsers, run.getRankings().numUsers());
+            numEntries += run.getRankings().numEntries();
+        }
+        final double entriesPerRun = (double) numEntries / sortedRuns.size();
+
+        // Each combination is derived from its parent, adding the entries of a run
+        final int remaining = sortedRuns.size() - 1 - second;
+        double cost = 0;
+        for (int j = 0; j <= Math.min(remaining, maxK - 2); j++) {
+            cost += CombinationUtils.count(remaining, j)
+                    * estimateCost(2 + j, numUsers, (long) (entriesPerRun * (2 + j)));
+        }
+
+        return cost;
+
+    }
+
+    /**
+     * The Class LatticeWalk. It fuses the combinations that start with a given
+     * prefix of runs, visiting the lattice of subsets depth-first.
+     *
+     * @author daniel.valcarce@udc.es
+     */
+    final class LatticeWalk {
+
+        /** The pool where the blocks of users are fused (or null). */
+        private final ForkJoinPool forkJoinPool;
+
+        /** The fold. */
+        private final int fold;
+
+        /** The runs of the fold ordered by name. */
+        private final List<RunFile> sortedRuns;
+
+        /** The store of the outputs. */
+        private final OutputStore store;
+
+        /** The minimum number of runs of a combination. */
+        private final int minK;
+
+        /** The maximum number of runs of a combination. */
+        private final int maxK;
+
+        /** The number of bytes left in the cache. */
+        private final AtomicLong budget;
+
+        /** The indexes of the runs of the current combination. */
+        private final int[] path;
+
+        /** The cached tables of the prefixes of the path (or null). */
+        private final AccumulatorTable[] tables;
+
+        /** A scratch array with one element per item key of the fold. */
+        private int[] positions;
+
+        /**
+         * Instantiates a new lattice walk.
+         *
+         * @param forkJoinPool
+         *            the pool where the blocks of users are fused, or null to
+         *            fuse them on the calling thread
+         * @param fold
+         *            the fold
+         * @param sortedRuns
+         *            the runs of the fold ordered by name
+         * @param store
+         *            the store of the outputs
+         * @param minK
+         *            the minimum number of runs of a combination
+         * @param maxK
+         *            the maximum number of runs of a combination
+         * @param budget
+         *            the number of bytes left in the cache
+         */
+        LatticeWalk(final ForkJoinPool forkJoinPool, final int fold,
+                final List<RunFile> sortedRuns, final OutputStore store, final int minK,
+                final int maxK, final AtomicLong budget) {
+            this.forkJoinPool = forkJoinPool;
+            this.fold = fold;
+            this.sortedRuns = sortedRuns;
+            this.store = store;
+            this.minK = minK;
+            this.maxK = maxK;
+            this.budget = budget;
+            this.path = new int[sortedRuns.size()];
+            this.tables = new AccumulatorTable[sortedRuns.size()];
+        }
+
+        /**
+         * Fuse the combination given by the root runs and all the combinations
+         * that extend it with runs that go after its last run.
+         *
+         * @param root
+         *            the indexes of the root runs
+         */
+        void fuse(final int[] root) {
+            positions = new int[sortedRuns.get(0).getDictionary().numItems()];
+            System.arraycopy(root, 0, path, 0, root.length);
+            fuse(root.length);
+            positions = null;
+        }
+
+        /**
+         * Fuse the combination given by the first k runs of the path and all
+         * the combinations that extend it with runs that go after its last
+         * run.
+         *
+         * @param k
+         *            the number of runs of the combination
+         */
+        private void fuse(final int k) {
+
+            final int n = sortedRuns.size();
+            final boolean hasChildren = k < maxK && path[k - 1] < n - 1;
+
+            tables[k - 1] = fuseTable(k, hasChildren);
+
+            if (hasChildren) {
+                for (int next = path[k - 1] + 1; next < n; next++) {
+                    path[k] = next;
+                    fuse(k + 1);
+                }
+                if (tables[k - 1] != null) {
+                    budget.addAndGet(tables[k - 1].size());
+                    tables[k - 1] = null;
+                }
+            }
+
+        }
+
+        /**
+         * Build the table of the combination given by the first k runs of the
+         * path from its longest cached prefix and print its fusion if its size
+         * is in range.
+         *
+         * @param k
+         *            the number of runs of the combination
+         * @param cache
+         *            whether the table should be cached
+         * @return the table if it has to be cached and fits in the cache, null
+         *         otherwise
+         */
+        private AccumulatorTable fuseTable(final int k, final boolean cache) {
+
+            int prefix = k - 1;
+            while (prefix > 0 && tables[prefix - 1] == null) {
+                prefix--;
+            }
+
+            AccumulatorTable table = prefix == 0 ? null : tables[prefix - 1];
+            for (int i = prefix; i < k; i++) {
+                table = AccumulatorTable.extend(table, sortedRuns.get(path[i]), positions);
+            }
+
+            if (k >= minK) {
+                final List<RunFile> combination = CombinationUtils.select(sortedRuns,
+                        Arrays.copyOf(path, k));
+                final AccumulatorTable fused = table;
+                writeOutputs(fold, combination, store, (pendingAlgs, outputs) -> {
+                    printUsers(forkJoinPool, pendingAlgs, combination, fused.numUsers(),
+                            (user, u) -> user.load(fused, u), outputs);
+                });
+            }
+
+            return cache && reserve(budget, table.size()) ? table : null;
+
+        }
+
+    }
+
+    /**
+     * Reserve the given number of bytes of the cache.
+     *
+     * @param budget
+     *            the number of bytes left in the cache
+     * @param size
+     *            the number of bytes to reserve
+     * @return true if the bytes were reserved
+     */
+    private static boolean reserve(final AtomicLong budget, final long size) {
+        long left;
+        do {
+            left = budget.get();
+            if (left < size) {
+                return false;
+            }
+        } while (!budget.compareAndSet(left, left - size));
+        return true;
+    }
+
+    /**
+     * Write the outputs of a combination for the algorithms whose output does
+     * not exist and is not being written. The outputs are committed once all
+     * of them have been written.
+     *
+     * @param fold
+     *            the fold
+     * @param combination
+     *            the runs of the combination
+     * @param store
+     *            the store of the outputs
+     * @param outputWriter
+     *            the writer of the outputs
+     */
+    private void writeOutputs(final int fold, final Collection<RunFile> combination,
+            final OutputStore store, final OutputWriter outputWriter) {
+        writeOutputs(fold, combination.stream().map(RunFile::getName).collect(Collectors.toList()),
+                combination.iterator().next().getNorm().toString(), store, outputWriter);
+    }
+
+    /**
+     * Write the outputs of a combination for the algorithms whose output does
+     * not exist and is not being written. The outputs are committed once all
+     * of them have been written.
+     *
+     * @param fold
+     *            the fold
+     * @param runNames
+     *            the names of the runs of the combination
+     * @param norm
+     *            the name of the normalisation of the runs
+     * @param store
+     *            the store of the outputs
+     * @param outputWriter
+     *            the writer of the outputs
+     */
+    private void writeOutputs(final int fold, final List<String> runNames, final String norm,
+            final OutputStore store, final OutputWriter outputWriter) {
+
+        final String files = String.join("-",
+                runNames.stream().sorted().collect(Collectors.toList()));
+
+        final List<RankAggregation> pendingAlgs = new ArrayList<RankAggregation>();
+        final List<OutputStore.Entry> entries = new ArrayList<OutputStore.Entry>();
+
+        try {
+
+            for (final RankAggregation alg : algs) {
+
+                final String filename = String.format(Locale.ENGLISH,
+                        "%s-%s-n%d-%s-fold%d.txt", alg, norm, runNames.size(), files, fold);
+                final OutputStore.Entry entry = store.create(filename);
+
+                if (entry != null) {
+                    Logger.getGlobal().info("Computing " + filename);
+                    pendingAlgs.add(alg);
+                    entries.add(entry);
+                }
+
+            }
+
+            if (!pendingAlgs.isEmpty()) {
+                outputWriter.write(pendingAlgs, entries);
+                for (final OutputStore.Entry entry : entries) {
+                    entry.commit();
+                }
+            }
+
+        } catch (final Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            for (final OutputStore.Entry entry : entries) {
+                try {
+                    entry.close();
+                } catch (final IOException e) {
+                    Logger.getGlobal().warning("Unable to discard an output: " + e);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Fuse the specified combination of runs and print the result of each
+     * algorithm.
+     *
+     * @param forkJoinPool
+     *            the pool where the blocks of users are fused, or null to fuse
+     *            them on the calling thread
+     * @param pendingAlgs
+     *            the algorithms
+     * @param runs
+     *            the runs of the current combination
+     * @param allUsers
+     *            the keys of all the users in the current combination
+     * @param outputs
+     *            the output of each algorithm
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    static void fuseAndPrint(final ForkJoinPool forkJoinPool,
+            final List<RankAggregation> pendingAlgs, final List<RunFile> runs,
+            final BitSet allUsers, final List<? extends OutputStream> outputs)
+            throws IOException {
+        final int[] userKeys = allUsers.stream().toArray();
+        printUsers(forkJoinPool, pendingAlgs, runs, userKeys.length,
+                (user, u) -> user.locate(userKeys[u]), outputs);
+    }
+
+    /**
+     * Fuse and print the rankings of the users of a combination in order.
+     * Blocks of users are fused in parallel on the fork-join pool of the
+     * scheduler and their outputs are written in order as they complete, with
+     * at most one block in flight per thread of the pool (plus the one being
+     * written).
+     *
+     * @param forkJoinPool
+     *            the pool where the blocks of users are fused, or null to fuse
+     *            them on the calling thread
+     * @param pendingAlgs
+     *            the algorithms
+     * @param runs
+     *            the runs of the combination
+     * @param numUsers
+     *            the number of users
+     * @param loader
+     *            the loader of the rankings of each user
+     * @param outputs
+     *            the output of each algorithm
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private static void printUsers(final ForkJoinPool forkJoinPool,
+            final List<RankAggregation> pendingAlgs, final List<RunFile> runs,
+            final int numUsers, final UserLoader loader,
+            final List<? extends OutputStream> outputs) throws IOException {
+
+        final Queue<UserRankings> free = new ConcurrentLinkedQueue<UserRankings>();
+        final int numBlocks = (numUsers + USER_BLOCK_SIZE - 1) / USER_BLOCK_SIZE;
+        final int numAlgs = pendingAlgs.size();
+
+        if (forkJoinPool == null || numBlocks <= 1) {
+            final TrecEncoder[] encoders = newEncoders(numAlgs);
+            for (int from = 0; from < numUsers; from += USER_BLOCK_SIZE) {
+                fuseBlock(pendingAlgs, runs, free, loader, from,
+                        Math.min(numUsers, from + USER_BLOCK_SIZE), encoders);
+                for (int a = 0; a < numAlgs; a++) {
+                    encoders[a].writeTo(outputs.get(a));
+                    encoders[a].clear();
+                }
+            }
+            return;
+        }
+
+        final int window = forkJoinPool.getParallelism();
+        final Deque<ForkJoinTask<TrecEncoder[]>> pending = new ArrayDeque<>();
+
+        try {
+            int next = 0;
+            for (int block = 0; block < numBlocks; block++) {
+                for (; next < numBlocks && next <= block + window; next++) {
+                    final int from = next * USER_BLOCK_SIZE;
+                    final int to = Math.min(numUsers, from + USER_BLOCK_SIZE);
+                    pending.add(forkJoinPool.submit(() -> {
+                        final TrecEncoder[] encoders = newEncoders(numAlgs);
+                        fuseBlock(pendingAlgs, runs, free, loader, from, to, encoders);
+                        return encoders;
+                    }));
+                }
+                final TrecEncoder[] encoders = pending.poll().join();
+                for (int a = 0; a < numAlgs; a++) {
+                    encoders[a].writeTo(outputs.get(a));
+                }
+            }
+        } finally {
+            pending.forEach(task -> task.cancel(false));
+        }
+
+    }
+
+    /**
+     * Create an encoder for each algorithm.
+     *
+     * @param numAlgs
+     *            the number of algorithms
+     * @return the encoders
+     */
+    private static TrecEncoder[] newEncoders(final int numAlgs) {
+        final TrecEncoder[] encoders = new TrecEncoder[numAlgs];
+        for (int a = 0; a < numAlgs; a++) {
+            encoders[a] = new TrecEncoder(BLOCK_BUFFER_SIZE);
+        }
+        return encoders;
+    }
+
+    /**
+     * Fuse and print the rankings of a block of users with each algorithm.
+     *
+     * @param pendingAlgs
+     *            the algorithms
+     * @param runs
+     *            the runs of the combination
+     * @param free
+     *            the instances of user rankings of the combination not in use
+     * @param loader
+     *            the loader of the rankings of each user
+     * @param from
+     *            the index of the first user
+     * @param to
+     *            the index after the last user
+     * @param encoders
+     *            the encoder of each algorithm
+     */
+    private static void fuseBlock(final List<RankAggregation> pendingAlgs,
+            final List<RunFile> runs, final Queue<UserRankings> free, final UserLoader loader,
+            final int from, final int to, final TrecEncoder[] encoders) {
+
+        UserRankings user = free.poll();
+        if (user == null) {
+            user = new UserRankings(runs);
+        }
+
+        final TopKCollector[] rankings = new TopKCollector[pendingAlgs.size()];
+        for (int a = 0; a < rankings.length; a++) {
+            rankings[a] = new TopKCollector(pendingAlgs.get(a).maxRank);
+        }
+
+        for (int u = from; u < to; u++) {
+            loader.load(user, u);
+            for (int a = 0; a < rankings.length; a++) {
+                final RankAggregation alg = pendingAlgs.get(a);
+                if (!alg.usesThreshold()) {
+                    user.accumulate();
+                }
+                rankings[a].clear();
+                alg.computeUserRanking(user, rankings[a]);
+                alg.printRanking(user.getUserID(), rankings[a], encoders[a]);
+            }
+        }
+
+        free.add(user);
+
+    }
+
+}
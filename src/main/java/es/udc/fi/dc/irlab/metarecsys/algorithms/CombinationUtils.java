@@ -15,11 +15,11 @@
  */
 package es.udc.fi.dc.irlab.metarecsys.algorithms;
 
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
-
-import net.openhft.koloboke.collect.set.ObjSet;
-import net.openhft.koloboke.collect.set.hash.HashObjSets;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
 
 /**
  * The Class CombinationUtils.
@@ -29,7 +29,15 @@ import net.openhft.koloboke.collect.set.hash.HashObjSets;
 public final class CombinationUtils {
 
     /**
-     * Get all the combinations (without repetition) of k elements.
+     * Instantiates a new combination utils.
+     */
+    private CombinationUtils() {
+
+    }
+
+    /**
+     * Get all the combinations (without repetition) of k elements. The
+     * combinations are generated lazily in lexicographic order of indexes.
      *
      * @param <T>
      *            the generic type of the elements
@@ -39,84 +47,216 @@ public final class CombinationUtils {
      *            the k
      * @return the iterable
      */
-    public static <T> ObjSet<? extends Set<T>> combination(final List<T> elements, final int k) {
+    public static <T> Iterable<List<T>> combination(final List<T> elements, final int k) {
+
+        final Iterable<int[]> indexes = indexCombination(elements.size(), k);
+
+        return () -> {
+            final Iterator<int[]> iterator = indexes.iterator();
+            return new Iterator<List<T>>() {
+
+                /*
+                 * (non-Javadoc)
+                 *
+                 * @see java.util.Iterator#hasNext()
+                 */
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                /*
+                 * (non-Javadoc)
+                 *
+                 * @see java.util.Iterator#next()
+                 */
+                @Override
+                public List<T> next() {
+                    return select(elements, iterator.next());
+                }
+
+            };
+        };
+
+    }
+
+    /**
+     * Get all the combinations (without repetition) of k indexes from 0 to
+     * n - 1. The combinations are generated lazily in lexicographic order and
+     * each one is a new array.
+     *
+     * @param n
+     *            the number of elements
+     * @param k
+     *            the k
+     * @return the iterable
+     */
+    public static Iterable<int[]> indexCombination(final int n, final int k) {
 
-        final int n = elements.size();
         if (n < k) {
             throw new IllegalArgumentException("k cannot be bigger than n");
         }
+        if (k < 0) {
+            throw new IllegalArgumentException("k cannot be negative");
+        }
 
-        final int combination[] = new int[k];
-        final ObjSet<ObjSet<T>> result = HashObjSets
-                .<ObjSet<T>> newUpdatableSet(fact(n) / (fact(k) * fact(n - k)));
-
-        int r = 0;
-        int index = 0;
-
-        while (r >= 0) {
-            if (index <= (n + (r - k))) {
-                combination[r] = index;
-                if (r == k - 1) {
-                    // if we are at the last position save and increase the
-                    // index
-                    result.add(createCombination(combination, elements));
-                    index++;
-                } else {
-                    // select index for next position
-                    index = combination[r] + 1;
-                    r++;
+        return () -> new Iterator<int[]>() {
+
+            /** The next combination (null when finished). */
+            private int[] next = initial();
+
+            /**
+             * Build the first combination.
+             *
+             * @return the first combination
+             */
+            private int[] initial() {
+                final int[] combination = new int[k];
+                for (int i = 0; i < k; i++) {
+                    combination[i] = i;
+                }
+                return combination;
+            }
+
+            /*
+             * (non-Javadoc)
+             *
+             * @see java.util.Iterator#hasNext()
+             */
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            /*
+             * (non-Javadoc)
+             *
+             * @see java.util.Iterator#next()
+             */
+            @Override
+            public int[] next() {
+
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+
+                final int[] current = next;
+
+                // Increase the rightmost index which can be increased
+                int i = k - 1;
+                while (i >= 0 && current[i] == n - k + i) {
+                    i--;
                 }
-            } else {
-                r--;
-                if (r > 0) {
-                    index = combination[r] + 1;
+                if (i < 0) {
+                    next = null;
                 } else {
-                    index = combination[0] + 1;
+                    next = Arrays.copyOf(current, k);
+                    next[i]++;
+                    for (int j = i + 1; j < k; j++) {
+                        next[j] = next[j - 1] + 1;
+                    }
                 }
+
+                return current;
+
             }
-        }
 
-        return result;
+        };
 
     }
 
     /**
-     * Create the specified combination of the given elements.
+     * Select the given elements.
      *
      * @param <T>
-     *            the generic type
-     * @param combination
-     *            the combination
+     *            the generic type of the elements
      * @param elements
-     *            the elements to combine
-     * @return the obj set
+     *            the elements
+     * @param indexes
+     *            the indexes of the selected elements
+     * @return the selected elements
+     */
+    public static <T> List<T> select(final List<T> elements, final int[] indexes) {
+        return Arrays.stream(indexes).mapToObj(elements::get)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Count the combinations (without repetition) of k out of n elements. The
+     * count saturates at {@link Long#MAX_VALUE}.
+     *
+     * @param n
+     *            the number of elements
+     * @param k
+     *            the k
+     * @return the number of combinations
      */
-    private static <T> ObjSet<T> createCombination(final int[] combination,
-            final List<T> elements) {
+    public static long count(final int n, final int k) {
 
-        final ObjSet<T> resultSet = HashObjSets.<T> newUpdatableSet(combination.length);
+        if (k < 0 || k > n) {
+            return 0;
+        }
 
-        for (final int idx : combination) {
-            resultSet.add(elements.get(idx));
+        final int m = Math.min(k, n - k);
+        long result = 1;
+        for (int i = 0; i < m; i++) {
+            // result * (n - i) is divisible by (i + 1)
+            final long divisor = i + 1;
+            final long g = gcd(result, divisor);
+            try {
+                result = Math.multiplyExact(result / g, (n - i) / (divisor / g));
+            } catch (final ArithmeticException e) {
+                return Long.MAX_VALUE;
+            }
         }
 
-        return resultSet;
+        return result;
 
     }
 
     /**
-     * Compute the factorial of the given number (for a small n).
+     * Count the combinations (without repetition) of n elements with a number
+     * of elements in the given range. The count saturates at
+     * {@link Long#MAX_VALUE}.
      *
      * @param n
-     *            an positive integer
-     * @return the factorial of n
+     *            the number of elements
+     * @param minK
+     *            the minimum number of elements
+     * @param maxK
+     *            the maximum number of elements
+     * @return the number of combinations
      */
-    private static int fact(final int n) {
-        int result = 1;
-        for (int i = 2; i <= n; i++) {
-            result *= i;
+    public static long count(final int n, final int minK, final int maxK) {
+        long result = 0;
+        for (int k = Math.max(minK, 0); k <= Math.min(maxK, n); k++) {
+            final long c = count(n, k);
+            if (c > Long.MAX_VALUE - result) {
+                return Long.MAX_VALUE;
+            }
+            result += c;
         }
         return result;
     }
 
+    /**
+     * Compute the greatest common divisor.
+     *
+     * @param a
+     *            a positive number
+     * @param b
+     *            a positive number
+     * @return the greatest common divisor
+     */
+    private static long gcd(final long a, final long b) {
+        long x = a;
+        long y = b;
+        while (y != 0) {
+            final long t = x % y;
+            x = y;
+            y = t;
+        }
+        return x;
+    }
+
 }
@@ -15,13 +15,7 @@
  */
 package es.udc.fi.dc.irlab.metarecsys.algorithms;
 
-import java.util.Comparator;
-import java.util.Set;
-import java.util.TreeMap;
-
-import es.udc.fi.dc.irlab.metarecsys.structures.MutableDouble;
-import es.udc.fi.dc.irlab.metarecsys.structures.RunFile;
-import net.openhft.koloboke.collect.set.LongSet;
+import es.udc.fi.dc.irlab.metarecsys.structures.TopKCollector;
 
 /**
  * The Class Condorcet.
@@ -45,56 +39,131 @@ public final class Condorcet extends RankAggregation {
         super(maxRank);
     }
 
+    /** Sublists shorter than this are sorted by insertion. */
+    private static final int INSERTION_SORT_THRESHOLD = 7;
+
     /**
-     * Gets the Condorcet comparator. Be careful, this {@code Comparator<Long>}
-     * is not transitive and some sorting algorithms may fail. For example, Java
-     * 7+ TimSort implementation does not work with it. This is the reason why
-     * we set java.util.Arrays.useLegacyMergeSort property to true.
+     * Compare two candidates by pairwise majority: each run votes for the
+     * candidate it ranks better. The relation is not transitive.
      *
-     * The Condorcet comparator returns -1 if item x wins, 0 if it is a tie, 1
-     * otherwise.
+     * @param ranks
+     *            the rank vectors of the candidates in each run
+     * @param numRuns
+     *            the number of runs
+     * @param x
+     *            the first candidate index
+     * @param y
+     *            the second candidate index
+     * @return -1 if candidate x wins, 0 if it is a tie, 1 otherwise
+     */
+    static int majority(final int[][] ranks, final int numRuns, final int x, final int y) {
+        int count = 0;
+        for (int r = 0; r < numRuns; r++) {
+            count += Integer.compare(ranks[r][x], ranks[r][y]);
+        }
+        return Integer.signum(count);
+    }
+
+    /**
+     * Sort the given candidates by pairwise majority. Since the majority
+     * relation is not transitive, the result depends on the sorting algorithm:
+     * this is a stable merge sort which sorts short sublists by insertion and
+     * skips merging sublists that are already in order. Its result is fully
+     * determined by the initial order of the candidates.
      *
-     * @param userID
-     *            the user id
-     * @param runs
-     *            the runs
-     * @return the condorcet comparator
+     * @param src
+     *            the source array (a copy of the candidates)
+     * @param dest
+     *            the destination array (the candidates)
+     * @param low
+     *            the start of the sublist in the destination array
+     * @param high
+     *            the end of the sublist in the destination array
+     * @param off
+     *            the offset of the source array with respect to the
+     *            destination array
+     * @param ranks
+     *            the rank vectors of the candidates in each run
+     * @param numRuns
+     *            the number of runs
      */
-    public static Comparator<Long> getCondorcetComparator(final long userID,
-            final Set<RunFile> runs) {
-
-        return (x, y) -> {
-            int count = 0;
-            for (final RunFile run : runs) {
-                count += Integer.compare(run.getRank(userID, x, Integer.MAX_VALUE),
-                        run.getRank(userID, y, Integer.MAX_VALUE));
+    private static void mergeSort(final int[] src, final int[] dest, final int low,
+            final int high, final int off, final int[][] ranks, final int numRuns) {
+
+        final int length = high - low;
+
+        if (length < INSERTION_SORT_THRESHOLD) {
+            for (int i = low; i < high; i++) {
+                for (int j = i; j > low && majority(ranks, numRuns, dest[j - 1], dest[j]) > 0;
+                        j--) {
+                    final int t = dest[j];
+                    dest[j] = dest[j - 1];
+                    dest[j - 1] = t;
+                }
             }
-            return count == 0 ? count : count / Math.abs(count);
-        };
+            return;
+        }
+
+        // Sort each half of the source using the destination as scratch
+        final int srcLow = low + off;
+        final int srcHigh = high + off;
+        final int mid = (srcLow + srcHigh) >>> 1;
+        mergeSort(dest, src, srcLow, mid, -off, ranks, numRuns);
+        mergeSort(dest, src, mid, srcHigh, -off, ranks, numRuns);
+
+        // Skip merging if the halves are already in order
+        if (majority(ranks, numRuns, src[mid - 1], src[mid]) <= 0) {
+            System.arraycopy(src, srcLow, dest, low, length);
+            return;
+        }
 
+        for (int i = low, p = srcLow, q = mid; i < high; i++) {
+            if (q >= srcHigh || p < mid && majority(ranks, numRuns, src[p], src[q]) <= 0) {
+                dest[i] = src[p++];
+            } else {
+                dest[i] = src[q++];
+            }
+        }
+
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.algorithms.RankAggregation#costFactor(int,
+     * double)
+     */
+    @Override
+    protected double costFactor(final int numRuns, final double candidates) {
+        // Merge sort with majority comparisons
+        return numRuns * (1 + Math.log(candidates) / Math.log(2));
     }
 
     /*
      * (non-Javadoc)
      *
-     * @see es.udc.fi.dc.irlab.metarecsys.algorithms.MetasearchAlgorithm#
-     * computeUserRanking(java.util.Set, long,
-     * net.openhft.koloboke.collect.set.LongSet, java.util.TreeMap)
+     * @see es.udc.fi.dc.irlab.metarecsys.algorithms.RankAggregation#
+     * computeUserRanking(es.udc.fi.dc.irlab.metarecsys.algorithms.UserRankings,
+     * es.udc.fi.dc.irlab.metarecsys.structures.TopKCollector)
      */
     @Override
-    protected void computeUserRanking(final Set<RunFile> runs, final long userID,
-            final LongSet candidateItems, final TreeMap<Double, LongSet> ranking) {
+    protected void computeUserRanking(final UserRankings user, final TopKCollector ranking) {
 
-        final MutableDouble score = new MutableDouble(maxRank);
+        final int n = user.numCandidates();
+        final int[][] ranks = user.getRankVectors();
 
-        // Condorcet comparator.
-        final Comparator<Long> cmp = getCondorcetComparator(userID, runs);
+        // Candidates start in order of appearance
+        final int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        mergeSort(order.clone(), order, 0, n, 0, ranks, user.numRuns());
 
-        // Sort items according to Condorcet comparator
-        candidateItems.stream().sorted(cmp).forEachOrdered(itemID -> {
-            saveScore(ranking, itemID, score.get());
-            score.add(-1.0);
-        });
+        double score = maxRank;
+        for (int i = 0; i < n; i++) {
+            saveScore(ranking, user.getItemID(user.getCandidate(order[i])), score);
+            score -= 1.0;
+        }
 
     }
 
@@ -15,16 +15,9 @@
  */
 package es.udc.fi.dc.irlab.metarecsys.algorithms;
 
-import java.util.Comparator;
-import java.util.Set;
-import java.util.TreeMap;
-import java.util.function.LongConsumer;
+import java.util.Arrays;
 
-import es.udc.fi.dc.irlab.metarecsys.structures.RunFile;
-import net.openhft.koloboke.collect.map.LongIntMap;
-import net.openhft.koloboke.collect.map.hash.HashLongIntMaps;
-import net.openhft.koloboke.collect.set.LongSet;
-import net.openhft.koloboke.function.LongIntConsumer;
+import es.udc.fi.dc.irlab.metarecsys.structures.TopKCollector;
 
 /**
  * The Class Copeland. Copeland's method or Copeland's pairwise aggregation
@@ -48,33 +41,218 @@ public final class Copeland extends RankAggregation {
     /*
      * (non-Javadoc)
      *
-     * @see es.udc.fi.dc.irlab.metarecsys.algorithms.MetasearchAlgorithm#
-     * computeUserRanking(java.util.Set, long,
-     * net.openhft.koloboke.collect.set.LongSet, java.util.TreeMap)
+     * @see es.udc.fi.dc.irlab.metarecsys.algorithms.RankAggregation#costFactor(int,
+     * double)
      */
     @Override
-    protected void computeUserRanking(final Set<RunFile> runs, final long userID,
-            final LongSet candidateItems, final TreeMap<Double, LongSet> ranking) {
+    protected double costFactor(final int numRuns, final double candidates) {
+        if (numRuns == 2) {
+            // Dominance counting
+            return 1 + Math.log(candidates) / Math.log(2);
+        }
+        // Every pair of candidates in every run
+        return candidates;
+    }
 
-        // Condorcet comparator
-        final Comparator<Long> cmp = Condorcet.getCondorcetComparator(userID, runs);
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.algorithms.RankAggregation#
+     * computeUserRanking(es.udc.fi.dc.irlab.metarecsys.algorithms.UserRankings,
+     * es.udc.fi.dc.irlab.metarecsys.structures.TopKCollector)
+     */
+    @Override
+    protected void computeUserRanking(final UserRankings user,
+            final TopKCollector ranking) {
+
+        final int n = user.numCandidates();
+        final int numRuns = user.numRuns();
+        final int[][] ranks = user.getRankVectors();
 
         // Scores stores (wins - losses)
-        final LongIntMap scores = HashLongIntMaps.newUpdatableMap(candidateItems.size());
-        candidateItems.forEach((LongConsumer) itemID1 -> {
-            candidateItems.forEach((LongConsumer) itemID2 -> {
-                if (itemID1 < itemID2) {
-                    final int score = cmp.compare(itemID1, itemID2);
-                    scores.addValue(itemID1, -score);
-                    scores.addValue(itemID2, score);
+        final int[] scores = new int[n];
+        if (numRuns == 2) {
+            dominanceScores(ranks[0], ranks[1], n, scores);
+        } else {
+            pairwiseScores(ranks, numRuns, n, scores);
+        }
+
+        for (int i = 0; i < n; i++) {
+            saveScore(ranking, user.getItemID(user.getCandidate(i)), scores[i]);
+        }
+
+    }
+
+    /**
+     * Compute the Copeland scores (wins - losses) by comparing every pair of
+     * candidates. It takes O(n^2 runs) time.
+     *
+     * @param ranks
+     *            the rank vectors of the candidates in each run
+     * @param numRuns
+     *            the number of runs
+     * @param n
+     *            the number of candidates
+     * @param scores
+     *            the scores (initially zero)
+     */
+    static void pairwiseScores(final int[][] ranks, final int numRuns, final int n,
+            final int[] scores) {
+
+        // Candidate-major copy of the ranks so that each pair reads contiguous memory
+        final int[] vectors = new int[n * numRuns];
+        for (int r = 0; r < numRuns; r++) {
+            final int[] runRanks = ranks[r];
+            for (int i = 0, k = r; i < n; i++, k += numRuns) {
+                vectors[k] = runRanks[i];
+            }
+        }
+
+        for (int i = 0, x = 0; i < n; i++, x += numRuns) {
+            int score = 0;
+            for (int j = i + 1, y = x + numRuns; j < n; j++, y += numRuns) {
+                int count = 0;
+                for (int r = 0; r < numRuns; r++) {
+                    count += Integer.compare(vectors[x + r], vectors[y + r]);
                 }
-            });
-        });
+                final int vote = Integer.signum(count);
+                score -= vote;
+                scores[j] += vote;
+            }
+            scores[i] += score;
+        }
 
-        scores.forEach((LongIntConsumer) (itemID, score) -> {
-            saveScore(ranking, itemID, score);
-        });
+    }
+
+    /**
+     * Compute the Copeland scores (wins - losses) of two runs by dominance
+     * counting. It takes O(n log n) time.
+     *
+     * With two runs, candidate i beats j when it is better in one run and not
+     * worse in the other. Hence, its wins are the candidates which are not
+     * better than i in any run, minus those tied with i in both runs, and its
+     * losses are the candidates which are not worse in any run, minus the same
+     * ties. The ties cancel out: the score of i is the number of candidates
+     * with ranks greater or equal in both runs minus the number of candidates
+     * with ranks lower or equal in both runs.
+     *
+     * @param ranks1
+     *            the ranks of the candidates in the first run
+     * @param ranks2
+     *            the ranks of the candidates in the second run
+     * @param n
+     *            the number of candidates
+     * @param scores
+     *            the scores (initially zero)
+     */
+    static void dominanceScores(final int[] ranks1, final int[] ranks2, final int n,
+            final int[] scores) {
 
+        if (n == 0) {
+            return;
+        }
+
+        // Compress the ranks of the second run to 1..m
+        final int[] values = Arrays.copyOf(ranks2, n);
+        Arrays.sort(values);
+        int m = 1;
+        for (int i = 1; i < n; i++) {
+            if (values[i] != values[m - 1]) {
+                values[m++] = values[i];
+            }
+        }
+        final int[] keys2 = new int[n];
+        for (int i = 0; i < n; i++) {
+            keys2[i] = Arrays.binarySearch(values, 0, m, ranks2[i]) + 1;
+        }
+
+        // Sort the candidates by their rank in the first run
+        final long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = (long) ranks1[i] << 32 | i;
+        }
+        Arrays.sort(order);
+
+        final int[] tree = new int[m + 1];
+
+        // Candidates with ranks lower or equal in both runs
+        for (int start = 0, end; start < n; start = end) {
+            end = groupEnd(order, start, 1);
+            for (int k = start; k < end; k++) {
+                add(tree, keys2[(int) order[k]]);
+            }
+            for (int k = start; k < end; k++) {
+                final int i = (int) order[k];
+                scores[i] -= prefixCount(tree, keys2[i]);
+            }
+        }
+
+        // Candidates with ranks greater or equal in both runs
+        Arrays.fill(tree, 0);
+        for (int start = n - 1, end, inserted = 0; start >= 0; start = end) {
+            end = groupEnd(order, start, -1);
+            for (int k = start; k > end; k--) {
+                add(tree, keys2[(int) order[k]]);
+                inserted++;
+            }
+            for (int k = start; k > end; k--) {
+                final int i = (int) order[k];
+                scores[i] += inserted - prefixCount(tree, keys2[i] - 1);
+            }
+        }
+
+    }
+
+    /**
+     * Find the end of a group of candidates with the same rank in the first
+     * run.
+     *
+     * @param order
+     *            the candidates sorted by rank
+     * @param start
+     *            the first candidate of the group
+     * @param step
+     *            the direction (1 or -1)
+     * @return the position after the last candidate of the group
+     */
+    private static int groupEnd(final long[] order, final int start, final int step) {
+        final long rank = order[start] >> 32;
+        int end = start + step;
+        while (end >= 0 && end < order.length && order[end] >> 32 == rank) {
+            end += step;
+        }
+        return end;
+    }
+
+    /**
+     * Add one to the given position of a Fenwick tree.
+     *
+     * @param tree
+     *            the tree
+     * @param key
+     *            the position (from 1)
+     */
+    private static void add(final int[] tree, final int key) {
+        for (int k = key; k < tree.length; k += k & -k) {
+            tree[k]++;
+        }
+    }
+
+    /**
+     * Count the elements of a Fenwick tree up to the given position.
+     *
+     * @param tree
+     *            the tree
+     * @param key
+     *            the position (from 1, or 0 for none)
+     * @return the count
+     */
+    private static int prefixCount(final int[] tree, final int key) {
+        int count = 0;
+        for (int k = key; k > 0; k -= k & -k) {
+            count += tree[k];
+        }
+        return count;
     }
 
     /*
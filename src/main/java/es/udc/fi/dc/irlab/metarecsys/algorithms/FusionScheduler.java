@@ -0,0 +1,401 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.algorithms;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The Class FusionScheduler. It runs fusion tasks on a fixed number of threads
+ * with a bounded number of pending tasks: submitting a task blocks while the
+ * queue is full, so the producers never get far ahead of the workers.
+ *
+ * Each task carries an estimated cost. Pending tasks are run longest first,
+ * and the estimated and actual costs of the tasks are aggregated by label and
+ * reported when the scheduler is closed.
+ *
+ * A scheduler is closed once all its tasks have been submitted. Closing it
+ * waits for the tasks and rethrows the first failure of a task or of the
+ * action of a group, if any.
+ *
+ * The tasks may split their work into smaller pieces run on a fork-join pool
+ * of the scheduler with as many threads as the scheduler, so the number of
+ * threads bounds the CPU used by the fusion.
+ *
+ * The tasks submitted through a group share the threads, the fork-join pool,
+ * the queue and the report of the scheduler. Closing a group does not wait
+ * for its tasks: it runs an action once all of them have finished, e.g., to
+ * release the runs they use while the tasks of the next group are submitted.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public final class FusionScheduler implements AutoCloseable {
+
+    /** The executor. */
+    private final ThreadPoolExecutor executor;
+
+    /** The pool of the pieces of work of the tasks. */
+    private final ForkJoinPool forkJoinPool;
+
+    /** The permits of the running and queued tasks. */
+    private final Semaphore slots;
+
+    /** The number of submitted tasks. */
+    private final AtomicLong submitted;
+
+    /** The costs of the finished tasks by label. */
+    private final Map<String, CostStats> costs;
+
+    /** The first failure of a task or of the action of a group. */
+    private final AtomicReference<Throwable> failure;
+
+    /** The action run when the tasks of a group have finished (null if not a group). */
+    private final Runnable onFinish;
+
+    /** The number of unfinished tasks of a group, plus one while it is open. */
+    private final AtomicLong unfinished = new AtomicLong(1);
+
+    /** Whether the scheduler has been closed. */
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Instantiates a new fusion scheduler.
+     *
+     * @param numThreads
+     *            the number of threads
+     * @param queueCapacity
+     *            the maximum number of tasks waiting for a thread
+     */
+    public FusionScheduler(final int numThreads, final int queueCapacity) {
+
+        if (numThreads < 1) {
+            throw new IllegalArgumentException(numThreads + " is not a valid number of threads");
+        }
+        if (queueCapacity < 0) {
+            throw new IllegalArgumentException(queueCapacity + " is not a valid queue capacity");
+        }
+
+        this.executor = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        this.forkJoinPool = new ForkJoinPool(numThreads);
+        this.slots = new Semaphore(numThreads + queueCapacity);
+        this.submitted = new AtomicLong();
+        this.costs = new ConcurrentHashMap<String, CostStats>();
+        this.failure = new AtomicReference<>();
+        this.onFinish = null;
+
+    }
+
+    /**
+     * Instantiates a new group of tasks of the given scheduler.
+     *
+     * @param scheduler
+     *            the scheduler
+     * @param onFinish
+     *            the action run when the tasks of the group have finished
+     */
+    private FusionScheduler(final FusionScheduler scheduler, final Runnable onFinish) {
+        this.executor = scheduler.executor;
+        this.forkJoinPool = scheduler.forkJoinPool;
+        this.slots = scheduler.slots;
+        this.submitted = scheduler.submitted;
+        this.costs = scheduler.costs;
+        this.failure = scheduler.failure;
+        this.onFinish = onFinish;
+    }
+
+    /**
+     * Create a group of tasks run by this scheduler. Once the group has been
+     * closed and all its tasks have finished, the given action is run on the
+     * thread that finished the last one. The failures of its tasks are
+     * rethrown when this scheduler is closed.
+     *
+     * @param onFinish
+     *            the action run when the tasks of the group have finished
+     * @return the group
+     */
+    public FusionScheduler newGroup(final Runnable onFinish) {
+        if (onFinish == null) {
+            throw new IllegalArgumentException();
+        }
+        return new FusionScheduler(this, onFinish);
+    }
+
+    /**
+     * Submit a task without cost. It blocks until there is room in the queue.
+     *
+     * @param task
+     *            the task
+     */
+    public void submit(final Runnable task) {
+        submit("task", 0, task);
+    }
+
+    /**
+     * Submit a task. It blocks until there is room in the queue. Among the
+     * pending tasks, the most expensive one runs first.
+     *
+     * @param label
+     *            the label under which the cost of the task is reported
+     * @param estimatedCost
+     *            the estimated cost of the task
+     * @param task
+     *            the task
+     */
+    public void submit(final String label, final double estimatedCost, final Runnable task) {
+
+        try {
+            slots.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+
+        unfinished.incrementAndGet();
+        try {
+            executor.execute(new CostTask(submitted.getAndIncrement(), estimatedCost, () -> {
+                final long start = System.nanoTime();
+                try {
+                    task.run();
+                } catch (final RuntimeException | Error e) {
+                    Logger.getGlobal().log(Level.SEVERE, "Fusion task failed", e);
+                    failure.compareAndSet(null, e);
+                } finally {
+                    costs.computeIfAbsent(label, key -> new CostStats()).add(estimatedCost,
+                            System.nanoTime() - start);
+                    slots.release();
+                    finishTask();
+                }
+            }));
+        } catch (final RuntimeException e) {
+            slots.release();
+            finishTask();
+            throw e;
+        }
+
+    }
+
+    /**
+     * Count a finished task (or the closing of a group) and run the action of
+     * the group if it was the last one. A failure of the action is recorded
+     * like that of a task.
+     */
+    private void finishTask() {
+        if (unfinished.decrementAndGet() == 0 && onFinish != null) {
+            try {
+                onFinish.run();
+            } catch (final RuntimeException | Error e) {
+                Logger.getGlobal().log(Level.SEVERE, "Group action failed", e);
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of threads.
+     *
+     * @return the number of threads
+     */
+    public int numThreads() {
+        return executor.getCorePoolSize();
+    }
+
+    /**
+     * Gets the fork-join pool where the tasks run their pieces of work. It has
+     * as many threads as the scheduler and it is shut down with it.
+     *
+     * @return the fork-join pool
+     */
+    ForkJoinPool getForkJoinPool() {
+        return forkJoinPool;
+    }
+
+    /**
+     * Build a report of the estimated and actual costs of the finished tasks
+     * by label. The estimated costs are scaled so that their total equals the
+     * total actual time.
+     *
+     * @return the report
+     */
+    public String report() {
+
+        final Map<String, CostStats> sorted = new TreeMap<String, CostStats>(costs);
+        double totalEstimated = 0;
+        long totalNanos = 0;
+        for (final CostStats stats : sorted.values()) {
+            totalEstimated += stats.estimated;
+            totalNanos += stats.nanos;
+        }
+        final double scale = totalEstimated > 0 ? totalNanos / totalEstimated : 0;
+
+        final StringBuilder report = new StringBuilder(String.format(Locale.ENGLISH,
+                "%-30s %8s %14s %14s%n", "task", "count", "estimated (s)", "actual (s)"));
+        sorted.forEach((label, stats) -> {
+            report.append(String.format(Locale.ENGLISH, "%-30s %8d %14.3f %14.3f%n", label,
+                    stats.count, stats.estimated * scale / 1e9, stats.nanos / 1e9));
+        });
+
+        return report.toString();
+
+    }
+
+    /**
+     * Wait for all the submitted tasks and release the threads. No tasks can
+     * be submitted afterwards. Closing a group does not wait: it only marks
+     * that no more tasks will be submitted through it.
+     *
+     * @throws RuntimeException
+     *             the first failure of a task or of the action of a group
+     * @throws Error
+     *             the first failure of a task or of the action of a group
+     */
+    @Override
+    public void close() {
+
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (onFinish != null) {
+            finishTask();
+            return;
+        }
+
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            forkJoinPool.shutdown();
+        }
+
+        if (!costs.isEmpty()) {
+            Logger.getGlobal().info("Fusion costs:\n" + report());
+        }
+
+        final Throwable e = failure.get();
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        if (e != null) {
+            throw (RuntimeException) e;
+        }
+
+    }
+
+    /**
+     * The Class CostTask. A task ordered by decreasing estimated cost and then
+     * by order of submission.
+     *
+     * @author daniel.valcarce@udc.es
+     */
+    private static final class CostTask implements Runnable, Comparable<CostTask> {
+
+        /** The order of submission. */
+        private final long sequence;
+
+        /** The estimated cost. */
+        private final double estimatedCost;
+
+        /** The task. */
+        private final Runnable task;
+
+        /**
+         * Instantiates a new cost task.
+         *
+         * @param sequence
+         *            the order of submission
+         * @param estimatedCost
+         *            the estimated cost
+         * @param task
+         *            the task
+         */
+        CostTask(final long sequence, final double estimatedCost, final Runnable task) {
+            this.sequence = sequence;
+            this.estimatedCost = estimatedCost;
+            this.task = task;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.lang.Comparable#compareTo(java.lang.Object)
+         */
+        @Override
+        public int compareTo(final CostTask other) {
+            final int cmp = Double.compare(other.estimatedCost, estimatedCost);
+            return cmp != 0 ? cmp : Long.compare(sequence, other.sequence);
+        }
+
+    }
+
+    /**
+     * The Class CostStats. The aggregated costs of the tasks with the same
+     * label.
+     *
+     * @author daniel.valcarce@udc.es
+     */
+    private static final class CostStats {
+
+        /** The number of tasks. */
+        private long count;
+
+        /** The sum of the estimated costs. */
+        private double estimated;
+
+        /** The sum of the actual times in nanoseconds. */
+        private long nanos;
+
+        /**
+         * Add the costs of a task.
+         *
+         * @param estimatedCost
+         *            the estimated cost
+         * @param elapsed
+         *            the actual time in nanoseconds
+         */
+        synchronized void add(final double estimatedCost, final long elapsed) {
+            count++;
+            estimated += estimatedCost;
+            nanos += elapsed;
+        }
+
+    }
+
+}
@@ -15,28 +15,17 @@
  */
 package es.udc.fi.dc.irlab.metarecsys.algorithms;
 
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.function.LongConsumer;
-import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
+import es.udc.fi.dc.irlab.metarecsys.structures.FolderOutputStore;
+import es.udc.fi.dc.irlab.metarecsys.structures.OutputStore;
 import es.udc.fi.dc.irlab.metarecsys.structures.RunFile;
-import net.openhft.koloboke.collect.set.LongSet;
-import net.openhft.koloboke.collect.set.hash.HashLongSets;
+import es.udc.fi.dc.irlab.metarecsys.structures.TopKCollector;
+import es.udc.fi.dc.irlab.metarecsys.structures.TrecEncoder;
 
 /**
  * The Class MetasearchAlgorithm.
@@ -45,13 +34,6 @@ import net.openhft.koloboke.collect.set.hash.HashLongSets;
  */
 public abstract class RankAggregation {
 
-    /** The number of available processors. */
-    private static int NUM_PROCESSORS = Runtime.getRuntime().availableProcessors();
-
-    /** The Constant pool. */
-    private final static ThreadPoolExecutor pool = new ThreadPoolExecutor(NUM_PROCESSORS,
-            NUM_PROCESSORS, 5, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>());
-
     /**
      * The Functional Interface MetasearchBuilder.
      *
@@ -83,18 +65,6 @@ public abstract class RankAggregation {
         algorithmsMap.put("combMNZ", maxRank -> new CombMNZ(maxRank));
     }
 
-    /**
-     * Finish pool.
-     */
-    public static void finishPool() {
-        pool.shutdown();
-        try {
-            pool.awaitTermination(5, TimeUnit.DAYS);
-        } catch (final InterruptedException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     /** The max rank. */
     protected int maxRank;
 
@@ -129,9 +99,72 @@ public abstract class RankAggregation {
 
     }
 
+    /**
+     * Check whether the ranking of a user only depends on the values
+     * accumulated by {@link UserRankings} (number of runs, sum of ranks and
+     * sum of scores of each item). The fusion of a combination can then be
+     * derived from the fusion of its subsets.
+     *
+     * @return true if the algorithm is additive
+     */
+    public boolean isAdditive() {
+        return false;
+    }
+
+    /**
+     * Check whether the algorithm ranks a located user by reading only the
+     * entries it needs instead of the accumulated values. The rankings of the
+     * user are then not accumulated before calling
+     * {@link #computeUserRanking(UserRankings, TopKCollector)}.
+     *
+     * @return true if the algorithm may rank users which are only located
+     * @see UserRankings#locate(int)
+     */
+    boolean usesThreshold() {
+        return false;
+    }
+
+    /**
+     * Estimate the cost of fusing a combination of runs. It is the number of
+     * entries of the runs weighted by the cost of ranking each candidate of a
+     * user, assuming that every user has the same number of candidates.
+     *
+     * @param numRuns
+     *            the number of runs
+     * @param numUsers
+     *            the number of users
+     * @param numEntries
+     *            the total number of entries of the runs
+     * @return the estimated cost
+     */
+    public final double estimateCost(final int numRuns, final long numUsers,
+            final long numEntries) {
+        if (numUsers == 0) {
+            return 0;
+        }
+        final double candidates = Math.min((double) numEntries / numUsers, maxRank * numRuns);
+        return numEntries * costFactor(numRuns, candidates);
+    }
+
+    /**
+     * Gets the relative cost of ranking each candidate of a user. It is
+     * constant for algorithms that are linear in the number of candidates.
+     *
+     * @param numRuns
+     *            the number of runs
+     * @param candidates
+     *            the number of candidates of the user
+     * @return the cost factor
+     */
+    protected double costFactor(final int numRuns, final double candidates) {
+        return 1;
+    }
+
     /**
      * Compute all combinations.
      *
+     * @param scheduler
+     *            the scheduler of the fusion tasks
      * @param fold
      *            the fold
      * @param runs
@@ -139,117 +172,44 @@ public abstract class RankAggregation {
      * @param outputFolder
      *            the output folder
      */
-    public void computeAllCombinations(final int fold, final List<RunFile> runs,
-            final Path outputFolder) {
-
-        if (!Files.exists(outputFolder)) {
-            try {
-                Files.createDirectory(outputFolder);
-            } catch (final IOException e) {
-                throw new IllegalArgumentException("Unable to create folder " + outputFolder);
-            }
-        } else if (!Files.isDirectory(outputFolder)) {
-            throw new IllegalArgumentException(
-                    "Path " + outputFolder + " exists and it is not a folder");
-        }
-
-        // Create a parallel task for each combination
-        final int n = runs.size();
-        for (int k = 2; k <= n; k++) {
-
-            CombinationUtils.combination(runs, k).forEach(combination -> {
-
-                final Runnable task = () -> {
-                    final LongSet allUsers = HashLongSets.newUpdatableSet();
-                    combination.forEach(run -> {
-                        allUsers.addAll(run.getUsers());
-                    });
-
-                    final String files = String.join("-", combination.stream().map(RunFile::getName)
-                            .sorted().collect(Collectors.toList()));
-                    final String norm = runs.get(0).getNorm().toString();
-                    final String filename = String.format(Locale.ENGLISH, "%s-%s-n%d-%s-fold%d.txt",
-                            this, norm, combination.size(), files, fold);
-
-                    final Path outputPath = outputFolder.resolve(filename);
-                    final Path tempPath = outputFolder.resolve(filename.replace("txt", "tmp"));
-
-                    if (!Files.exists(outputPath) && !Files.exists(tempPath)) {
-                        try {
-                            Files.createFile(tempPath);
-                            Logger.getGlobal().info("Computing " + filename);
-                            fuseAndPrint(fold, combination, allUsers, tempPath);
-                            Files.move(tempPath, outputPath, StandardCopyOption.ATOMIC_MOVE);
-                        } catch (final Exception e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
-
-                };
-
-                pool.execute(task);
-
-            });
-
-        }
-
+    public void computeAllCombinations(final FusionScheduler scheduler, final int fold,
+            final List<RunFile> runs, final Path outputFolder) {
+        computeAllCombinations(scheduler, fold, runs, outputFolder, 2, runs.size());
     }
 
     /**
-     * Fuse the specified combination of runs and print the result.
+     * Compute all combinations with a number of runs in the given range.
      *
+     * @param scheduler
+     *            the scheduler of the fusion tasks
      * @param fold
      *            the fold
      * @param runs
-     *            the runs of the current combination
-     * @param allUsers
-     *            all the users in the current combination
-     * @param outputFile
-     *            the path to the output file
+     *            the runs
+     * @param outputFolder
+     *            the output folder
+     * @param minK
+     *            the minimum number of runs of a combination
+     * @param maxK
+     *            the maximum number of runs of a combination
+     * @see CombinationFusion#computeAllCombinations(FusionScheduler, int, List,
+     *      OutputStore, int, int)
      */
-    protected final void fuseAndPrint(final int fold, final Set<RunFile> runs,
-            final LongSet allUsers, final Path outputFile) {
-
-        try (final PrintWriter writer = new PrintWriter(Files.newBufferedWriter(outputFile))) {
-
-            final LongSet all = HashLongSets.newUpdatableSet(maxRank);
-            runs.forEach(run -> {
-                all.addAll(run.getItems());
-            });
-
-            allUsers.forEach((LongConsumer) userID -> {
-                final TreeMap<Double, LongSet> ranking = new TreeMap<Double, LongSet>(
-                        Collections.reverseOrder());
-
-                final LongSet candidateItems = HashLongSets.newUpdatableSet(maxRank);
-                runs.forEach(run -> {
-                    candidateItems.addAll(run.getRanking(userID).keySet());
-                });
-
-                computeUserRanking(runs, userID, candidateItems, ranking);
-                printRanking(userID, ranking, writer);
-            });
-
-        } catch (final IOException e) {
-            throw new RuntimeException(e);
-        }
-
+    public void computeAllCombinations(final FusionScheduler scheduler, final int fold,
+            final List<RunFile> runs, final Path outputFolder, final int minK, final int maxK) {
+        new CombinationFusion(Collections.singletonList(this)).computeAllCombinations(scheduler,
+                fold, runs, new FolderOutputStore(outputFolder), minK, maxK);
     }
 
     /**
      * Compute user ranking.
      *
-     * @param runs
-     *            the runs
-     * @param userID
-     *            the user id
-     * @param candidateItems
-     *            the candidate items
+     * @param user
+     *            the rankings of the user in the runs
      * @param ranking
      *            the ranking
      */
-    protected abstract void computeUserRanking(Set<RunFile> runs, long userID,
-            LongSet candidateItems, TreeMap<Double, LongSet> ranking);
+    protected abstract void computeUserRanking(UserRankings user, TopKCollector ranking);
 
     /**
      * Save the score for the given itemID in the ranking structure.
@@ -261,15 +221,9 @@ public abstract class RankAggregation {
      * @param score
      *            the score
      */
-    protected final void saveScore(final TreeMap<Double, LongSet> ranking, final long itemID,
+    protected final void saveScore(final TopKCollector ranking, final long itemID,
             final double score) {
-
-        if (ranking.containsKey(score)) {
-            ranking.get(score).add(itemID);
-        } else {
-            ranking.put(score, HashLongSets.newUpdatableSet(new long[] { itemID }));
-        }
-
+        ranking.add(itemID, score);
     }
 
     /**
@@ -279,28 +233,21 @@ public abstract class RankAggregation {
      *            the userID
      * @param ranking
      *            the ranking
-     * @param writer
-     *            the buffered writer
+     * @param encoder
+     *            the encoder of the output
      */
-    private void printRanking(final long userID, final TreeMap<Double, LongSet> ranking,
-            final PrintWriter writer) {
+    void printRanking(final long userID, final TopKCollector ranking,
+            final TrecEncoder encoder) {
 
         final String blank = "-";
 
-        int rank = 0;
         String recommenderName = this.toString();
 
-        for (final Map.Entry<Double, LongSet> entry : ranking.entrySet()) {
-            final double score = entry.getKey();
-            final LongSet items = entry.getValue();
-            for (final long itemID : items) {
-                writer.println(String.format(Locale.ENGLISH, "%d\tQ0\t%d\t%d\t%f\t%s", userID,
-                        itemID, rank, score, recommenderName));
-                recommenderName = blank;
-                if (++rank == maxRank) {
-                    return;
-                }
-            }
+        ranking.sort();
+        for (int rank = 0; rank < ranking.size(); rank++) {
+            encoder.appendLine(userID, ranking.getItem(rank), rank, ranking.getScore(rank),
+                    recommenderName);
+            recommenderName = blank;
         }
 
     }
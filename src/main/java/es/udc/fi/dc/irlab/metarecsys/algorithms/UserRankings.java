@@ -0,0 +1,606 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.algorithms;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+import es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings;
+import es.udc.fi.dc.irlab.metarecsys.structures.FoldDictionary;
+import es.udc.fi.dc.irlab.metarecsys.structures.RunCursor;
+import es.udc.fi.dc.irlab.metarecsys.structures.RunFile;
+import net.openhft.koloboke.collect.map.LongIntMap;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMaps;
+
+/**
+ * The Class UserRankings. It gives access to the rankings of one user in a
+ * combination of runs and accumulates them in dense arrays indexed by item key.
+ *
+ * Loading a user walks the ranking of the user in each run once. For each
+ * candidate item, it accumulates the number of runs that rank it, the sum of
+ * its ranks, the number of runs that score it and the sum of its scores.
+ *
+ * The runs are ordered by name, so the candidates and the accumulated values
+ * do not depend on the order in which the runs are given. An instance is not
+ * thread-safe: each fusion task uses its own.
+ *
+ * A user can also be located without accumulating its rankings, so that an
+ * algorithm reads only the entries it needs (see {@link #locate(int)}).
+ *
+ * An instance created for streaming has no runs nor dictionary: it loads each
+ * user from cursors over the run files and numbers the items of each user on
+ * the fly.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public final class UserRankings {
+
+    /** The runs ordered by name (null when streaming). */
+    private final RunFile[] runs;
+
+    /** The dictionary of the fold (null when streaming). */
+    private final FoldDictionary dictionary;
+
+    /** The item key of each item id of the current user (null if not streaming). */
+    private final LongIntMap streamKeys;
+
+    /** The item id of each item key of the current user when streaming. */
+    private long[] streamItems;
+
+    /** The current user id when streaming. */
+    private long streamUserID;
+
+    /** The item keys of the current user in each run when streaming. */
+    private int[][] streamRunKeys;
+
+    /** The ranks of the current user in each run when streaming. */
+    private int[][] streamRunRanks;
+
+    /** The current user key. */
+    private int userKey = -1;
+
+    /** The position of the first entry of the current user in each run. */
+    private final int[] starts;
+
+    /** The position after the last entry of the current user in each run. */
+    private final int[] ends;
+
+    /** The index of the current user in each run (-1 if not present). */
+    private final int[] userIndexes;
+
+    /** Whether the rankings of the current user have been accumulated. */
+    private boolean accumulated;
+
+    /** The candidate item keys in order of appearance. */
+    private int[] candidates = new int[64];
+
+    /** The number of candidates. */
+    private int numCandidates;
+
+    /** The candidate index of each item key. */
+    private int[] candidateIndexes;
+
+    /** The rank vectors of the candidates in each run. */
+    private final int[][] rankVectors;
+
+    /** The last stamp with which each item key was accumulated. */
+    private final int[] stamps;
+
+    /** The current stamp. */
+    private int stamp;
+
+    /** The number of runs that rank each item key. */
+    private int[] hits;
+
+    /** The sum of the ranks of each item key. */
+    private long[] rankSums;
+
+    /** The number of runs that score each item key. */
+    private int[] counts;
+
+    /** The sum of the scores of each item key. */
+    private double[] sums;
+
+    /**
+     * Instantiates a new user rankings for the given runs. The runs are
+     * encoded with a shared dictionary if they are not already.
+     *
+     * @param runs
+     *            the runs of the combination
+     */
+    public UserRankings(final Collection<RunFile> runs) {
+
+        this.dictionary = FoldDictionary.encode(runs);
+        this.runs = runs.toArray(new RunFile[runs.size()]);
+        Arrays.sort(this.runs, Comparator.comparing(RunFile::getName));
+
+        this.starts = new int[this.runs.length];
+        this.ends = new int[this.runs.length];
+        this.userIndexes = new int[this.runs.length];
+
+        final int numItems = dictionary.numItems();
+        this.candidateIndexes = new int[numItems];
+        this.rankVectors = new int[this.runs.length][64];
+        this.stamps = new int[numItems];
+        this.hits = new int[numItems];
+        this.rankSums = new long[numItems];
+        this.counts = new int[numItems];
+        this.sums = new double[numItems];
+        this.streamKeys = null;
+
+    }
+
+    /**
+     * Instantiates a new user rankings for streaming the given number of
+     * runs.
+     *
+     * @param numRuns
+     *            the number of runs of the combination
+     * @see #load(long, RunCursor[])
+     */
+    public UserRankings(final int numRuns) {
+
+        this.runs = null;
+        this.dictionary = null;
+        this.starts = new int[numRuns];
+        this.ends = new int[numRuns];
+        this.userIndexes = null;
+        this.rankVectors = new int[numRuns][64];
+        this.stamps = null;
+
+        this.streamKeys = HashLongIntMaps.newUpdatableMap();
+        this.streamItems = new long[64];
+        this.streamRunKeys = new int[numRuns][64];
+        this.streamRunRanks = new int[numRuns][64];
+        this.candidateIndexes = new int[64];
+        this.hits = new int[64];
+        this.rankSums = new long[64];
+        this.counts = new int[64];
+        this.sums = new double[64];
+
+    }
+
+    /**
+     * Load the rankings of the given user and accumulate them.
+     *
+     * @param newUserKey
+     *            the user key
+     */
+    public void load(final int newUserKey) {
+        locate(newUserKey);
+        accumulate();
+    }
+
+    /**
+     * Locate the rankings of the given user in the runs without accumulating
+     * them.
+     *
+     * @param newUserKey
+     *            the user key
+     * @see #accumulate()
+     */
+    public void locate(final int newUserKey) {
+
+        userKey = newUserKey;
+        numCandidates = 0;
+        accumulated = false;
+
+        for (int r = 0; r < runs.length; r++) {
+            final RunFile run = runs[r];
+            final CompactRankings rankings = run.getRankings();
+            final int u = run.getUserIndex(userKey);
+            userIndexes[r] = u;
+            starts[r] = u < 0 ? 0 : rankings.getStart(u);
+            ends[r] = u < 0 ? 0 : rankings.getEnd(u);
+        }
+
+    }
+
+    /**
+     * Accumulate the rankings of the located user. Nothing is done if they are
+     * already accumulated.
+     */
+    public void accumulate() {
+
+        if (accumulated) {
+            return;
+        }
+        accumulated = true;
+        nextStamp();
+
+        for (int r = 0; r < runs.length; r++) {
+
+            final RunFile run = runs[r];
+            final CompactRankings rankings = run.getRankings();
+
+            for (int pos = starts[r]; pos < ends[r]; pos++) {
+                final int itemKey = run.getItemKey(pos);
+                if (stamps[itemKey] != stamp) {
+                    stamps[itemKey] = stamp;
+                    hits[itemKey] = 0;
+                    rankSums[itemKey] = 0;
+                    counts[itemKey] = 0;
+                    sums[itemKey] = 0.0;
+                    if (numCandidates == candidates.length) {
+                        candidates = Arrays.copyOf(candidates, numCandidates * 2);
+                    }
+                    candidateIndexes[itemKey] = numCandidates;
+                    candidates[numCandidates++] = itemKey;
+                }
+                hits[itemKey]++;
+                rankSums[itemKey] += rankings.getRank(pos);
+                final double score = rankings.getScore(pos);
+                if (!Double.isNaN(score)) {
+                    counts[itemKey]++;
+                    sums[itemKey] += score;
+                }
+            }
+
+        }
+
+    }
+
+    /**
+     * Load the accumulated rankings of the given user from a table built for
+     * the same runs. The rank vectors are not available afterwards.
+     *
+     * @param table
+     *            the table
+     * @param u
+     *            the user index in the table
+     */
+    void load(final AccumulatorTable table, final int u) {
+
+        userKey = table.getUserKey(u);
+        accumulated = true;
+        Arrays.fill(starts, 0);
+        Arrays.fill(ends, 0);
+
+        final int start = table.getStart(u);
+        numCandidates = table.getEnd(u) - start;
+        if (candidates.length < numCandidates) {
+            candidates = new int[Math.max(numCandidates, 2 * candidates.length)];
+        }
+
+        for (int i = 0; i < numCandidates; i++) {
+            final int e = start + i;
+            final int itemKey = table.getItemKey(e);
+            candidates[i] = itemKey;
+            candidateIndexes[itemKey] = i;
+            hits[itemKey] = table.getHits(e);
+            rankSums[itemKey] = table.getRankSum(e);
+            counts[itemKey] = table.getCount(e);
+            sums[itemKey] = table.getSum(e);
+        }
+
+    }
+
+    /**
+     * Load the rankings of the given user from cursors over the runs ordered
+     * by name. The cursors which are not on the user do not rank it. It is
+     * only available for streaming.
+     *
+     * @param userID
+     *            the user id
+     * @param cursors
+     *            the cursors of the runs ordered by name
+     */
+    public void load(final long userID, final RunCursor[] cursors) {
+
+        if (streamKeys == null) {
+            throw new IllegalStateException("The rankings are not streamed");
+        }
+
+        streamUserID = userID;
+        numCandidates = 0;
+        accumulated = true;
+        streamKeys.clear();
+
+        for (int r = 0; r < cursors.length; r++) {
+
+            final RunCursor cursor = cursors[r];
+            starts[r] = 0;
+            ends[r] = 0;
+            if (!cursor.hasUser() || cursor.getUserID() != userID) {
+                continue;
+            }
+
+            final int size = cursor.size();
+            if (streamRunKeys[r].length < size) {
+                streamRunKeys[r] = new int[Math.max(size, 2 * streamRunKeys[r].length)];
+                streamRunRanks[r] = new int[streamRunKeys[r].length];
+            }
+            ends[r] = size;
+
+            for (int i = 0; i < size; i++) {
+                final long itemID = cursor.getItem(i);
+                int itemKey = streamKeys.getOrDefault(itemID, -1);
+                if (itemKey < 0) {
+                    itemKey = numCandidates++;
+                    if (itemKey == streamItems.length) {
+                        growItems(2 * itemKey);
+                    }
+                    streamKeys.put(itemID, itemKey);
+                    streamItems[itemKey] = itemID;
+                    candidates[itemKey] = itemKey;
+                    candidateIndexes[itemKey] = itemKey;
+                    hits[itemKey] = 0;
+                    rankSums[itemKey] = 0;
+                    counts[itemKey] = 0;
+                    sums[itemKey] = 0.0;
+                }
+                final int rank = cursor.getRank(i);
+                streamRunKeys[r][i] = itemKey;
+                streamRunRanks[r][i] = rank;
+                hits[itemKey]++;
+                rankSums[itemKey] += rank;
+                final double score = cursor.getScore(i);
+                if (!Double.isNaN(score)) {
+                    counts[itemKey]++;
+                    sums[itemKey] += score;
+                }
+            }
+
+        }
+
+    }
+
+    /**
+     * Move to a new stamp, so that no item key is marked.
+     */
+    private void nextStamp() {
+        if (++stamp == 0) {
+            Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+    }
+
+    /**
+     * Unmark all the item keys.
+     *
+     * @see #mark(int)
+     */
+    public void clearMarks() {
+        nextStamp();
+    }
+
+    /**
+     * Mark the given item key. The marks are shared with the accumulation of
+     * the rankings, which clears them.
+     *
+     * @param itemKey
+     *            the item key
+     * @return true if the item key was not marked
+     */
+    public boolean mark(final int itemKey) {
+        if (stamps[itemKey] == stamp) {
+            return false;
+        }
+        stamps[itemKey] = stamp;
+        return true;
+    }
+
+    /**
+     * Grow the arrays indexed by item key when streaming.
+     *
+     * @param capacity
+     *            the new capacity
+     */
+    private void growItems(final int capacity) {
+        streamItems = Arrays.copyOf(streamItems, capacity);
+        candidates = Arrays.copyOf(candidates, Math.max(capacity, candidates.length));
+        candidateIndexes = Arrays.copyOf(candidateIndexes, capacity);
+        hits = Arrays.copyOf(hits, capacity);
+        rankSums = Arrays.copyOf(rankSums, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        sums = Arrays.copyOf(sums, capacity);
+    }
+
+    /**
+     * Gets the dictionary of the fold.
+     *
+     * @return the dictionary (null when streaming)
+     */
+    public FoldDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Gets the current user id.
+     *
+     * @return the user id
+     */
+    public long getUserID() {
+        return dictionary == null ? streamUserID : dictionary.getUserID(userKey);
+    }
+
+    /**
+     * Gets the number of runs.
+     *
+     * @return the number of runs
+     */
+    public int numRuns() {
+        return starts.length;
+    }
+
+    /**
+     * Gets the given run. There are no runs when streaming.
+     *
+     * @param r
+     *            the run index
+     * @return the run
+     */
+    public RunFile getRun(final int r) {
+        return runs[r];
+    }
+
+    /**
+     * Check whether the rankings of the current user have been accumulated.
+     *
+     * @return true if the accumulated values are available
+     */
+    public boolean isAccumulated() {
+        return accumulated;
+    }
+
+    /**
+     * Gets the index of the current user in the given run. There are no runs
+     * when streaming.
+     *
+     * @param r
+     *            the run index
+     * @return the user index or -1 if the user is not present
+     */
+    public int getUserIndex(final int r) {
+        return userIndexes[r];
+    }
+
+    /**
+     * Gets the position of the first entry of the current user in the given
+     * run.
+     *
+     * @param r
+     *            the run index
+     * @return the start position
+     */
+    public int getStart(final int r) {
+        return starts[r];
+    }
+
+    /**
+     * Gets the position after the last entry of the current user in the given
+     * run. It equals the start position if the user is not present.
+     *
+     * @param r
+     *            the run index
+     * @return the end position
+     */
+    public int getEnd(final int r) {
+        return ends[r];
+    }
+
+    /**
+     * Gets the rank vectors of the candidates: the rank of the i-th candidate
+     * in the r-th run is {@code getRankVectors()[r][i]}, or
+     * {@link Integer#MAX_VALUE} if the run does not rank it. The arrays are
+     * reused for every user and may be longer than the number of candidates.
+     *
+     * @return the rank vectors
+     */
+    public int[][] getRankVectors() {
+
+        if (rankVectors[0].length < numCandidates) {
+            for (int r = 0; r < rankVectors.length; r++) {
+                rankVectors[r] = new int[Math.max(numCandidates, 2 * rankVectors[r].length)];
+            }
+        }
+
+        for (int r = 0; r < rankVectors.length; r++) {
+            final int[] ranks = rankVectors[r];
+            Arrays.fill(ranks, 0, numCandidates, Integer.MAX_VALUE);
+            if (runs == null) {
+                for (int i = starts[r]; i < ends[r]; i++) {
+                    ranks[candidateIndexes[streamRunKeys[r][i]]] = streamRunRanks[r][i];
+                }
+                continue;
+            }
+            final CompactRankings rankings = runs[r].getRankings();
+            for (int pos = starts[r]; pos < ends[r]; pos++) {
+                ranks[candidateIndexes[runs[r].getItemKey(pos)]] = rankings.getRank(pos);
+            }
+        }
+
+        return rankVectors;
+
+    }
+
+    /**
+     * Gets the number of candidate items.
+     *
+     * @return the number of candidates
+     */
+    public int numCandidates() {
+        return numCandidates;
+    }
+
+    /**
+     * Gets the key of the given candidate item.
+     *
+     * @param i
+     *            the candidate index
+     * @return the item key
+     */
+    public int getCandidate(final int i) {
+        return candidates[i];
+    }
+
+    /**
+     * Gets the id of the given item key.
+     *
+     * @param itemKey
+     *            the item key
+     * @return the item id
+     */
+    public long getItemID(final int itemKey) {
+        return dictionary == null ? streamItems[itemKey] : dictionary.getItemID(itemKey);
+    }
+
+    /**
+     * Gets the number of runs that rank the given candidate item.
+     *
+     * @param itemKey
+     *            the item key
+     * @return the number of runs
+     */
+    public int getHits(final int itemKey) {
+        return hits[itemKey];
+    }
+
+    /**
+     * Gets the sum of the ranks of the given candidate item.
+     *
+     * @param itemKey
+     *            the item key
+     * @return the sum of the ranks
+     */
+    public long getRankSum(final int itemKey) {
+        return rankSums[itemKey];
+    }
+
+    /**
+     * Gets the number of runs that score the given candidate item.
+     *
+     * @param itemKey
+     *            the item key
+     * @return the number of runs
+     */
+    public int getCount(final int itemKey) {
+        return counts[itemKey];
+    }
+
+    /**
+     * Gets the sum of the scores of the given candidate item.
+     *
+     * @param itemKey
+     *            the item key
+     * @return the sum of the scores
+     */
+    public double getSum(final int itemKey) {
+        return sums[itemKey];
+    }
+
+}
@@ -15,9 +15,6 @@
  */
 package es.udc.fi.dc.irlab.metarecsys.normalisation;
 
-import es.udc.fi.dc.irlab.metarecsys.structures.RankScore;
-import net.openhft.koloboke.collect.map.LongObjMap;
-
 /**
  * The Class NoneNormalisation. This class applies no normalisation.
  *
@@ -30,11 +27,10 @@ public final class NoneNormalisation extends NormalisationAlgorithm {
      *
      * @see
      * es.udc.fi.dc.irlab.metarecsys.normalisation.NormalisationAlgorithm#apply(
-     * es.udc.fi.dc.irlab.metarecsys.runs.LongDouble[])
+     * double[], int, int)
      */
     @Override
-    public LongObjMap<RankScore> apply(final LongObjMap<RankScore> prefs) {
-        return prefs;
+    public void apply(final double[] scores, final int from, final int to) {
     }
 
     /*
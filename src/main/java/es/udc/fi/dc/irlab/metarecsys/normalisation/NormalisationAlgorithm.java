@@ -78,13 +78,48 @@ public abstract class NormalisationAlgorithm {
     }
 
     /**
-     * Apply the normalisation to the given user ranking.
+     * Apply the normalisation to the given user ranking. The scores are copied
+     * to an array, normalised with {@link #apply(double[], int, int)} and
+     * written back.
      *
      * @param userRanking
      *            the ranking of a user
      * @return a modified ranking
      */
-    public abstract LongObjMap<RankScore> apply(LongObjMap<RankScore> userRanking);
+    public final LongObjMap<RankScore> apply(final LongObjMap<RankScore> userRanking) {
+
+        final double[] scores = new double[userRanking.size()];
+        int i = 0;
+        for (final RankScore pref : userRanking.values()) {
+            scores[i++] = pref.getScore();
+        }
+
+        apply(scores, 0, scores.length);
+
+        i = 0;
+        for (final RankScore pref : userRanking.values()) {
+            pref.setScore(scores[i++]);
+        }
+
+        return userRanking;
+
+    }
+
+    /**
+     * Apply the normalisation in place to the scores of a user ranking stored
+     * in the given slice of an array. Implementations make a single pass to
+     * compute their statistics and another one to rescale, without
+     * allocating, so they can run inside the parser on the columns being
+     * built.
+     *
+     * @param scores
+     *            the scores
+     * @param from
+     *            the start of the user ranking (inclusive)
+     * @param to
+     *            the end of the user ranking (exclusive)
+     */
+    public abstract void apply(double[] scores, int from, int to);
 
     /*
      * (non-Javadoc)
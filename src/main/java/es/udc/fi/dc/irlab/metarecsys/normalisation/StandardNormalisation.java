@@ -15,9 +15,6 @@
  */
 package es.udc.fi.dc.irlab.metarecsys.normalisation;
 
-import es.udc.fi.dc.irlab.metarecsys.structures.RankScore;
-import net.openhft.koloboke.collect.map.LongObjMap;
-
 /**
  * The Class StandardNormalisation: shift the minimum score to 0.0 and then
  * scale the maximum score to 1.0.
@@ -36,22 +33,22 @@ public final class StandardNormalisation extends NormalisationAlgorithm {
      *
      * @see
      * es.udc.fi.dc.irlab.metarecsys.normalisation.NormalisationAlgorithm#apply(
-     * es.udc.fi.dc.irlab.metarecsys.runs.LongDouble[])
+     * double[], int, int)
      */
     @Override
-    public LongObjMap<RankScore> apply(final LongObjMap<RankScore> userRanking) {
-
-        userRanking.values().stream().mapToDouble(pref -> pref.getScore()).min();
+    public void apply(final double[] scores, final int from, final int to) {
 
-        final double min = userRanking.values().stream().mapToDouble(pref -> pref.getScore()).min()
-                .getAsDouble();
-        final double max = userRanking.values().stream().mapToDouble(pref -> pref.getScore()).max()
-                .getAsDouble();
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = from; i < to; i++) {
+            min = Math.min(min, scores[i]);
+            max = Math.max(max, scores[i]);
+        }
         final double den = max - min;
 
-        userRanking.values().stream().forEach(pref -> pref.setScore((pref.getScore() - min) / den));
-
-        return userRanking;
+        for (int i = from; i < to; i++) {
+            scores[i] = (scores[i] - min) / den;
+        }
 
     }
 
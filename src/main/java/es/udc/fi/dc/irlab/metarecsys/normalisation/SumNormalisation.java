@@ -15,9 +15,6 @@
  */
 package es.udc.fi.dc.irlab.metarecsys.normalisation;
 
-import es.udc.fi.dc.irlab.metarecsys.structures.RankScore;
-import net.openhft.koloboke.collect.map.LongObjMap;
-
 /**
  * The Class SumNormalisation. Shift the minimum score to 0.0 and then scale the
  * sum of scores to 1.0.
@@ -36,18 +33,34 @@ public final class SumNormalisation extends NormalisationAlgorithm {
      *
      * @see
      * es.udc.fi.dc.irlab.metarecsys.normalisation.NormalisationAlgorithm#apply(
-     * es.udc.fi.dc.irlab.metarecsys.runs.LongDouble[])
+     * double[], int, int)
      */
     @Override
-    public LongObjMap<RankScore> apply(final LongObjMap<RankScore> userRanking) {
-        final double min = userRanking.values().stream().mapToDouble(pref -> pref.getScore()).min()
-                .getAsDouble();
-        final double sum = userRanking.values().stream().mapToDouble(pref -> pref.getScore()).sum();
-        final double den = sum - min * userRanking.size();
+    public void apply(final double[] scores, final int from, final int to) {
+
+        // Kahan summation, as in DoubleStream.sum(), so that long rankings do
+        // not lose the small scores of the tail
+        double min = Double.POSITIVE_INFINITY;
+        double sum = 0.0;
+        double compensation = 0.0;
+        double simpleSum = 0.0;
+        for (int i = from; i < to; i++) {
+            min = Math.min(min, scores[i]);
+            final double y = scores[i] - compensation;
+            final double t = sum + y;
+            compensation = (t - sum) - y;
+            sum = t;
+            simpleSum += scores[i];
+        }
+        if (Double.isNaN(sum) && Double.isInfinite(simpleSum)) {
+            sum = simpleSum;
+        }
+        final double den = sum - min * (to - from);
 
-        userRanking.values().stream().forEach(pref -> pref.setScore((pref.getScore() - min) / den));
+        for (int i = from; i < to; i++) {
+            scores[i] = (scores[i] - min) / den;
+        }
 
-        return userRanking;
     }
 
     /*
@@ -15,9 +15,6 @@
  */
 package es.udc.fi.dc.irlab.metarecsys.normalisation;
 
-import es.udc.fi.dc.irlab.metarecsys.structures.RankScore;
-import net.openhft.koloboke.collect.map.LongObjMap;
-
 /**
  * The Class ZMUVNormalisation. Shift the mean score to 0.0 and then scale the
  * variance score to 1.0.
@@ -49,25 +46,24 @@ public final class ZMUVNormalisation extends NormalisationAlgorithm {
      *
      * @see
      * es.udc.fi.dc.irlab.metarecsys.normalisation.NormalisationAlgorithm#apply(
-     * es.udc.fi.dc.irlab.metarecsys.runs.LongDouble[])
+     * double[], int, int)
      */
     @Override
-    public LongObjMap<RankScore> apply(final LongObjMap<RankScore> userRanking) {
-
-        final double n = userRanking.size();
-
-        // Compute the mean
-        final double mean = userRanking.values().stream().mapToDouble(p -> p.getScore()).sum() / n;
-
-        // Compute the standard deviation
-        final double meanSquared = userRanking.values().stream()
-                .mapToDouble(p -> p.getScore() * p.getScore()).sum() / n;
-        final double std = Math.sqrt((meanSquared - mean * mean) * n / (n - 1));
+    public void apply(final double[] scores, final int from, final int to) {
 
-        userRanking.values().stream()
-                .forEach(p -> p.setScore(offset + (p.getScore() - mean) / std));
+        // Compute the mean and the standard deviation in one pass (Welford)
+        double mean = 0.0;
+        double m2 = 0.0;
+        for (int i = from; i < to; i++) {
+            final double delta = scores[i] - mean;
+            mean += delta / (i - from + 1);
+            m2 += delta * (scores[i] - mean);
+        }
+        final double std = Math.sqrt(m2 / (to - from - 1));
 
-        return userRanking;
+        for (int i = from; i < to; i++) {
+            scores[i] = offset + (scores[i] - mean) / std;
+        }
 
     }
 
@@ -0,0 +1,435 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.structures;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The Class AsyncFileWriter. It writes files on a dedicated thread. The
+ * streams opened with it copy the bytes into chunks which are handed to the
+ * writer thread when they are full, so the threads that produce the output
+ * never wait for the disk unless the queue of chunks is full.
+ *
+ * Closing a stream hands the last chunk to the writer thread, which closes
+ * the file and then runs the action given to the stream, if any, such as
+ * moving the file to its final place. The errors of the files are collected
+ * and the first one is rethrown by {@link #sync()} and {@link #close()}. The
+ * writer is closed once all its streams have been closed.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public final class AsyncFileWriter implements AutoCloseable {
+
+    /** The size of a chunk in bytes. */
+    static final int CHUNK_SIZE = 1 << 16;
+
+    /** The chunk which stops the writer thread. */
+    private static final Chunk POISON = new Chunk(null, null, 0, null);
+
+    /** The chunks waiting for the writer thread. */
+    private final BlockingQueue<Chunk> queue;
+
+    /** The buffers of the written chunks. */
+    private final Queue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+
+    /** The writer thread. */
+    private final Thread thread;
+
+    /** The first error of the files (the rest are suppressed by it). */
+    private volatile IOException failure;
+
+    /**
+     * The Interface FileAction. An action run by the writer thread once a file
+     * has been written and closed.
+     *
+     * @author daniel.valcarce@udc.es
+     */
+    @FunctionalInterface
+    public interface FileAction {
+
+        /**
+         * Run the action.
+         *
+         * @throws IOException
+         *             Signals that an I/O exception has occurred.
+         */
+        void run() throws IOException;
+
+    }
+
+    /**
+     * Instantiates a new asynchronous file writer.
+     *
+     * @param queueCapacity
+     *            the maximum number of chunks waiting for the writer thread
+     */
+    public AsyncFileWriter(final int queueCapacity) {
+
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException(queueCapacity + " is not a valid queue capacity");
+        }
+
+        this.queue = new ArrayBlockingQueue<Chunk>(queueCapacity);
+        this.thread = new Thread(this::run, "metarecsys-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+
+    }
+
+    /**
+     * Open a file for writing, creating it or truncating it.
+     *
+     * @param path
+     *            the path to the file
+     * @return the stream
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public FileStream open(final Path path) throws IOException {
+        return new FileStream(path, Files.newOutputStream(path));
+    }
+
+    /**
+     * Write the chunks until the writer is closed.
+     */
+    private void run() {
+
+        while (true) {
+
+            final Chunk chunk;
+            try {
+                chunk = queue.take();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (chunk == POISON) {
+                return;
+            }
+
+            final FileStream stream = chunk.stream;
+            if (stream == null) {
+                // A barrier
+                runAction(chunk.action);
+                continue;
+            }
+
+            try {
+                if (stream.failure == null) {
+                    stream.out.write(chunk.data, 0, chunk.length);
+                }
+            } catch (final IOException e) {
+                fail(stream, e);
+            } finally {
+                free.add(chunk.data);
+            }
+
+            if (chunk.action != null) {
+                try {
+                    stream.out.close();
+                } catch (final IOException e) {
+                    fail(stream, e);
+                }
+                if (stream.failure == null) {
+                    runAction(chunk.action);
+                }
+            }
+
+        }
+
+    }
+
+    /**
+     * Record the first error of a file.
+     *
+     * @param stream
+     *            the stream of the file
+     * @param e
+     *            the error
+     */
+    private void fail(final FileStream stream, final IOException e) {
+        if (stream.failure == null) {
+            stream.failure = e;
+            record(new IOException("Unable to write " + stream.path, e));
+        }
+    }
+
+    /**
+     * Run an action on the writer thread recording its error, if any.
+     *
+     * @param action
+     *            the action
+     */
+    private void runAction(final FileAction action) {
+        try {
+            action.run();
+        } catch (final IOException e) {
+            record(e);
+        }
+    }
+
+    /**
+     * Record an error of the writer thread.
+     *
+     * @param e
+     *            the error
+     */
+    private void record(final IOException e) {
+        if (failure == null) {
+            failure = e;
+        } else {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Hand a chunk to the writer thread, waiting while the queue is full.
+     *
+     * @param chunk
+     *            the chunk
+     */
+    private void enqueue(final Chunk chunk) {
+        try {
+            queue.put(chunk);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Get a buffer for a new chunk.
+     *
+     * @return the buffer
+     */
+    private byte[] newBuffer() {
+        final byte[] buffer = free.poll();
+        return buffer != null ? buffer : new byte[CHUNK_SIZE];
+    }
+
+    /**
+     * Wait until the writer thread has handled the chunks handed to it so far,
+     * including the actions of the closed streams.
+     *
+     * @throws IOException
+     *             the first error of the files, if any
+     */
+    public void sync() throws IOException {
+
+        final CountDownLatch done = new CountDownLatch(1);
+        enqueue(new Chunk(null, null, 0, done::countDown));
+        try {
+            done.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+
+    }
+
+    /**
+     * Stop the writer thread once it has written the pending chunks. The
+     * streams must have been closed before.
+     *
+     * @throws IOException
+     *             the first error of the files, if any
+     */
+    @Override
+    public void close() throws IOException {
+
+        enqueue(POISON);
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+
+    }
+
+    /**
+     * The Class Chunk. A piece of a file waiting for the writer thread.
+     *
+     * @author daniel.valcarce@udc.es
+     */
+    private static final class Chunk {
+
+        /** The stream (null for a barrier). */
+        private final FileStream stream;
+
+        /** The bytes. */
+        private final byte[] data;
+
+        /** The number of bytes. */
+        private final int length;
+
+        /** The action run after closing the file (null if it is not the last). */
+        private final FileAction action;
+
+        /**
+         * Instantiates a new chunk.
+         *
+         * @param stream
+         *            the stream
+         * @param data
+         *            the bytes
+         * @param length
+         *            the number of bytes
+         * @param action
+         *            the action run after closing the file or null if it is
+         *            not the last chunk of the file
+         */
+        Chunk(final FileStream stream, final byte[] data, final int length,
+                final FileAction action) {
+            this.stream = stream;
+            this.data = data;
+            this.length = length;
+            this.action = action;
+        }
+
+    }
+
+    /**
+     * The Class FileStream. A stream that hands its bytes to the writer thread
+     * in chunks. It is not thread-safe.
+     *
+     * @author daniel.valcarce@udc.es
+     */
+    public final class FileStream extends OutputStream {
+
+        /** The path to the file. */
+        private final Path path;
+
+        /** The stream of the file, used by the writer thread. */
+        private final OutputStream out;
+
+        /** The first error of the file. */
+        private volatile IOException failure;
+
+        /** The current chunk. */
+        private byte[] buffer = newBuffer();
+
+        /** The number of bytes in the current chunk. */
+        private int size;
+
+        /** Whether the stream has been closed. */
+        private boolean isClosed;
+
+        /**
+         * Instantiates a new file stream.
+         *
+         * @param path
+         *            the path to the file
+         * @param out
+         *            the stream of the file
+         */
+        private FileStream(final Path path, final OutputStream out) {
+            this.path = path;
+            this.out = out;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.io.OutputStream#write(int)
+         */
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.io.OutputStream#write(byte[], int, int)
+         */
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+
+            if (isClosed) {
+                throw new IOException("Stream closed");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+
+            int offset = off;
+            int remaining = len;
+            while (remaining > 0) {
+                final int n = Math.min(remaining, buffer.length - size);
+                System.arraycopy(b, offset, buffer, size, n);
+                size += n;
+                offset += n;
+                remaining -= n;
+                if (size == buffer.length) {
+                    enqueue(new Chunk(this, buffer, size, null));
+                    buffer = newBuffer();
+                    size = 0;
+                }
+            }
+
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.io.OutputStream#close()
+         */
+        @Override
+        public void close() {
+            close(() -> {
+            });
+        }
+
+        /**
+         * Hand the last chunk to the writer thread without waiting for it. The
+         * writer thread closes the file and then runs the given action unless
+         * the file could not be written.
+         *
+         * @param action
+         *            the action
+         */
+        public void close(final FileAction action) {
+
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+
+            enqueue(new Chunk(this, buffer, size, action));
+            buffer = null;
+
+        }
+
+    }
+
+}
@@ -0,0 +1,492 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.structures;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import es.udc.fi.dc.irlab.metarecsys.normalisation.NormalisationAlgorithm;
+import net.openhft.koloboke.collect.map.LongIntMap;
+import net.openhft.koloboke.collect.map.LongObjMap;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMaps;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMaps;
+
+/**
+ * The Class CompactRankings. It stores the rankings of a run in compressed
+ * sparse row format: the sorted user ids, the offsets of the ranking of each
+ * user and the parallel item, rank and score columns.
+ *
+ * The entries of each user are kept in the order of the run file. The item
+ * order column holds, for each user, the offsets of its entries (relative to
+ * the start of the user) sorted by item id, so items are found by binary
+ * search.
+ *
+ * Once the run is encoded with the dictionary of its fold, an item key column
+ * holds the key of the item of each entry.
+ *
+ * The columns are stored on the heap ({@link HeapRankings}) or outside the
+ * Java heap ({@link OffHeapRankings}).
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public abstract class CompactRankings {
+
+    /**
+     * Gets the number of users.
+     *
+     * @return the number of users
+     */
+    public abstract int numUsers();
+
+    /**
+     * Gets the number of entries.
+     *
+     * @return the number of entries
+     */
+    public abstract int numEntries();
+
+    /**
+     * Gets the id of the given user.
+     *
+     * @param u
+     *            the user index
+     * @return the user id
+     */
+    public abstract long getUserID(int u);
+
+    /**
+     * Gets the position of the first entry of the given user.
+     *
+     * @param u
+     *            the user index
+     * @return the start position
+     */
+    public abstract int getStart(int u);
+
+    /**
+     * Gets the position after the last entry of the given user.
+     *
+     * @param u
+     *            the user index
+     * @return the end position
+     */
+    public abstract int getEnd(int u);
+
+    /**
+     * Gets the item of the given entry.
+     *
+     * @param pos
+     *            the position of the entry
+     * @return the item id
+     */
+    public abstract long getItem(int pos);
+
+    /**
+     * Gets the rank of the given entry.
+     *
+     * @param pos
+     *            the position of the entry
+     * @return the rank
+     */
+    public abstract int getRank(int pos);
+
+    /**
+     * Gets the score of the given entry.
+     *
+     * @param pos
+     *            the position of the entry
+     * @return the score
+     */
+    public abstract double getScore(int pos);
+
+    /**
+     * Gets the item order of the given position: the offset (relative to the
+     * start of the user) of the entry that occupies that position when the
+     * entries of the user are sorted by item id.
+     *
+     * @param pos
+     *            the position
+     * @return the offset of the entry
+     */
+    public abstract int getItemOrder(int pos);
+
+    /**
+     * Gets the item key of the given entry. The rankings must be encoded.
+     *
+     * @param pos
+     *            the position of the entry
+     * @return the item key
+     */
+    public abstract int getItemKey(int pos);
+
+    /**
+     * Gets rankings with the same columns and an item key column holding the
+     * keys of the items in the given dictionary. The key column is allocated
+     * in the same storage as the rest of the columns, which are shared, not
+     * copied.
+     *
+     * @param dictionary
+     *            the dictionary of the fold
+     * @return the encoded rankings
+     */
+    public abstract CompactRankings encode(FoldDictionary dictionary);
+
+    /**
+     * Gets a view of the rankings whose scores are normalised, user by user,
+     * with the given algorithm. Only the score column is allocated, in the
+     * same storage as the rest of the columns, which are shared, not copied.
+     *
+     * @param norm
+     *            the normalisation algorithm
+     * @return the normalised rankings
+     */
+    public abstract CompactRankings normalise(NormalisationAlgorithm norm);
+
+    /**
+     * Gets the index of the given user.
+     *
+     * @param userID
+     *            the user id
+     * @return the user index or -1 if the user is not present
+     */
+    public int indexOf(final long userID) {
+
+        int low = 0;
+        int high = numUsers() - 1;
+
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long midUser = getUserID(mid);
+            if (midUser < userID) {
+                low = mid + 1;
+            } else if (midUser > userID) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return -1;
+
+    }
+
+    /**
+     * Find the entry of the given item in the ranking of the given user.
+     *
+     * @param u
+     *            the user index
+     * @param itemID
+     *            the item id
+     * @return the position of the entry or -1 if the item is not present
+     */
+    public int find(final int u, final long itemID) {
+
+        final int start = getStart(u);
+        int low = start;
+        int high = getEnd(u) - 1;
+
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int pos = start + getItemOrder(mid);
+            final long midItem = getItem(pos);
+            if (midItem < itemID) {
+                low = mid + 1;
+            } else if (midItem > itemID) {
+                high = mid - 1;
+            } else {
+                return pos;
+            }
+        }
+
+        return -1;
+
+    }
+
+    /**
+     * Gets a copy of the ranking of the given user as a map.
+     *
+     * @param u
+     *            the user index
+     * @return map of <item, rank and score>
+     */
+    public LongObjMap<RankScore> getRanking(final int u) {
+        final int start = getStart(u);
+        final int end = getEnd(u);
+        final LongObjMap<RankScore> ranking = HashLongObjMaps
+                .<RankScore> newUpdatableMap(end - start);
+        for (int pos = start; pos < end; pos++) {
+            ranking.put(getItem(pos), new RankScore(getRank(pos), getScore(pos)));
+        }
+        return ranking;
+    }
+
+    /**
+     * Build compact rankings on the heap from the given builders. The builders
+     * are concatenated in order. If a user appears more than once, its last
+     * ranking is kept.
+     *
+     * @param builders
+     *            the builders
+     * @return the compact rankings
+     */
+    public static CompactRankings build(final List<Builder> builders) {
+
+        int numBlocks = 0;
+        int numEntries = 0;
+        boolean sorted = true;
+        long previous = 0;
+
+        for (final Builder builder : builders) {
+            for (int b = 0; b < builder.numBlocks; b++) {
+                final long userID = builder.blockUsers[b];
+                sorted &= numBlocks == 0 || previous < userID;
+                previous = userID;
+                numBlocks++;
+            }
+            numEntries += builder.size;
+        }
+
+        // Fast path: a single builder with strictly increasing users
+        if (sorted && builders.size() == 1) {
+            final Builder builder = builders.get(0);
+            return new HeapRankings(Arrays.copyOf(builder.blockUsers, numBlocks),
+                    Arrays.copyOf(builder.blockOffsets, numBlocks + 1),
+                    Arrays.copyOf(builder.items, numEntries),
+                    Arrays.copyOf(builder.ranks, numEntries),
+                    Arrays.copyOf(builder.scores, numEntries),
+                    Arrays.copyOf(builder.itemOrder, numEntries));
+        }
+
+        // Gather all the blocks in order
+        final Builder[] blockBuilders = new Builder[numBlocks];
+        final int[] blockIndexes = new int[numBlocks];
+        int n = 0;
+        for (final Builder builder : builders) {
+            for (int b = 0; b < builder.numBlocks; b++) {
+                blockBuilders[n] = builder;
+                blockIndexes[n++] = b;
+            }
+        }
+
+        int[] order = IntStream.range(0, numBlocks).toArray();
+        if (!sorted) {
+            // Stable sort by user id
+            order = IntStream.range(0, numBlocks).boxed()
+                    .sorted(Comparator.comparingLong(
+                            (Integer i) -> blockBuilders[i].blockUsers[blockIndexes[i]]))
+                    .mapToInt(Integer::intValue).toArray();
+        }
+
+        // Keep the last block of each user
+        int numUsers = 0;
+        numEntries = 0;
+        for (int i = 0; i < numBlocks; i++) {
+            final int block = order[i];
+            final Builder builder = blockBuilders[block];
+            final int b = blockIndexes[block];
+            if (i + 1 < numBlocks && builder.blockUsers[b] == blockBuilders[order[i + 1]]
+                    .blockUsers[blockIndexes[order[i + 1]]]) {
+                continue;
+            }
+            order[numUsers++] = block;
+            numEntries += builder.blockOffsets[b + 1] - builder.blockOffsets[b];
+        }
+
+        final long[] users = new long[numUsers];
+        final int[] offsets = new int[numUsers + 1];
+        final long[] items = new long[numEntries];
+        final int[] ranks = new int[numEntries];
+        final double[] scores = new double[numEntries];
+        final int[] itemOrder = new int[numEntries];
+
+        for (int u = 0; u < numUsers; u++) {
+            final Builder builder = blockBuilders[order[u]];
+            final int b = blockIndexes[order[u]];
+            final int start = builder.blockOffsets[b];
+            final int length = builder.blockOffsets[b + 1] - start;
+            final int offset = offsets[u];
+
+            users[u] = builder.blockUsers[b];
+            System.arraycopy(builder.items, start, items, offset, length);
+            System.arraycopy(builder.ranks, start, ranks, offset, length);
+            System.arraycopy(builder.scores, start, scores, offset, length);
+            System.arraycopy(builder.itemOrder, start, itemOrder, offset, length);
+            offsets[u + 1] = offset + length;
+        }
+
+        return new HeapRankings(users, offsets, items, ranks, scores, itemOrder);
+
+    }
+
+    /**
+     * The Class Builder. It appends the rankings of the users one after the
+     * other.
+     *
+     * @author daniel.valcarce@udc.es
+     */
+    public static final class Builder {
+
+        /** The normalisation algorithm. */
+        private final NormalisationAlgorithm norm;
+
+        /** The user of each block. */
+        private long[] blockUsers = new long[16];
+
+        /** The offsets of each block. */
+        private int[] blockOffsets = new int[17];
+
+        /** The number of blocks. */
+        private int numBlocks;
+
+        /** The item column. */
+        private long[] items = new long[64];
+
+        /** The rank column. */
+        private int[] ranks = new int[64];
+
+        /** The score column. */
+        private double[] scores = new double[64];
+
+        /** The item order column. */
+        private int[] itemOrder = new int[64];
+
+        /** The number of entries. */
+        private int size;
+
+        /** The offsets of the items of the current block. */
+        private final LongIntMap blockItems = HashLongIntMaps.newUpdatableMap();
+
+        /** Whether there is an open block. */
+        private boolean open;
+
+        /**
+         * Instantiates a new builder.
+         *
+         * @param norm
+         *            the normalisation applied to each user ranking
+         */
+        public Builder(final NormalisationAlgorithm norm) {
+            this.norm = norm;
+        }
+
+        /**
+         * Start the ranking of a new user, finishing the current one.
+         *
+         * @param userID
+         *            the user id
+         */
+        public void startUser(final long userID) {
+
+            endUser();
+
+            if (numBlocks == blockUsers.length) {
+                blockUsers = Arrays.copyOf(blockUsers, numBlocks * 2);
+                blockOffsets = Arrays.copyOf(blockOffsets, numBlocks * 2 + 1);
+            }
+            blockUsers[numBlocks] = userID;
+            blockOffsets[numBlocks] = size;
+            open = true;
+
+        }
+
+        /**
+         * Add an item to the ranking of the current user. If the item was
+         * already present, its rank and score are replaced.
+         *
+         * @param itemID
+         *            the item id
+         * @param rank
+         *            the rank
+         * @param score
+         *            the score
+         */
+        public void add(final long itemID, final int rank, final double score) {
+
+            final int start = blockOffsets[numBlocks];
+            final int previous = blockItems.getOrDefault(itemID, -1);
+            if (previous >= 0) {
+                ranks[start + previous] = rank;
+                scores[start + previous] = score;
+                return;
+            }
+
+            if (size == items.length) {
+                final int capacity = size * 2;
+                items = Arrays.copyOf(items, capacity);
+                ranks = Arrays.copyOf(ranks, capacity);
+                scores = Arrays.copyOf(scores, capacity);
+                itemOrder = Arrays.copyOf(itemOrder, capacity);
+            }
+
+            blockItems.put(itemID, size - start);
+            items[size] = itemID;
+            ranks[size] = rank;
+            scores[size] = score;
+            size++;
+
+        }
+
+        /**
+         * Finish the ranking of the current user: normalise its scores and
+         * compute its item order.
+         */
+        public void endUser() {
+
+            if (!open) {
+                return;
+            }
+
+            final int start = blockOffsets[numBlocks];
+            norm.apply(scores, start, size);
+
+            final long[] sortedItems = Arrays.copyOfRange(items, start, size);
+            Arrays.sort(sortedItems);
+            for (int i = 0; i < sortedItems.length; i++) {
+                itemOrder[start + i] = blockItems.get(sortedItems[i]);
+            }
+
+            blockItems.clear();
+            numBlocks++;
+            blockOffsets[numBlocks] = size;
+            open = false;
+
+        }
+
+        /**
+         * Gets the number of finished rankings, counting a user once per block
+         * of contiguous lines.
+         *
+         * @return the number of rankings
+         */
+        int numBlocks() {
+            return numBlocks;
+        }
+
+        /**
+         * Finish the current user and build the compact rankings.
+         *
+         * @return the compact rankings
+         */
+        public CompactRankings build() {
+            endUser();
+            return CompactRankings.build(Arrays.asList(this));
+        }
+
+    }
+
+}
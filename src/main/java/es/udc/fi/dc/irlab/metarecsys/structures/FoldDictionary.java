@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.structures;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import net.openhft.koloboke.collect.set.LongSet;
+import net.openhft.koloboke.collect.set.hash.HashLongSets;
+
+/**
+ * The Class FoldDictionary. It maps the user and item ids of the runs of a fold
+ * to dense int keys. Keys are assigned in increasing order of ids, so sorting
+ * by key is the same as sorting by id.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public final class FoldDictionary {
+
+    /** The sorted user ids. */
+    private final long[] users;
+
+    /** The sorted item ids. */
+    private final long[] items;
+
+    /**
+     * Instantiates a new fold dictionary.
+     *
+     * @param users
+     *            the sorted user ids
+     * @param items
+     *            the sorted item ids
+     */
+    private FoldDictionary(final long[] users, final long[] items) {
+        this.users = users;
+        this.items = items;
+    }
+
+    /**
+     * Build the dictionary of the given runs and encode them with it. If the
+     * runs are already encoded with the same dictionary, nothing is done.
+     *
+     * @param runs
+     *            the runs
+     * @return the dictionary
+     */
+    public static FoldDictionary encode(final Collection<RunFile> runs) {
+
+        FoldDictionary dictionary = null;
+        boolean shared = true;
+        for (final RunFile run : runs) {
+            shared &= run.getDictionary() != null
+                    && (dictionary == null || dictionary == run.getDictionary());
+            dictionary = run.getDictionary();
+        }
+        if (shared && dictionary != null) {
+            return dictionary;
+        }
+
+        final LongSet allUsers = HashLongSets.newUpdatableSet();
+        final LongSet allItems = HashLongSets.newUpdatableSet();
+        for (final RunFile run : runs) {
+            final CompactRankings rankings = run.getRankings();
+            for (int u = 0; u < rankings.numUsers(); u++) {
+                allUsers.add(rankings.getUserID(u));
+            }
+            allItems.addAll(run.getItems());
+        }
+
+        final long[] users = allUsers.toLongArray();
+        final long[] items = allItems.toLongArray();
+        Arrays.sort(users);
+        Arrays.sort(items);
+
+        final FoldDictionary foldDictionary = new FoldDictionary(users, items);
+        runs.parallelStream().forEach(run -> run.encode(foldDictionary));
+
+        return foldDictionary;
+
+    }
+
+    /**
+     * Gets the number of users.
+     *
+     * @return the number of users
+     */
+    public int numUsers() {
+        return users.length;
+    }
+
+    /**
+     * Gets the number of items.
+     *
+     * @return the number of items
+     */
+    public int numItems() {
+        return items.length;
+    }
+
+    /**
+     * Gets the key of the given user.
+     *
+     * @param userID
+     *            the user id
+     * @return the key or -1 if the user is not in the dictionary
+     */
+    public int getUserKey(final long userID) {
+        final int key = Arrays.binarySearch(users, userID);
+        return key < 0 ? -1 : key;
+    }
+
+    /**
+     * Gets the key of the given item.
+     *
+     * @param itemID
+     *            the item id
+     * @return the key or -1 if the item is not in the dictionary
+     */
+    public int getItemKey(final long itemID) {
+        final int key = Arrays.binarySearch(items, itemID);
+        return key < 0 ? -1 : key;
+    }
+
+    /**
+     * Gets the user id of the given key.
+     *
+     * @param key
+     *            the key
+     * @return the user id
+     */
+    public long getUserID(final int key) {
+        return users[key];
+    }
+
+    /**
+     * Gets the item id of the given key.
+     *
+     * @param key
+     *            the key
+     * @return the item id
+     */
+    public long getItemID(final int key) {
+        return items[key];
+    }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.structures;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Logger;
+
+import es.udc.fi.dc.irlab.metarecsys.normalisation.NormalisationAlgorithm;
+
+/**
+ * The Class FoldLoader. It reads the runs one fold at a time on a background
+ * thread within a memory budget, so that a fold can be fused while the next
+ * one is read.
+ *
+ * The memory used by each fold is estimated from the size of its run files
+ * and the number of normalised views of each run (see
+ * {@link RunFile#estimateFootprint(Path, int)}), plus the memory used by the
+ * fusion of the fold besides its runs. A fold is read once the
+ * folds read and not yet released leave room for it in the budget, or once
+ * all of them have been released if it does not fit at all.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public final class FoldLoader implements AutoCloseable {
+
+    /** The number of bytes of a megabyte. */
+    private static final double MB = 1 << 20;
+
+    /** The paths to the run files of each fold. */
+    private final SortedMap<Integer, List<Path>> folds;
+
+    /** The estimated memory used by each fold. */
+    private final Map<Integer, Long> footprints = new TreeMap<Integer, Long>();
+
+    /** The runs of each fold in order. */
+    private final Queue<CompletableFuture<List<RunFile>>> pending = new ArrayDeque<>();
+
+    /** The memory budget in bytes. */
+    private final long budget;
+
+    /** The thread. */
+    private final Thread thread;
+
+    /** The estimated memory used by the folds read and not released. */
+    private long reserved;
+
+    /**
+     * Instantiates a new fold loader and starts reading the first fold.
+     *
+     * @param folds
+     *            the paths to the run files of each fold
+     * @param maxRank
+     *            the max rank
+     * @param norm
+     *            the norm
+     * @param cacheFolder
+     *            the folder where the binary sidecars are stored (null to
+     *            disable them)
+     * @param storage
+     *            where the rankings are stored
+     * @param budget
+     *            the memory budget in bytes
+     * @param numViews
+     *            the number of normalised views of each run kept while its
+     *            fold is fused
+     * @param overhead
+     *            the memory in bytes used by the fusion of a fold besides its
+     *            runs (such as the caches of the lattice)
+     */
+    public FoldLoader(final SortedMap<Integer, List<Path>> folds, final int maxRank,
+            final NormalisationAlgorithm norm, final Path cacheFolder, final Storage storage,
+            final long budget, final int numViews, final long overhead) {
+
+        if (budget < 0) {
+            throw new IllegalArgumentException(budget + " is not a valid memory budget");
+        }
+        if (numViews < 0 || overhead < 0) {
+            throw new IllegalArgumentException(
+                    numViews + " views and " + overhead + " bytes are not a valid estimate");
+        }
+
+        this.folds = folds;
+        this.budget = budget;
+
+        folds.forEach((fold, runPaths) -> {
+            footprints.put(fold, overhead + runPaths.stream()
+                    .mapToLong(runPath -> RunFile.estimateFootprint(runPath, numViews)).sum());
+            pending.add(new CompletableFuture<List<RunFile>>());
+        });
+
+        final Queue<CompletableFuture<List<RunFile>>> futures = new ArrayDeque<>(pending);
+        this.thread = new Thread(() -> {
+            try {
+                for (final Map.Entry<Integer, List<Path>> entry : folds.entrySet()) {
+                    final CompletableFuture<List<RunFile>> future = futures.remove();
+                    reserve(entry.getKey());
+                    try {
+                        future.complete(RunFile.readFold(entry.getValue(), maxRank, norm,
+                                cacheFolder, storage));
+                    } catch (final RuntimeException e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            } catch (final InterruptedException e) {
+                futures.forEach(future -> future.completeExceptionally(e));
+            }
+        }, "metarecsys-loader");
+        this.thread.setDaemon(true);
+        this.thread.start();
+
+    }
+
+    /**
+     * Wait until there is room in the budget for the given fold and reserve it.
+     *
+     * @param fold
+     *            the fold
+     * @throws InterruptedException
+     *             if the thread is interrupted
+     */
+    private synchronized void reserve(final int fold) throws InterruptedException {
+
+        final long footprint = footprints.get(fold);
+        if (footprint > budget) {
+            Logger.getGlobal().warning(String.format(Locale.ENGLISH,
+                    "Fold %d needs about %.1f MB, more than the budget of %.1f MB", fold,
+                    footprint / MB, budget / MB));
+        }
+
+        while (reserved > 0 && reserved + footprint > budget) {
+            wait();
+        }
+        reserved += footprint;
+
+        Logger.getGlobal().info(String.format(Locale.ENGLISH,
+                "Reading fold %d (about %.1f MB, %.1f MB in use)", fold, footprint / MB,
+                reserved / MB));
+
+    }
+
+    /**
+     * Get the runs of the next fold, waiting until they have been read.
+     *
+     * @return the runs of the next fold or null if there are no more folds
+     */
+    public List<RunFile> next() {
+
+        final CompletableFuture<List<RunFile>> future = pending.poll();
+        if (future == null) {
+            return null;
+        }
+
+        try {
+            return future.join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+
+    }
+
+    /**
+     * Release the memory of the given fold once its runs are no longer used.
+     *
+     * @param fold
+     *            the fold
+     */
+    public synchronized void release(final int fold) {
+        reserved -= footprints.get(fold);
+        notifyAll();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.AutoCloseable#close()
+     */
+    @Override
+    public void close() {
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "FoldLoader[folds=%s,budget=%d MB]",
+                folds.keySet(), budget >> 20);
+    }
+
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.structures;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The Class FolderOutputStore. It stores each run in its own file of a folder.
+ * A run is written to a temporary file which is moved atomically when it is
+ * committed. With a writer thread, the files are closed and moved by that
+ * thread.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public final class FolderOutputStore implements OutputStore {
+
+    /** The size of the buffer of a file written without a writer thread. */
+    private static final int FILE_BUFFER_SIZE = 1 << 16;
+
+    /** The output folder. */
+    private final Path outputFolder;
+
+    /** The writer of the files (or null). */
+    private final AsyncFileWriter writer;
+
+    /**
+     * Instantiates a new folder output store which writes the files on the
+     * calling threads.
+     *
+     * @param outputFolder
+     *            the output folder, created if needed
+     */
+    public FolderOutputStore(final Path outputFolder) {
+        this(outputFolder, null);
+    }
+
+    /**
+     * Instantiates a new folder output store.
+     *
+     * @param outputFolder
+     *            the output folder, created if needed
+     * @param writer
+     *            the writer of the files, or null to write them on the calling
+     *            threads
+     */
+    public FolderOutputStore(final Path outputFolder, final AsyncFileWriter writer) {
+
+        if (!Files.exists(outputFolder)) {
+            try {
+                Files.createDirectory(outputFolder);
+            } catch (final IOException e) {
+                throw new IllegalArgumentException("Unable to create folder " + outputFolder);
+            }
+        } else if (!Files.isDirectory(outputFolder)) {
+            throw new IllegalArgumentException(
+                    "Path " + outputFolder + " exists and it is not a folder");
+        }
+
+        this.outputFolder = outputFolder;
+        this.writer = writer;
+
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * es.udc.fi.dc.irlab.metarecsys.structures.OutputStore#create(java.lang.
+     * String)
+     */
+    @Override
+    public Entry create(final String name) throws IOException {
+
+        final Path outputPath = outputFolder.resolve(name);
+        final Path tempPath = outputFolder.resolve(name.replace("txt", "tmp"));
+
+        if (Files.exists(outputPath)) {
+            return null;
+        }
+        try {
+            Files.createFile(tempPath);
+        } catch (final FileAlreadyExistsException e) {
+            return null;
+        }
+
+        if (writer != null) {
+            return new AsyncEntry(writer.open(tempPath), tempPath, outputPath);
+        }
+
+        final OutputStream out = new BufferedOutputStream(Files.newOutputStream(tempPath),
+                FILE_BUFFER_SIZE);
+
+        return new Entry() {
+
+            /** Whether the entry has been closed. */
+            private boolean closed;
+
+            /*
+             * (non-Javadoc)
+             *
+             * @see java.io.OutputStream#write(int)
+             */
+            @Override
+            public void write(final int b) throws IOException {
+                out.write(b);
+            }
+
+            /*
+             * (non-Javadoc)
+             *
+             * @see java.io.OutputStream#write(byte[], int, int)
+             */
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            /*
+             * (non-Javadoc)
+             *
+             * @see
+             * es.udc.fi.dc.irlab.metarecsys.structures.OutputStore.Entry#commit()
+             */
+            @Override
+            public void commit() throws IOException {
+                closed = true;
+                out.close();
+                Files.move(tempPath, outputPath, StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            /*
+             * (non-Javadoc)
+             *
+             * @see java.io.OutputStream#close()
+             */
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    try {
+                        out.close();
+                    } finally {
+                        Files.deleteIfExists(tempPath);
+                    }
+                }
+            }
+
+        };
+
+    }
+
+    /**
+     * The Class AsyncEntry. An entry written by the writer thread, which also
+     * closes its file and moves it or deletes it, so neither committing nor
+     * discarding it waits for the disk. The errors are rethrown by the writer.
+     *
+     * @author daniel.valcarce@udc.es
+     */
+    private static final class AsyncEntry extends Entry {
+
+        /** The stream of the temporary file. */
+        private final AsyncFileWriter.FileStream out;
+
+        /** The temporary file. */
+        private final Path tempPath;
+
+        /** The output file. */
+        private final Path outputPath;
+
+        /**
+         * Instantiates a new asynchronous entry.
+         *
+         * @param out
+         *            the stream of the temporary file
+         * @param tempPath
+         *            the temporary file
+         * @param outputPath
+         *            the output file
+         */
+        AsyncEntry(final AsyncFileWriter.FileStream out, final Path tempPath,
+                final Path outputPath) {
+            this.out = out;
+            this.tempPath = tempPath;
+            this.outputPath = outputPath;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.io.OutputStream#write(int)
+         */
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.io.OutputStream#write(byte[], int, int)
+         */
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see es.udc.fi.dc.irlab.metarecsys.structures.OutputStore.Entry#commit()
+         */
+        @Override
+        public void commit() {
+            out.close(() -> Files.move(tempPath, outputPath, StandardCopyOption.ATOMIC_MOVE));
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.io.OutputStream#close()
+         */
+        @Override
+        public void close() {
+            out.close(() -> Files.deleteIfExists(tempPath));
+        }
+
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return outputFolder.toString();
+    }
+
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.structures;
+
+import java.util.Arrays;
+
+import es.udc.fi.dc.irlab.metarecsys.normalisation.NormalisationAlgorithm;
+
+/**
+ * The Class HeapRankings. Compact rankings whose columns are Java arrays.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public final class HeapRankings extends CompactRankings {
+
+    /** The sorted user ids. */
+    private final long[] users;
+
+    /** The offsets of the rankings of each user (numUsers + 1 elements). */
+    private final int[] offsets;
+
+    /** The item column. */
+    private final long[] items;
+
+    /** The rank column. */
+    private final int[] ranks;
+
+    /** The score column. */
+    private final double[] scores;
+
+    /** The item order column. */
+    private final int[] itemOrder;
+
+    /** The item key column (null if the rankings are not encoded). */
+    private final int[] itemKeys;
+
+    /**
+     * Instantiates new heap rankings from its columns.
+     *
+     * @param users
+     *            the sorted user ids
+     * @param offsets
+     *            the offsets of the rankings of each user
+     * @param items
+     *            the item column
+     * @param ranks
+     *            the rank column
+     * @param scores
+     *            the score column
+     * @param itemOrder
+     *            the item order column
+     */
+    public HeapRankings(final long[] users, final int[] offsets, final long[] items,
+            final int[] ranks, final double[] scores, final int[] itemOrder) {
+        this(users, offsets, items, ranks, scores, itemOrder, null);
+    }
+
+    /**
+     * Instantiates new heap rankings from its columns and item keys.
+     *
+     * @param users
+     *            the sorted user ids
+     * @param offsets
+     *            the offsets of the rankings of each user
+     * @param items
+     *            the item column
+     * @param ranks
+     *            the rank column
+     * @param scores
+     *            the score column
+     * @param itemOrder
+     *            the item order column
+     * @param itemKeys
+     *            the item key column
+     */
+    private HeapRankings(final long[] users, final int[] offsets, final long[] items,
+            final int[] ranks, final double[] scores, final int[] itemOrder,
+            final int[] itemKeys) {
+        this.users = users;
+        this.offsets = offsets;
+        this.items = items;
+        this.ranks = ranks;
+        this.scores = scores;
+        this.itemOrder = itemOrder;
+        this.itemKeys = itemKeys;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#numUsers()
+     */
+    @Override
+    public int numUsers() {
+        return users.length;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#numEntries()
+     */
+    @Override
+    public int numEntries() {
+        return items.length;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#getUserID(int)
+     */
+    @Override
+    public long getUserID(final int u) {
+        return users[u];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#indexOf(long)
+     */
+    @Override
+    public int indexOf(final long userID) {
+        final int u = Arrays.binarySearch(users, userID);
+        return u < 0 ? -1 : u;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#getStart(int)
+     */
+    @Override
+    public int getStart(final int u) {
+        return offsets[u];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#getEnd(int)
+     */
+    @Override
+    public int getEnd(final int u) {
+        return offsets[u + 1];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#getItem(int)
+     */
+    @Override
+    public long getItem(final int pos) {
+        return items[pos];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#getRank(int)
+     */
+    @Override
+    public int getRank(final int pos) {
+        return ranks[pos];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#getScore(int)
+     */
+    @Override
+    public double getScore(final int pos) {
+        return scores[pos];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#getItemOrder(int)
+     */
+    @Override
+    public int getItemOrder(final int pos) {
+        return itemOrder[pos];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#normalise(es.udc.
+     * fi.dc.irlab.metarecsys.normalisation.NormalisationAlgorithm)
+     */
+    @Override
+    public CompactRankings normalise(final NormalisationAlgorithm norm) {
+        final int numUsers = numUsers();
+        final double[] newScores = Arrays.copyOf(scores, scores.length);
+        for (int u = 0; u < numUsers; u++) {
+            norm.apply(newScores, offsets[u], offsets[u + 1]);
+        }
+        return new HeapRankings(users, offsets, items, ranks, newScores, itemOrder, itemKeys);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#getItemKey(int)
+     */
+    @Override
+    public int getItemKey(final int pos) {
+        return itemKeys[pos];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#encode(es.udc.fi.
+     * dc.irlab.metarecsys.structures.FoldDictionary)
+     */
+    @Override
+    public CompactRankings encode(final FoldDictionary dictionary) {
+        final int[] keys = new int[items.length];
+        for (int pos = 0; pos < keys.length; pos++) {
+            keys[pos] = dictionary.getItemKey(items[pos]);
+        }
+        return new HeapRankings(users, offsets, items, ranks, scores, itemOrder, keys);
+    }
+
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.structures;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+import es.udc.fi.dc.irlab.metarecsys.normalisation.NormalisationAlgorithm;
+
+/**
+ * The Class OffHeapRankings. Compact rankings whose columns live outside the
+ * Java heap, either in direct buffers or in memory-mapped sidecars, so they
+ * are never scanned by the garbage collector.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public final class OffHeapRankings extends CompactRankings {
+
+    /** The sorted user ids. */
+    private final LongBuffer users;
+
+    /** The offsets of the rankings of each user (numUsers + 1 elements). */
+    private final IntBuffer offsets;
+
+    /** The item column. */
+    private final LongBuffer items;
+
+    /** The rank column. */
+    private final IntBuffer ranks;
+
+    /** The score column. */
+    private final DoubleBuffer scores;
+
+    /** The item order column. */
+    private final IntBuffer itemOrder;
+
+    /** The item key column (null if the rankings are not encoded). */
+    private final IntBuffer itemKeys;
+
+    /**
+     * Instantiates new off-heap rankings from its columns.
+     *
+     * @param users
+     *            the sorted user ids
+     * @param offsets
+     *            the offsets of the rankings of each user
+     * @param items
+     *            the item column
+     * @param ranks
+     *            the rank column
+     * @param scores
+     *            the score column
+     * @param itemOrder
+     *            the item order column
+     */
+    public OffHeapRankings(final LongBuffer users, final IntBuffer offsets,
+            final LongBuffer items, final IntBuffer ranks, final DoubleBuffer scores,
+            final IntBuffer itemOrder) {
+        this(users, offsets, items, ranks, scores, itemOrder, null);
+    }
+
+    /**
+     * Instantiates new off-heap rankings from its columns and item keys.
+     *
+     * @param users
+     *            the sorted user ids
+     * @param offsets
+     *            the offsets of the rankings of each user
+     * @param items
+     *            the item column
+     * @param ranks
+     *            the rank column
+     * @param scores
+     *            the score column
+     * @param itemOrder
+     *            the item order column
+     * @param itemKeys
+     *            the item key column
+     */
+    private OffHeapRankings(final LongBuffer users, final IntBuffer offsets,
+            final LongBuffer items, final IntBuffer ranks, final DoubleBuffer scores,
+            final IntBuffer itemOrder, final IntBuffer itemKeys) {
+        this.users = users;
+        this.offsets = offsets;
+        this.items = items;
+        this.ranks = ranks;
+        this.scores = scores;
+        this.itemOrder = itemOrder;
+        this.itemKeys = itemKeys;
+    }
+
+    /**
+     * Copy the given rankings to direct buffers. The item keys are not copied:
+     * runs are encoded once they are stored.
+     *
+     * @param rankings
+     *            the rankings
+     * @return the off-heap rankings
+     */
+    public static OffHeapRankings copyOf(final CompactRankings rankings) {
+
+        final int numUsers = rankings.numUsers();
+        final int numEntries = rankings.numEntries();
+
+        final LongBuffer users = allocate(8L * numUsers).asLongBuffer();
+        final IntBuffer offsets = allocate(4L * (numUsers + 1)).asIntBuffer();
+        final LongBuffer items = allocate(8L * numEntries).asLongBuffer();
+        final IntBuffer ranks = allocate(4L * numEntries).asIntBuffer();
+        final DoubleBuffer scores = allocate(8L * numEntries).asDoubleBuffer();
+        final IntBuffer itemOrder = allocate(4L * numEntries).asIntBuffer();
+
+        for (int u = 0; u < numUsers; u++) {
+            users.put(u, rankings.getUserID(u));
+            offsets.put(u, rankings.getStart(u));
+        }
+        offsets.put(numUsers, numEntries);
+
+        for (int pos = 0; pos < numEntries; pos++) {
+            items.put(pos, rankings.getItem(pos));
+            ranks.put(pos, rankings.getRank(pos));
+            scores.put(pos, rankings.getScore(pos));
+            itemOrder.put(pos, rankings.getItemOrder(pos));
+        }
+
+        return new OffHeapRankings(users, offsets, items, ranks, scores, itemOrder);
+
+    }
+
+    /**
+     * Allocate a direct buffer in native byte order.
+     *
+     * @param size
+     *            the size in bytes
+     * @return the buffer
+     */
+    private static ByteBuffer allocate(final long size) {
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Column too big: " + size + " bytes");
+        }
+        return ByteBuffer.allocateDirect((int) size).order(ByteOrder.nativeOrder());
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#numUsers()
+     */
+    @Override
+    public int numUsers() {
+        return users.limit();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#numEntries()
+     */
+    @Override
+    public int numEntries() {
+        return items.limit();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#getUserID(int)
+     */
+    @Override
+    public long getUserID(final int u) {
+        return users.get(u);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#getStart(int)
+     */
+    @Override
+    public int getStart(final int u) {
+        return offsets.get(u);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#getEnd(int)
+     */
+    @Override
+    public int getEnd(final int u) {
+        return offsets.get(u + 1);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#getItem(int)
+     */
+    @Override
+    public long getItem(final int pos) {
+        return items.get(pos);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#getRank(int)
+     */
+    @Override
+    public int getRank(final int pos) {
+        return ranks.get(pos);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#getScore(int)
+     */
+    @Override
+    public double getScore(final int pos) {
+        return scores.get(pos);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#getItemOrder(int)
+     */
+    @Override
+    public int getItemOrder(final int pos) {
+        return itemOrder.get(pos);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#normalise(es.udc.
+     * fi.dc.irlab.metarecsys.normalisation.NormalisationAlgorithm)
+     */
+    @Override
+    public CompactRankings normalise(final NormalisationAlgorithm norm) {
+
+        // Normalise one user at a time in a scratch array, so the only full
+        // copy of the scores is the new direct buffer
+        final int numUsers = numUsers();
+        final DoubleBuffer column = allocate(8L * numEntries()).asDoubleBuffer();
+        double[] slice = new double[64];
+        for (int u = 0; u < numUsers; u++) {
+            final int start = offsets.get(u);
+            final int length = offsets.get(u + 1) - start;
+            if (slice.length < length) {
+                slice = new double[Math.max(length, 2 * slice.length)];
+            }
+            for (int i = 0; i < length; i++) {
+                slice[i] = scores.get(start + i);
+            }
+            norm.apply(slice, 0, length);
+            for (int i = 0; i < length; i++) {
+                column.put(start + i, slice[i]);
+            }
+        }
+
+        return new OffHeapRankings(users, offsets, items, ranks, column, itemOrder, itemKeys);
+
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#getItemKey(int)
+     */
+    @Override
+    public int getItemKey(final int pos) {
+        return itemKeys.get(pos);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * es.udc.fi.dc.irlab.metarecsys.structures.CompactRankings#encode(es.udc.fi.
+     * dc.irlab.metarecsys.structures.FoldDictionary)
+     */
+    @Override
+    public CompactRankings encode(final FoldDictionary dictionary) {
+        final int numEntries = numEntries();
+        final IntBuffer keys = allocate(4L * numEntries).asIntBuffer();
+        for (int pos = 0; pos < numEntries; pos++) {
+            keys.put(pos, dictionary.getItemKey(items.get(pos)));
+        }
+        return new OffHeapRankings(users, offsets, items, ranks, scores, itemOrder, keys);
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.structures;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The Interface OutputStore. It stores the fused runs by name. A run is
+ * written to an entry which only becomes visible when it is committed, so
+ * that an interrupted execution can be resumed computing the missing runs.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public interface OutputStore {
+
+    /**
+     * Create an entry for the run with the given name unless the run already
+     * exists or is being written.
+     *
+     * @param name
+     *            the name of the run
+     * @return the entry or null if the run exists or is being written
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    Entry create(String name) throws IOException;
+
+    /**
+     * The Class Entry. A run being written. Closing an entry which has not
+     * been committed discards it.
+     *
+     * @author daniel.valcarce@udc.es
+     */
+    abstract class Entry extends OutputStream {
+
+        /**
+         * Make the run visible.
+         *
+         * @throws IOException
+         *             Signals that an I/O exception has occurred.
+         */
+        public abstract void commit() throws IOException;
+
+    }
+
+}
@@ -0,0 +1,560 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.structures;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.IntStream;
+
+import es.udc.fi.dc.irlab.metarecsys.normalisation.NoneNormalisation;
+import es.udc.fi.dc.irlab.metarecsys.normalisation.NormalisationAlgorithm;
+
+/**
+ * The Class RunCache. It keeps the runs read and normalised across folds and
+ * normalisations within a memory budget. The runs are identified by their
+ * path, max rank and normalisation; a normalised run is a view of the raw run
+ * (see {@link RunFile#normalise(NormalisationAlgorithm)}), which stays in the
+ * cache while the view does.
+ *
+ * The runs acquired by the fusion tasks are pinned until they are released.
+ * When the budget is exceeded, the least recently used runs which are not
+ * pinned are evicted; if that is not enough, acquiring runs waits for the
+ * pinned runs to be released, unless nothing else is pinned.
+ *
+ * The runs of a fold are always acquired together: they share a dictionary
+ * which is kept after they are evicted, so that a run read again is encoded
+ * as the runs of its fold still in the cache.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public final class RunCache {
+
+    /** The name of the raw normalisation. */
+    private static final String RAW = new NoneNormalisation().toString();
+
+    /** The number of bytes of a megabyte. */
+    private static final double MB = 1 << 20;
+
+    /** The max rank. */
+    private final int maxRank;
+
+    /** The folder where the binary sidecars are stored (or null). */
+    private final Path cacheFolder;
+
+    /** Where the rankings are stored. */
+    private final Storage storage;
+
+    /** The memory budget in bytes. */
+    private final long budget;
+
+    /** The lock held while acquiring runs. */
+    private final Object acquiring = new Object();
+
+    /** The runs from the least to the most recently used. */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f,
+            true);
+
+    /** The dictionary of each fold by the paths to its run files. */
+    private final Map<List<Path>, FoldDictionary> dictionaries = new HashMap<>();
+
+    /** The memory used by the runs in the cache or being read. */
+    private long used;
+
+    /** The memory used by the pinned runs. */
+    private long pinned;
+
+    /** The number of runs found in the cache. */
+    private long hits;
+
+    /** The number of runs read or normalised. */
+    private long misses;
+
+    /** The number of runs evicted. */
+    private long evictions;
+
+    /**
+     * Instantiates a new run cache.
+     *
+     * @param maxRank
+     *            the max rank
+     * @param cacheFolder
+     *            the folder where the binary sidecars are stored (null to
+     *            disable them)
+     * @param storage
+     *            where the rankings are stored
+     * @param budget
+     *            the memory budget in bytes
+     */
+    public RunCache(final int maxRank, final Path cacheFolder, final Storage storage,
+            final long budget) {
+
+        if (budget < 0) {
+            throw new IllegalArgumentException(budget + " is not a valid memory budget");
+        }
+
+        this.maxRank = maxRank;
+        this.cacheFolder = cacheFolder;
+        this.storage = storage;
+        this.budget = budget;
+
+    }
+
+    /**
+     * Acquire the runs of a fold with the given normalisation, reading and
+     * normalising the runs which are not in the cache. The runs stay pinned
+     * until they are released.
+     *
+     * @param runPaths
+     *            the paths to the run files of the fold
+     * @param norm
+     *            the normalisation algorithm
+     * @return the runs in the order of the paths
+     */
+    public List<RunFile> acquire(final List<Path> runPaths, final NormalisationAlgorithm norm) {
+        // A run is read once even if several threads acquire it
+        synchronized (acquiring) {
+            return acquireRuns(runPaths, norm);
+        }
+    }
+
+    /**
+     * Acquire the runs of a fold with the given normalisation.
+     *
+     * @param runPaths
+     *            the paths to the run files of the fold
+     * @param norm
+     *            the normalisation algorithm
+     * @return the runs in the order of the paths
+     */
+    private List<RunFile> acquireRuns(final List<Path> runPaths,
+            final NormalisationAlgorithm norm) {
+
+        final int n = runPaths.size();
+        final String normName = norm.toString();
+        final boolean raw = RAW.equals(normName);
+        final Entry[] rawEntries = new Entry[n];
+        final Entry[] viewEntries = new Entry[n];
+        long needed;
+
+        // Pin the runs in the cache and make room for the rest; the call
+        // proceeds over the budget if only the runs it needs are pinned
+        synchronized (this) {
+            while (true) {
+                needed = 0;
+                long own = 0;
+                for (int r = 0; r < n; r++) {
+                    final Path path = runPaths.get(r);
+                    rawEntries[r] = entries.get(new Key(path, maxRank, RAW));
+                    if (rawEntries[r] != null) {
+                        pin(rawEntries[r]);
+                        own += rawEntries[r].footprint;
+                    } else {
+                        needed += RunFile.estimateEntries(path) * RunFile.ENTRY_FOOTPRINT;
+                    }
+                    if (!raw) {
+                        viewEntries[r] = entries.get(new Key(path, maxRank, normName));
+                        if (viewEntries[r] != null) {
+                            pin(viewEntries[r]);
+                            own += viewEntries[r].footprint;
+                        } else {
+                            needed += RunFile.estimateEntries(path) * RunFile.SCORE_FOOTPRINT;
+                        }
+                    }
+                }
+                evict(used + needed - budget);
+                if (used + needed <= budget || pinned <= own) {
+                    break;
+                }
+                unpinAll(rawEntries);
+                unpinAll(viewEntries);
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+            used += needed;
+            for (int r = 0; r < n; r++) {
+                if ((raw ? rawEntries[r] : viewEntries[r]) != null) {
+                    hits++;
+                } else {
+                    misses++;
+                }
+            }
+        }
+
+        try {
+            return load(runPaths, norm, rawEntries, viewEntries, needed);
+        } catch (final RuntimeException e) {
+            synchronized (this) {
+                used -= needed;
+                unpinAll(rawEntries);
+                unpinAll(viewEntries);
+                notifyAll();
+            }
+            throw e;
+        }
+
+    }
+
+    /**
+     * Read and normalise the runs of a fold which are not in the cache and
+     * add them to the cache.
+     *
+     * @param runPaths
+     *            the paths to the run files of the fold
+     * @param norm
+     *            the normalisation algorithm
+     * @param rawEntries
+     *            the pinned raw runs in the cache (null if missing)
+     * @param viewEntries
+     *            the pinned normalised runs in the cache (null if missing)
+     * @param reserved
+     *            the memory reserved for the missing runs
+     * @return the runs in the order of the paths
+     */
+    private List<RunFile> load(final List<Path> runPaths, final NormalisationAlgorithm norm,
+            final Entry[] rawEntries, final Entry[] viewEntries, final long reserved) {
+
+        final int n = runPaths.size();
+        final String normName = norm.toString();
+        final boolean raw = RAW.equals(normName);
+
+        // Read the missing raw runs
+        final RunFile[] rawRuns = new RunFile[n];
+        final boolean[] read = new boolean[n];
+        IntStream.range(0, n).parallel().forEach(r -> {
+            if (rawEntries[r] != null) {
+                rawRuns[r] = rawEntries[r].run;
+            } else {
+                rawRuns[r] = new RunFile(runPaths.get(r), maxRank, new NoneNormalisation(),
+                        cacheFolder, storage);
+                read[r] = true;
+            }
+        });
+
+        // Encode them with the dictionary of the fold
+        final List<Path> foldKey = new ArrayList<Path>(runPaths);
+        foldKey.sort(null);
+        final FoldDictionary dictionary;
+        synchronized (this) {
+            dictionary = dictionaries.get(foldKey);
+        }
+        if (dictionary == null) {
+            final FoldDictionary newDictionary = FoldDictionary.encode(Arrays.asList(rawRuns));
+            synchronized (this) {
+                dictionaries.put(foldKey, newDictionary);
+            }
+        } else {
+            IntStream.range(0, n).parallel().filter(r -> read[r])
+                    .forEach(r -> rawRuns[r].encode(dictionary));
+        }
+
+        // Normalise the missing views
+        final RunFile[] views = new RunFile[n];
+        if (!raw) {
+            IntStream.range(0, n).parallel().forEach(r -> {
+                views[r] = viewEntries[r] != null ? viewEntries[r].run
+                        : rawRuns[r].normalise(norm);
+            });
+        }
+
+        synchronized (this) {
+
+            long actual = 0;
+            for (int r = 0; r < n; r++) {
+                final Path path = runPaths.get(r);
+                if (read[r]) {
+                    rawEntries[r] = new Entry(new Key(path, maxRank, RAW), rawRuns[r], null);
+                    actual += rawEntries[r].footprint;
+                    entries.put(rawEntries[r].key, rawEntries[r]);
+                    pin(rawEntries[r]);
+                }
+                if (!raw && viewEntries[r] == null) {
+                    pin(rawEntries[r]);
+                    viewEntries[r] = new Entry(new Key(path, maxRank, normName), views[r],
+                            rawEntries[r]);
+                    actual += viewEntries[r].footprint;
+                    entries.put(viewEntries[r].key, viewEntries[r]);
+                    pin(viewEntries[r]);
+                }
+            }
+            used += actual - reserved;
+
+            // A view keeps its raw run pinned on its own
+            if (!raw) {
+                unpinAll(rawEntries);
+                notifyAll();
+            }
+
+        }
+
+        return Arrays.asList(raw ? rawRuns : views);
+
+    }
+
+    /**
+     * Release the given runs acquired from the cache.
+     *
+     * @param runs
+     *            the runs
+     */
+    public synchronized void release(final List<RunFile> runs) {
+
+        for (final RunFile run : runs) {
+            final Entry entry = entries
+                    .get(new Key(run.getPath(), maxRank, run.getNorm().toString()));
+            if (entry == null || entry.run != run || entry.pins == 0) {
+                throw new IllegalStateException(run + " has not been acquired");
+            }
+            unpin(entry);
+        }
+
+        evict(used - budget);
+        notifyAll();
+
+    }
+
+    /**
+     * Pin the given entry.
+     *
+     * @param entry
+     *            the entry
+     */
+    private void pin(final Entry entry) {
+        if (entry.pins++ == 0) {
+            pinned += entry.footprint;
+        }
+    }
+
+    /**
+     * Unpin the given entry.
+     *
+     * @param entry
+     *            the entry
+     */
+    private void unpin(final Entry entry) {
+        if (--entry.pins == 0) {
+            pinned -= entry.footprint;
+        }
+    }
+
+    /**
+     * Unpin the given entries, skipping the missing ones.
+     *
+     * @param pinnedEntries
+     *            the entries (or null)
+     */
+    private void unpinAll(final Entry[] pinnedEntries) {
+        for (final Entry entry : pinnedEntries) {
+            if (entry != null) {
+                unpin(entry);
+            }
+        }
+    }
+
+    /**
+     * Evict the least recently used runs which are not pinned until the given
+     * amount of memory has been freed or there are no more runs to evict.
+     *
+     * @param excess
+     *            the memory to free
+     */
+    private void evict(final long excess) {
+
+        long remaining = excess;
+        boolean evicted = true;
+
+        // Evicting a view may unpin its raw run
+        while (remaining > 0 && evicted) {
+            evicted = false;
+            final Iterator<Entry> iterator = entries.values().iterator();
+            while (remaining > 0 && iterator.hasNext()) {
+                final Entry entry = iterator.next();
+                if (entry.pins > 0) {
+                    continue;
+                }
+                iterator.remove();
+                used -= entry.footprint;
+                remaining -= entry.footprint;
+                evictions++;
+                evicted = true;
+                if (entry.raw != null) {
+                    unpin(entry.raw);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Gets the number of runs found in the cache.
+     *
+     * @return the number of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of runs read or normalised.
+     *
+     * @return the number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of runs evicted.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Gets the memory used by the runs in the cache.
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ENGLISH,
+                "RunCache[%d runs, %.1f of %.1f MB, %d hits, %d misses, %d evictions]",
+                entries.size(), used / MB, budget / MB, hits, misses, evictions);
+    }
+
+    /**
+     * The Class Key. The path, max rank and normalisation of a run.
+     *
+     * @author daniel.valcarce@udc.es
+     */
+    private static final class Key {
+
+        /** The path to the run file. */
+        private final Path path;
+
+        /** The max rank. */
+        private final int maxRank;
+
+        /** The name of the normalisation. */
+        private final String norm;
+
+        /**
+         * Instantiates a new key.
+         *
+         * @param path
+         *            the path to the run file
+         * @param maxRank
+         *            the max rank
+         * @param norm
+         *            the name of the normalisation
+         */
+        Key(final Path path, final int maxRank, final String norm) {
+            this.path = path;
+            this.maxRank = maxRank;
+            this.norm = norm;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, maxRank, norm);
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return path.equals(other.path) && maxRank == other.maxRank
+                    && norm.equals(other.norm);
+        }
+
+    }
+
+    /**
+     * The Class Entry. A run in the cache.
+     *
+     * @author daniel.valcarce@udc.es
+     */
+    private static final class Entry {
+
+        /** The key. */
+        private final Key key;
+
+        /** The run. */
+        private final RunFile run;
+
+        /** The raw run of a normalised view (or null). */
+        private final Entry raw;
+
+        /** The memory used by the run. */
+        private final long footprint;
+
+        /** The number of pins. */
+        private int pins;
+
+        /**
+         * Instantiates a new entry.
+         *
+         * @param key
+         *            the key
+         * @param run
+         *            the run
+         * @param raw
+         *            the raw run of a normalised view (or null)
+         */
+        Entry(final Key key, final RunFile run, final Entry raw) {
+            this.key = key;
+            this.run = run;
+            this.raw = raw;
+            this.footprint = run.footprint();
+        }
+
+    }
+
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.structures;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+
+import es.udc.fi.dc.irlab.metarecsys.normalisation.NormalisationAlgorithm;
+import net.openhft.koloboke.collect.map.LongIntMap;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMaps;
+
+/**
+ * The Class RunCursor. It reads a TREC run file one user at a time without
+ * loading the whole run. The file is read in windows of a fixed size, so the
+ * memory used by a cursor does not depend on the number of users.
+ *
+ * The ranking of each user is built as {@link RunFile} does: the entries
+ * beyond the maximum rank are dropped, a repeated item replaces the previous
+ * entry and the scores are normalised. The lines of each user must be
+ * contiguous and the users must be sorted by increasing id; otherwise
+ * {@link #next()} throws an {@link IllegalArgumentException}.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public final class RunCursor implements AutoCloseable {
+
+    /** The size of the window read at once. */
+    static final int WINDOW_SIZE = 1 << 20;
+
+    /** The file. */
+    private final Path runPath;
+
+    /** The name of the run. */
+    private final String name;
+
+    /** The maximum rank. */
+    private final int maxRank;
+
+    /** The normalisation algorithm. */
+    private final NormalisationAlgorithm norm;
+
+    /** The channel of the file. */
+    private final FileChannel channel;
+
+    /** The parser. */
+    private final RunParser parser;
+
+    /** The window. */
+    private ByteBuffer window = ByteBuffer.allocate(WINDOW_SIZE);
+
+    /** The offset of the next window in the file. */
+    private long offset;
+
+    /** Whether the whole file has been parsed. */
+    private boolean eof;
+
+    /** The user column of the parsed lines. */
+    private long[] lineUsers = new long[64];
+
+    /** The item column of the parsed lines. */
+    private long[] lineItems = new long[64];
+
+    /** The rank column of the parsed lines. */
+    private int[] lineRanks = new int[64];
+
+    /** The score column of the parsed lines. */
+    private double[] lineScores = new double[64];
+
+    /** The index of the first parsed line not consumed. */
+    private int head;
+
+    /** The index after the last line of the current user. */
+    private int headEnd;
+
+    /** The number of parsed lines. */
+    private int numLines;
+
+    /** Whether there is a current user. */
+    private boolean started;
+
+    /** The current user id. */
+    private long userID;
+
+    /** The items of the current user. */
+    private long[] items = new long[64];
+
+    /** The ranks of the current user. */
+    private int[] ranks = new int[64];
+
+    /** The scores of the current user. */
+    private double[] scores = new double[64];
+
+    /** The number of entries of the current user. */
+    private int size;
+
+    /** The position of each item of the current user. */
+    private final LongIntMap positions = HashLongIntMaps.newUpdatableMap();
+
+    /**
+     * Instantiates a new run cursor before the first user.
+     *
+     * @param runPath
+     *            the path to the run file
+     * @param maxRank
+     *            the maximum rank
+     * @param norm
+     *            the normalisation algorithm
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public RunCursor(final Path runPath, final int maxRank, final NormalisationAlgorithm norm)
+            throws IOException {
+
+        if (runPath == null || norm == null) {
+            throw new IllegalArgumentException();
+        }
+
+        this.runPath = runPath;
+        this.name = RunFile.nameOf(runPath);
+        this.maxRank = maxRank;
+        this.norm = norm;
+        this.channel = FileChannel.open(runPath, StandardOpenOption.READ);
+        this.parser = new RunParser(this::addLine);
+
+    }
+
+    /**
+     * Move to the next user.
+     *
+     * @return true if there is a next user, false at the end of the file
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public boolean next() throws IOException {
+
+        head = headEnd;
+
+        // Read until the lines of the next user are complete
+        while (!eof && (head == numLines || lineUsers[numLines - 1] == lineUsers[head])) {
+            readWindow();
+        }
+        if (head == numLines) {
+            size = 0;
+            return false;
+        }
+
+        final long newUserID = lineUsers[head];
+        if (started && newUserID <= userID) {
+            throw new IllegalArgumentException(String.format(Locale.ENGLISH,
+                    "%s is not sorted by user: user %d after user %d near line %d", runPath,
+                    newUserID, userID, parser.getLineNumber()));
+        }
+
+        headEnd = head;
+        while (headEnd < numLines && lineUsers[headEnd] == newUserID) {
+            headEnd++;
+        }
+
+        userID = newUserID;
+        started = true;
+        size = 0;
+        positions.clear();
+        for (int line = head; line < headEnd; line++) {
+            final int rank = lineRanks[line];
+            if (rank + 1 > maxRank) {
+                continue;
+            }
+            final int previous = positions.getOrDefault(lineItems[line], -1);
+            if (previous >= 0) {
+                ranks[previous] = rank;
+                scores[previous] = lineScores[line];
+                continue;
+            }
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+                ranks = Arrays.copyOf(ranks, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            positions.put(lineItems[line], size);
+            items[size] = lineItems[line];
+            ranks[size] = rank;
+            scores[size] = lineScores[line];
+            size++;
+        }
+        norm.apply(scores, 0, size);
+
+        return true;
+
+    }
+
+    /**
+     * Read and parse the next window of complete lines, discarding the lines
+     * already consumed.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private void readWindow() throws IOException {
+
+        // Discard the consumed lines
+        final int remaining = numLines - head;
+        System.arraycopy(lineUsers, head, lineUsers, 0, remaining);
+        System.arraycopy(lineItems, head, lineItems, 0, remaining);
+        System.arraycopy(lineRanks, head, lineRanks, 0, remaining);
+        System.arraycopy(lineScores, head, lineScores, 0, remaining);
+        numLines = remaining;
+        headEnd -= head;
+        head = 0;
+
+        window.clear();
+        while (window.hasRemaining()) {
+            if (channel.read(window, offset + window.position()) < 0) {
+                break;
+            }
+        }
+
+        final int length = window.position();
+        int limit = length;
+        if (window.hasRemaining()) {
+            eof = true;
+        } else {
+            limit = lastLineEnd(window, length);
+            if (limit == 0) {
+                // A line longer than the window
+                window = ByteBuffer.allocate(window.capacity() * 2);
+                return;
+            }
+        }
+
+        parser.parse(window, 0, limit);
+        offset += limit;
+
+    }
+
+    /**
+     * Get the position after the last line feed of the buffer.
+     *
+     * @param buffer
+     *            the buffer
+     * @param length
+     *            the length of the buffer
+     * @return the position after the last line feed or 0 if there is none
+     */
+    private static int lastLineEnd(final ByteBuffer buffer, final int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Add a parsed line.
+     *
+     * @param lineUserID
+     *            the user id
+     * @param itemID
+     *            the item id
+     * @param rank
+     *            the rank
+     * @param score
+     *            the score
+     */
+    private void addLine(final long lineUserID, final long itemID, final int rank,
+            final double score) {
+
+        if (numLines == lineUsers.length) {
+            final int capacity = numLines * 2;
+            lineUsers = Arrays.copyOf(lineUsers, capacity);
+            lineItems = Arrays.copyOf(lineItems, capacity);
+            lineRanks = Arrays.copyOf(lineRanks, capacity);
+            lineScores = Arrays.copyOf(lineScores, capacity);
+        }
+
+        lineUsers[numLines] = lineUserID;
+        lineItems[numLines] = itemID;
+        lineRanks[numLines] = rank;
+        lineScores[numLines] = score;
+        numLines++;
+
+    }
+
+    /**
+     * Gets the name of the run.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the normalisation algorithm.
+     *
+     * @return the normalisation algorithm
+     */
+    public NormalisationAlgorithm getNorm() {
+        return norm;
+    }
+
+    /**
+     * Check whether the cursor is on a user.
+     *
+     * @return true if there is a current user
+     */
+    public boolean hasUser() {
+        return started && head < headEnd;
+    }
+
+    /**
+     * Gets the current user id.
+     *
+     * @return the user id
+     */
+    public long getUserID() {
+        return userID;
+    }
+
+    /**
+     * Gets the number of entries of the current user.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the item of the given entry of the current user.
+     *
+     * @param i
+     *            the entry
+     * @return the item id
+     */
+    public long getItem(final int i) {
+        return items[i];
+    }
+
+    /**
+     * Gets the rank of the given entry of the current user.
+     *
+     * @param i
+     *            the entry
+     * @return the rank
+     */
+    public int getRank(final int i) {
+        return ranks[i];
+    }
+
+    /**
+     * Gets the score of the given entry of the current user.
+     *
+     * @param i
+     *            the entry
+     * @return the score
+     */
+    public double getScore(final int i) {
+        return scores[i];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.AutoCloseable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "RunCursor[%s,max_rank=%d,%s]", runPath, maxRank,
+                norm);
+    }
+
+}
@@ -15,21 +15,31 @@
  */
 package es.udc.fi.dc.irlab.metarecsys.structures;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
+import es.udc.fi.dc.irlab.metarecsys.normalisation.NoneNormalisation;
 import es.udc.fi.dc.irlab.metarecsys.normalisation.NormalisationAlgorithm;
 import net.openhft.koloboke.collect.map.LongObjMap;
-import net.openhft.koloboke.collect.map.hash.HashLongObjMaps;
 import net.openhft.koloboke.collect.set.LongSet;
 import net.openhft.koloboke.collect.set.hash.HashLongSets;
 
@@ -40,11 +50,38 @@ import net.openhft.koloboke.collect.set.hash.HashLongSets;
  */
 public class RunFile {
 
+    /** The minimum size of the chunks of a run file parsed in parallel. */
+    private static final long MIN_CHUNK_SIZE = 64L << 20;
+
+    /** The average length of a line of a run file for the estimates. */
+    private static final long AVERAGE_LINE_LENGTH = 32;
+
+    /**
+     * The memory used by an entry: the item, rank, score and item order
+     * columns and the item key.
+     */
+    static final long ENTRY_FOOTPRINT = 8 + 4 + 8 + 4 + 4;
+
+    /** The memory used by an entry of a normalised view: its score. */
+    static final long SCORE_FOOTPRINT = 8;
+
+    /**
+     * The memory used by a user: the user, offset and key columns and the
+     * entry of the bitset.
+     */
+    private static final long USER_FOOTPRINT = 8 + 4 + 4 + 1;
+
+    /** The memory used by an item of the set of items. */
+    private static final long ITEM_FOOTPRINT = 16;
+
+    /** The pattern of the names of the run files. */
+    private static final Pattern RUN_PATTERN = Pattern.compile("run-.*-fold[0-9]+\\.txt");
+
     /** The file. */
     private final Path runPath;
 
-    /** The rankings. */
-    private final LongObjMap<LongObjMap<RankScore>> rankings;
+    /** The rankings (replaced by the encoded rankings). */
+    private CompactRankings rankings;
 
     /** The fold. */
     private final int fold;
@@ -56,11 +93,26 @@ public class RunFile {
     private final int maxRank;
 
     /** The items. */
-    private final LongSet items = HashLongSets.newUpdatableSet();
+    private final LongSet items;
 
     /** The name. */
     private final String name;
 
+    /** Whether the run is a normalised view of another run. */
+    private final boolean view;
+
+    /** The dictionary of the fold. */
+    private FoldDictionary dictionary;
+
+    /** The key of each user (sorted as the user ids). */
+    private int[] userKeys;
+
+    /** The user keys as a bitset. */
+    private BitSet userSet;
+
+    /** The users whose scores increase with the rank (null if not checked yet). */
+    private volatile BitSet unsortedUsers;
+
     /**
      * Read the runs from the given folder.
      *
@@ -76,14 +128,138 @@ public class RunFile {
      */
     public static ConcurrentMap<Integer, List<RunFile>> readRuns(final Path folder,
             final int maxRank, final NormalisationAlgorithm norm) throws IOException {
+        return readRuns(folder, maxRank, norm, null, Storage.HEAP);
+    }
 
-        final Pattern pattern = Pattern.compile("run-.*-fold[0-9]+\\.txt");
+    /**
+     * Read the runs from the given folder using the binary sidecars stored in
+     * the cache folder.
+     *
+     * @param folder
+     *            the folder
+     * @param maxRank
+     *            the max rank
+     * @param norm
+     *            the norm
+     * @param cacheFolder
+     *            the folder where the binary sidecars are stored (null to
+     *            disable them)
+     * @param storage
+     *            where the rankings are stored
+     * @return a concurrent map mapping each fold to its RunFile objects
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public static ConcurrentMap<Integer, List<RunFile>> readRuns(final Path folder,
+            final int maxRank, final NormalisationAlgorithm norm, final Path cacheFolder,
+            final Storage storage) throws IOException {
 
-        return Files.list(folder).parallel()
-                .filter(path -> pattern.matcher(path.getFileName().toString()).matches())
-                .map(path -> new RunFile(path, maxRank, norm))
+        final ConcurrentMap<Integer, List<RunFile>> folds = Files.list(folder).parallel()
+                .filter(path -> RUN_PATTERN.matcher(path.getFileName().toString()).matches())
+                .map(path -> new RunFile(path, maxRank, norm, cacheFolder, storage))
                 .collect(Collectors.groupingByConcurrent(RunFile::getFold));
 
+        // The runs of each fold share a dictionary
+        folds.values().forEach(FoldDictionary::encode);
+
+        return folds;
+
+    }
+
+    /**
+     * Read the given runs of a fold. The runs share a dictionary.
+     *
+     * @param runPaths
+     *            the paths to the run files of the fold
+     * @param maxRank
+     *            the max rank
+     * @param norm
+     *            the norm
+     * @param cacheFolder
+     *            the folder where the binary sidecars are stored (null to
+     *            disable them)
+     * @param storage
+     *            where the rankings are stored
+     * @return the runs
+     */
+    public static List<RunFile> readFold(final List<Path> runPaths, final int maxRank,
+            final NormalisationAlgorithm norm, final Path cacheFolder, final Storage storage) {
+
+        final List<RunFile> runs = runPaths.parallelStream()
+                .map(path -> new RunFile(path, maxRank, norm, cacheFolder, storage))
+                .collect(Collectors.toList());
+        FoldDictionary.encode(runs);
+
+        return runs;
+
+    }
+
+    /**
+     * Estimate the number of entries of a run file from its size.
+     *
+     * @param runPath
+     *            the path to the run file
+     * @return the estimated number of entries
+     */
+    public static long estimateEntries(final Path runPath) {
+        return runPath.toFile().length() / AVERAGE_LINE_LENGTH;
+    }
+
+    /**
+     * Estimate the memory used by a run file once it is read, encoded and
+     * normalised from its size.
+     *
+     * @param runPath
+     *            the path to the run file
+     * @param numViews
+     *            the number of normalised views of the run kept at once
+     * @return the estimated number of bytes
+     */
+    public static long estimateFootprint(final Path runPath, final int numViews) {
+        return estimateEntries(runPath) * (ENTRY_FOOTPRINT + numViews * SCORE_FOOTPRINT);
+    }
+
+    /**
+     * List the run files of the given folder by fold without reading them.
+     * The paths of each fold are ordered by name.
+     *
+     * @param folder
+     *            the folder
+     * @return a map mapping each fold to the paths to its run files
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public static SortedMap<Integer, List<Path>> listRuns(final Path folder) throws IOException {
+        try (Stream<Path> paths = Files.list(folder)) {
+            return paths
+                    .filter(path -> RUN_PATTERN.matcher(path.getFileName().toString()).matches())
+                    .sorted().collect(Collectors.groupingBy(RunFile::foldOf, TreeMap::new,
+                            Collectors.toList()));
+        }
+    }
+
+    /**
+     * Gets views of the given runs with their scores normalised with the given
+     * algorithm. The runs must hold raw scores (they must have been read with
+     * {@link NoneNormalisation}), so the same runs serve every normalisation.
+     *
+     * @param folds
+     *            the runs of each fold
+     * @param norm
+     *            the normalisation algorithm
+     * @return a concurrent map mapping each fold to the normalised runs
+     */
+    public static ConcurrentMap<Integer, List<RunFile>> normalise(
+            final Map<Integer, List<RunFile>> folds, final NormalisationAlgorithm norm) {
+
+        final ConcurrentMap<Integer, List<RunFile>> normalised = new ConcurrentHashMap<>();
+        folds.forEach((fold, runs) -> {
+            normalised.put(fold, runs.parallelStream().map(run -> run.normalise(norm))
+                    .collect(Collectors.toList()));
+        });
+
+        return normalised;
+
     }
 
     /**
@@ -97,13 +273,35 @@ public class RunFile {
      *            the normalisation algorithm
      */
     public RunFile(final Path runPath, final int maxRank, final NormalisationAlgorithm norm) {
+        this(runPath, maxRank, norm, null, Storage.HEAP);
+    }
+
+    /**
+     * Instantiates a new RunFile. If a cache folder is given, the run is read
+     * from its binary sidecar when it is up to date; otherwise, the run file is
+     * parsed and the sidecar is written.
+     *
+     * @param runPath
+     *            the path to the TREC run file
+     * @param maxRank
+     *            the maximum number of items in a user ranking
+     * @param norm
+     *            the normalisation algorithm
+     * @param cacheFolder
+     *            the folder where the binary sidecars are stored (null to
+     *            disable them)
+     * @param storage
+     *            where the rankings are stored
+     */
+    public RunFile(final Path runPath, final int maxRank, final NormalisationAlgorithm norm,
+            final Path cacheFolder, final Storage storage) {
 
-        if (runPath == null || norm == null) {
+        if (runPath == null || norm == null || storage == null) {
             throw new IllegalArgumentException();
         }
 
         final String runName = runPath.getFileName().toString();
-        this.name = runName.substring(4, runName.lastIndexOf("-fold"));
+        this.name = nameOf(runPath);
 
         Logger.getGlobal()
                 .info(String.format(Locale.ENGLISH, "Reading %s\t(norm %s)", runName, norm));
@@ -112,79 +310,273 @@ public class RunFile {
         this.norm = norm;
         this.maxRank = maxRank;
 
-        this.fold = computeFold();
-        this.rankings = readRun();
+        this.fold = foldOf(runPath);
+        this.view = false;
+        this.rankings = cacheFolder == null ? storage.store(readRun())
+                : readCachedRun(cacheFolder, storage);
 
+        this.items = HashLongSets.newUpdatableSet();
+        for (int pos = 0; pos < rankings.numEntries(); pos++) {
+            items.add(rankings.getItem(pos));
+        }
+
+    }
+
+    /**
+     * Instantiates a view of a run with a different normalisation. Everything
+     * but the rankings is shared with the original run, including its
+     * encoding.
+     *
+     * @param run
+     *            the original run
+     * @param norm
+     *            the normalisation algorithm
+     * @param rankings
+     *            the normalised rankings
+     */
+    private RunFile(final RunFile run, final NormalisationAlgorithm norm,
+            final CompactRankings rankings) {
+        this.runPath = run.runPath;
+        this.rankings = rankings;
+        this.fold = run.fold;
+        this.norm = norm;
+        this.maxRank = run.maxRank;
+        this.items = run.items;
+        this.name = run.name;
+        this.view = true;
+        this.dictionary = run.dictionary;
+        this.userKeys = run.userKeys;
+        this.userSet = run.userSet;
     }
 
     /**
-     * Read recommendations from a TREC run file.
+     * Gets a view of this run with its scores normalised with the given
+     * algorithm. Only the score column is allocated.
      *
-     * @return map of <user, recommendations>
+     * @param newNorm
+     *            the normalisation algorithm
+     * @return the normalised run
      */
-    private LongObjMap<LongObjMap<RankScore>> readRun() {
+    public RunFile normalise(final NormalisationAlgorithm newNorm) {
 
-        final LongObjMap<LongObjMap<RankScore>> run = HashLongObjMaps
-                .<LongObjMap<RankScore>> newUpdatableMap();
-        LongObjMap<RankScore> prefs = HashLongObjMaps.<RankScore> newUpdatableMap(maxRank);
+        if (!(norm instanceof NoneNormalisation)) {
+            throw new IllegalStateException(this + " does not hold raw scores");
+        }
+        if (newNorm instanceof NoneNormalisation) {
+            return this;
+        }
 
-        int lineNumber = 0;
+        Logger.getGlobal().info(String.format(Locale.ENGLISH, "Normalising %s\t(norm %s)",
+                runPath.getFileName(), newNorm));
 
-        try (final BufferedReader br = Files.newBufferedReader(runPath)) {
+        return new RunFile(this, newNorm, rankings.normalise(newNorm));
 
-            long userID = Long.MIN_VALUE;
-            long newUserID = Long.MIN_VALUE;
-            lineNumber = 1;
+    }
 
-            for (String line; (line = br.readLine()) != null; lineNumber++) {
+    /**
+     * Read recommendations from the binary sidecar of the run file or parse the
+     * run file and write its sidecar.
+     *
+     * @param cacheFolder
+     *            the folder where the binary sidecars are stored
+     * @param storage
+     *            where the rankings are stored
+     * @return the rankings
+     */
+    private CompactRankings readCachedRun(final Path cacheFolder, final Storage storage) {
+
+        final RunSidecar sidecar;
+        try {
+            sidecar = new RunSidecar(cacheFolder, runPath, maxRank, norm);
+            if (sidecar.isValid()) {
+                Logger.getGlobal().info(String.format(Locale.ENGLISH, "Loading %s from %s",
+                        runPath.getFileName(), sidecar.getPath()));
+                return storage == Storage.OFF_HEAP ? sidecar.map() : sidecar.read();
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
 
-                final String[] fields = line.split("\t");
-                newUserID = Long.parseLong(fields[0]);
+        final CompactRankings run = readRun();
 
-                // Check if we have a new user
-                if (userID != newUserID) {
-                    // Save old user data and create array for the new data.
-                    if (userID != Long.MIN_VALUE) {
-                        run.put(userID, norm.apply(prefs));
-                        items.addAll(prefs.keySet());
-                        prefs = HashLongObjMaps.<RankScore> newUpdatableMap(maxRank);
-                    }
-                    userID = newUserID;
-                }
+        try {
+            sidecar.write(run);
+            if (storage == Storage.OFF_HEAP) {
+                return sidecar.map();
+            }
+        } catch (final IOException e) {
+            Logger.getGlobal().warning(String.format(Locale.ENGLISH,
+                    "Unable to write sidecar %s: %s", sidecar.getPath(), e.getMessage()));
+        }
 
-                final int rank = Integer.parseInt(fields[3]);
+        return storage.store(run);
 
-                // Exceeding maxRank
-                if (rank + 1 > maxRank) {
-                    continue;
-                }
+    }
 
-                final long itemID = Long.parseLong(fields[2]);
-                final double score = Double.parseDouble(fields[4]);
-                prefs.put(itemID, new RankScore(rank, score));
+    /**
+     * Read recommendations from a TREC run file. Big files are split in chunks
+     * aligned on user boundaries which are parsed in parallel.
+     *
+     * @return the rankings
+     */
+    private CompactRankings readRun() {
+
+        try (final FileChannel channel = FileChannel.open(runPath, StandardOpenOption.READ)) {
+
+            final int parts = (int) Math.min(ForkJoinPool.getCommonPoolParallelism(),
+                    Math.max(1, channel.size() / MIN_CHUNK_SIZE));
+            final long[] offsets = RunParser.split(channel, parts);
+
+            final List<CompactRankings.Builder> chunks = IntStream
+                    .range(0, offsets.length - 1).parallel()
+                    .mapToObj(i -> readChunk(channel, offsets[i], offsets[i + 1]))
+                    .collect(Collectors.toList());
+
+            // Merge the chunks in file order
+            final CompactRankings run = CompactRankings.build(chunks);
+
+            final int numBlocks = chunks.stream().mapToInt(CompactRankings.Builder::numBlocks)
+                    .sum();
+            if (numBlocks > run.numUsers()) {
+                Logger.getGlobal().warning(String.format(Locale.ENGLISH,
+                        "%s is not grouped by user (%d blocks of lines for %d users): only the "
+                                + "last block of each user is kept; sort it by user first",
+                        runPath, numBlocks, run.numUsers()));
             }
 
-            run.put(newUserID, norm.apply(prefs));
-            items.addAll(prefs.keySet());
+            return run;
 
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+
+    }
+
+    /**
+     * Read the recommendations found between the given offsets of the run
+     * file.
+     *
+     * @param channel
+     *            the channel of the run file
+     * @param start
+     *            the start offset of the chunk
+     * @param end
+     *            the end offset of the chunk
+     * @return the builder with the recommendations of the chunk
+     */
+    private CompactRankings.Builder readChunk(final FileChannel channel, final long start,
+            final long end) {
+
+        final CompactRankings.Builder builder = new CompactRankings.Builder(norm);
+        final RunParser parser = new RunParser(new RunHandler(builder));
+
+        try {
+            parser.parse(channel, start, end);
         } catch (final IOException e) {
             throw new RuntimeException(e);
         } catch (final Exception e) {
             Logger.getGlobal().severe(String.format(Locale.ENGLISH,
-                    "Error in line number %d in file %s", lineNumber, runPath));
+                    "Error in line number %d after byte %d in file %s", parser.getLineNumber(),
+                    start, runPath));
             throw e;
         }
 
-        return run;
+        builder.endUser();
+        return builder;
 
     }
 
     /**
-     * Get the fold for the current run file.
+     * The Class RunHandler. It groups the lines parsed by {@link RunParser} by
+     * user. It assumes that the lines of each user are contiguous; otherwise,
+     * the last block of lines of each user replaces the previous ones (see
+     * {@link RunSorter}).
      *
+     * @author daniel.valcarce@udc.es
+     */
+    private final class RunHandler implements RunParser.LineHandler {
+
+        /** The builder. */
+        private final CompactRankings.Builder builder;
+
+        /** The current user. */
+        private long userID = Long.MIN_VALUE;
+
+        /** Whether any line has been read. */
+        private boolean empty = true;
+
+        /**
+         * Instantiates a new run handler.
+         *
+         * @param builder
+         *            the builder
+         */
+        RunHandler(final CompactRankings.Builder builder) {
+            this.builder = builder;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see
+         * es.udc.fi.dc.irlab.metarecsys.structures.RunParser.LineHandler#accept(
+         * long, long, int, double)
+         */
+        @Override
+        public void accept(final long newUserID, final long itemID, final int rank,
+                final double score) {
+
+            // Check if we have a new user
+            if (empty || userID != newUserID) {
+                builder.startUser(newUserID);
+                userID = newUserID;
+                empty = false;
+            }
+
+            // Exceeding maxRank
+            if (rank + 1 > maxRank) {
+                return;
+            }
+
+            builder.add(itemID, rank, score);
+
+        }
+
+    }
+
+    /**
+     * Encode the users and items of the run with the given dictionary. The item
+     * keys are stored with the rest of the columns of the rankings.
+     *
+     * @param dictionary
+     *            the dictionary of the fold
+     */
+    void encode(final FoldDictionary dictionary) {
+
+        final int numUsers = rankings.numUsers();
+
+        final int[] keys = new int[numUsers];
+        final BitSet set = new BitSet(dictionary.numUsers());
+        for (int u = 0; u < numUsers; u++) {
+            keys[u] = dictionary.getUserKey(rankings.getUserID(u));
+            set.set(keys[u]);
+        }
+
+        this.rankings = rankings.encode(dictionary);
+        this.userKeys = keys;
+        this.userSet = set;
+        this.dictionary = dictionary;
+
+    }
+
+    /**
+     * Get the fold of a run file from its name.
+     *
+     * @param runPath
+     *            the path to the run file
      * @return fold
      */
-    private int computeFold() {
+    public static int foldOf(final Path runPath) {
         final Pattern pattern = Pattern.compile(".*fold([0-9]+)\\.txt");
         final Matcher matcher = pattern.matcher(runPath.toString());
         matcher.find();
@@ -192,12 +584,73 @@ public class RunFile {
     }
 
     /**
-     * Gets the users.
+     * Get the name of a run from the name of its file.
+     *
+     * @param runPath
+     *            the path to the run file
+     * @return the name
+     */
+    public static String nameOf(final Path runPath) {
+        final String runName = runPath.getFileName().toString();
+        return runName.substring(4, runName.lastIndexOf("-fold"));
+    }
+
+    /**
+     * Estimate the memory used by the run. A normalised view only counts the
+     * column of scores that it does not share with the original run.
+     *
+     * @return the estimated number of bytes
+     */
+    public long footprint() {
+        if (view) {
+            return rankings.numEntries() * SCORE_FOOTPRINT;
+        }
+        return rankings.numEntries() * ENTRY_FOOTPRINT + rankings.numUsers() * USER_FOOTPRINT
+                + items.size() * ITEM_FOOTPRINT;
+    }
+
+    /**
+     * Check whether the scores of the given user do not increase along the
+     * ranking and none of them is NaN. The users are checked on the first call.
+     *
+     * @param u
+     *            the user index
+     * @return true if the scores of the user are sorted in decreasing order
+     */
+    public boolean isScoreSorted(final int u) {
+
+        BitSet unsorted = unsortedUsers;
+        if (unsorted == null) {
+            unsorted = new BitSet(rankings.numUsers());
+            for (int v = 0; v < rankings.numUsers(); v++) {
+                double previous = Double.POSITIVE_INFINITY;
+                for (int pos = rankings.getStart(v); pos < rankings.getEnd(v); pos++) {
+                    final double score = rankings.getScore(pos);
+                    if (!(score <= previous)) {
+                        unsorted.set(v);
+                        break;
+                    }
+                    previous = score;
+                }
+            }
+            unsortedUsers = unsorted;
+        }
+
+        return !unsorted.get(u);
+
+    }
+
+    /**
+     * Gets the users. The set is built on every call.
      *
      * @return the users
      */
     public LongSet getUsers() {
-        return rankings.keySet();
+        final LongSet users = HashLongSets.newUpdatableSet(rankings.numUsers());
+        for (int u = 0; u < rankings.numUsers(); u++) {
+            users.add(rankings.getUserID(u));
+        }
+        return users;
     }
 
     /**
@@ -246,14 +699,109 @@ public class RunFile {
     }
 
     /**
-     * Gets the ranking for the given userID.
+     * Gets the compact rankings of the run.
+     *
+     * @return the rankings
+     */
+    public CompactRankings getRankings() {
+        return rankings;
+    }
+
+    /**
+     * Gets the dictionary of the fold.
+     *
+     * @return the dictionary or null if the run is not encoded
+     */
+    public FoldDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Gets the user keys of the run as a bitset. It must not be modified.
+     *
+     * @return the user keys
+     */
+    public BitSet getUserSet() {
+        return userSet;
+    }
+
+    /**
+     * Gets the key of the given user.
+     *
+     * @param u
+     *            the user index
+     * @return the user key
+     */
+    public int getUserKey(final int u) {
+        return userKeys[u];
+    }
+
+    /**
+     * Gets the index of the given user key.
+     *
+     * @param userKey
+     *            the user key
+     * @return the user index or -1 if the user is not present
+     */
+    public int getUserIndex(final int userKey) {
+        final int u = Arrays.binarySearch(userKeys, userKey);
+        return u < 0 ? -1 : u;
+    }
+
+    /**
+     * Gets the item key of the given entry.
+     *
+     * @param pos
+     *            the position of the entry
+     * @return the item key
+     */
+    public int getItemKey(final int pos) {
+        return rankings.getItemKey(pos);
+    }
+
+    /**
+     * Find the entry of the given item key in the ranking of the given user.
+     * Keys follow the order of ids, so the item order of the rankings applies.
+     *
+     * @param u
+     *            the user index
+     * @param itemKey
+     *            the item key
+     * @return the position of the entry or -1 if the item is not present
+     */
+    public int findKey(final int u, final int itemKey) {
+
+        final int start = rankings.getStart(u);
+        int low = start;
+        int high = rankings.getEnd(u) - 1;
+
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int pos = start + rankings.getItemOrder(mid);
+            final int midKey = rankings.getItemKey(pos);
+            if (midKey < itemKey) {
+                low = mid + 1;
+            } else if (midKey > itemKey) {
+                high = mid - 1;
+            } else {
+                return pos;
+            }
+        }
+
+        return -1;
+
+    }
+
+    /**
+     * Gets a copy of the ranking for the given userID.
      *
      * @param userID
      *            the userID
-     * @return the ranking
+     * @return the ranking or null if the user is not present
      */
     public LongObjMap<RankScore> getRanking(final long userID) {
-        return rankings.get(userID);
+        final int u = rankings.indexOf(userID);
+        return u < 0 ? null : rankings.getRanking(u);
     }
 
     /**
@@ -269,9 +817,10 @@ public class RunFile {
      */
     public double getScore(final long userID, final long itemID, final double defaultScore) {
 
-        final RankScore rankScore = rankings.get(userID).get(itemID);
+        final int u = rankings.indexOf(userID);
+        final int pos = u < 0 ? -1 : rankings.find(u, itemID);
 
-        return rankScore == null ? defaultScore : rankScore.getScore();
+        return pos < 0 ? defaultScore : rankings.getScore(pos);
 
     }
 
@@ -287,9 +836,11 @@ public class RunFile {
      * @return the rank or defaultRank if there is no rank
      */
     public int getRank(final long userID, final long itemID, final int defaultRank) {
-        final RankScore rankScore = rankings.get(userID).get(itemID);
 
-        return rankScore == null ? defaultRank : rankScore.getRank();
+        final int u = rankings.indexOf(userID);
+        final int pos = u < 0 ? -1 : rankings.find(u, itemID);
+
+        return pos < 0 ? defaultRank : rankings.getRank(pos);
 
     }
 
@@ -300,7 +851,8 @@ public class RunFile {
      */
     @Override
     public String toString() {
-        return String.format(Locale.ENGLISH, "RunFile[%s,max_rank=%d,%s]", runPath, maxRank, norm);
+        return String.format(Locale.ENGLISH, "RunFile[%s,max_rank=%d,%s,%s]", runPath, maxRank,
+                norm, rankings instanceof OffHeapRankings ? Storage.OFF_HEAP : Storage.HEAP);
     }
 
 }
@@ -0,0 +1,692 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.structures;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The Class RunParser. A TREC run parser that memory-maps the run file and
+ * decodes the user, item, rank and score fields straight from the bytes, so no
+ * objects are created per line.
+ *
+ * Each line has the form {@code user \t Q0 \t item \t rank \t score \t desc}.
+ * Lines may be terminated by {@code \n}, {@code \r} or {@code \r\n}.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public final class RunParser {
+
+    /**
+     * The Functional Interface LineHandler. It receives the decoded fields of
+     * every line.
+     *
+     * @author daniel.valcarce@udc.es
+     */
+    @FunctionalInterface
+    public interface LineHandler {
+
+        /**
+         * Accept a line of the run.
+         *
+         * @param userID
+         *            the user id
+         * @param itemID
+         *            the item id
+         * @param rank
+         *            the rank
+         * @param score
+         *            the score
+         */
+        void accept(long userID, long itemID, int rank, double score);
+
+    }
+
+    /** The maximum number of bytes mapped at once. */
+    static final int MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    /** The largest mantissa that can be converted exactly to a double. */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    /** The powers of ten that are exactly representable as doubles. */
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7,
+            1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21,
+            1e22 };
+
+    /** The line handler. */
+    private final LineHandler handler;
+
+    /** The current line number (starting from 1). */
+    private long lineNumber;
+
+    /** The current position in the buffer. */
+    private int position;
+
+    /**
+     * Instantiates a new run parser.
+     *
+     * @param handler
+     *            the line handler
+     */
+    public RunParser(final LineHandler handler) {
+        if (handler == null) {
+            throw new IllegalArgumentException();
+        }
+        this.handler = handler;
+    }
+
+    /**
+     * Gets the number of the line being parsed (or the number of lines parsed
+     * once parsing has finished).
+     *
+     * @return the line number
+     */
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Parse the whole run file.
+     *
+     * @param runPath
+     *            the path to the run file
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public void parse(final Path runPath) throws IOException {
+        try (final FileChannel channel = FileChannel.open(runPath, StandardOpenOption.READ)) {
+            parse(channel, 0, channel.size());
+        }
+    }
+
+    /**
+     * Parse the lines found between the given offsets of the run file. The
+     * range must start at the beginning of a line. Ranges bigger than
+     * {@link #MAX_SEGMENT_SIZE} are mapped in several segments split at line
+     * boundaries.
+     *
+     * @param channel
+     *            the channel of the run file
+     * @param start
+     *            the start offset (inclusive)
+     * @param end
+     *            the end offset (exclusive)
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public void parse(final FileChannel channel, final long start, final long end)
+            throws IOException {
+        parse(channel, start, end, MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * Parse the lines found between the given offsets of the run file mapping
+     * at most the given number of bytes at once. Segments are split after a
+     * line feed so a carriage return and its line feed always fall in the
+     * same segment.
+     *
+     * @param channel
+     *            the channel of the run file
+     * @param start
+     *            the start offset (inclusive)
+     * @param end
+     *            the end offset (exclusive)
+     * @param segmentSize
+     *            the maximum number of bytes mapped at once
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    void parse(final FileChannel channel, final long start, final long end,
+            final int segmentSize) throws IOException {
+
+        long offset = start;
+
+        while (offset < end) {
+            final int length = (int) Math.min(end - offset, segmentSize);
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+
+            int limit = length;
+            if (offset + length < end) {
+                limit = lastLineEnd(buffer, length);
+                if (limit == 0) {
+                    throw new IOException("Line too long at offset " + offset);
+                }
+            }
+
+            parse(buffer, 0, limit);
+            offset += limit;
+        }
+
+    }
+
+    /**
+     * Split the run file in (at most) the given number of parts of similar
+     * size. Every part starts at the first line of a user so the lines of a
+     * user never span two parts.
+     *
+     * @param channel
+     *            the channel of the run file
+     * @param parts
+     *            the desired number of parts
+     * @return the offsets of the parts: part i spans from offsets[i] to
+     *         offsets[i + 1]
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public static long[] split(final FileChannel channel, final int parts) throws IOException {
+
+        final long size = channel.size();
+        final long[] offsets = new long[Math.max(parts, 1) + 1];
+        int n = 1;
+
+        for (int i = 1; i < parts; i++) {
+            final long boundary = nextUserBoundary(channel, Math.max(size / parts * i,
+                    offsets[n - 1]), size);
+            if (boundary > offsets[n - 1] && boundary < size) {
+                offsets[n++] = boundary;
+            }
+        }
+        offsets[n++] = size;
+
+        return Arrays.copyOf(offsets, n);
+
+    }
+
+    /**
+     * Get the offset of the first line at or after the given offset whose user
+     * differs from the user of the previous line.
+     *
+     * @param channel
+     *            the channel of the run file
+     * @param offset
+     *            the offset
+     * @param size
+     *            the size of the file
+     * @return the offset of the boundary or the size of the file if there is
+     *         no boundary
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private static long nextUserBoundary(final FileChannel channel, final long offset,
+            final long size) throws IOException {
+
+        long window = 1 << 20;
+
+        while (true) {
+            final int length = (int) Math.min(Math.min(size - offset, window), MAX_SEGMENT_SIZE);
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            final boolean last = offset + length == size;
+
+            // Move to the beginning of the next line
+            int position = 0;
+            while (position < length && !isLineEnd(buffer.get(position))) {
+                position++;
+            }
+            position = skipLineEnd(buffer, position, length);
+
+            boolean first = true;
+            long userID = 0;
+            while (position < length) {
+                final int lineEnd = findLineEnd(buffer, position, length);
+                if (lineEnd == length && !last) {
+                    break;
+                }
+                final long newUserID = parseUser(buffer, position, lineEnd);
+                if (!first && newUserID != userID) {
+                    return offset + position;
+                }
+                first = false;
+                userID = newUserID;
+                position = skipLineEnd(buffer, lineEnd, length);
+            }
+
+            if (last) {
+                return size;
+            }
+            if (length == MAX_SEGMENT_SIZE) {
+                throw new IOException("User too long at offset " + offset);
+            }
+            window <<= 1;
+        }
+
+    }
+
+    /**
+     * Check whether the given byte terminates a line.
+     *
+     * @param b
+     *            the byte
+     * @return true if it is a line terminator
+     */
+    private static boolean isLineEnd(final byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    /**
+     * Find the position of the line terminator of the line that starts at the
+     * given position.
+     *
+     * @param buffer
+     *            the buffer
+     * @param position
+     *            the start of the line
+     * @param length
+     *            the length of the buffer
+     * @return the position of the line terminator or the length of the buffer
+     */
+    private static int findLineEnd(final ByteBuffer buffer, final int position,
+            final int length) {
+        int i = position;
+        while (i < length && !isLineEnd(buffer.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Skip the line terminator found at the given position.
+     *
+     * @param buffer
+     *            the buffer
+     * @param position
+     *            the position of the line terminator
+     * @param length
+     *            the length of the buffer
+     * @return the position of the next line
+     */
+    private static int skipLineEnd(final ByteBuffer buffer, final int position,
+            final int length) {
+        if (position < length && buffer.get(position) == '\r') {
+            return position + 1 < length && buffer.get(position + 1) == '\n' ? position + 2
+                    : position + 1;
+        }
+        return position + 1;
+    }
+
+    /**
+     * Parse the user field of a line leniently. It is only used to find user
+     * boundaries; malformed lines are reported later by the parser.
+     *
+     * @param buffer
+     *            the buffer
+     * @param position
+     *            the start of the line
+     * @param lineEnd
+     *            the end of the line
+     * @return the user id
+     */
+    private static long parseUser(final ByteBuffer buffer, final int position,
+            final int lineEnd) {
+        long userID = 0;
+        boolean negative = false;
+        for (int i = position; i < lineEnd; i++) {
+            final byte b = buffer.get(i);
+            if (b == '\t') {
+                break;
+            } else if (b == '-') {
+                negative = true;
+            } else {
+                userID = userID * 10 + (b - '0');
+            }
+        }
+        return negative ? -userID : userID;
+    }
+
+    /**
+     * Parse the lines found between the given positions of the buffer. The
+     * range must start at the beginning of a line.
+     *
+     * @param buffer
+     *            the buffer
+     * @param start
+     *            the start position (inclusive)
+     * @param end
+     *            the end position (exclusive)
+     */
+    public void parse(final ByteBuffer buffer, final int start, final int end) {
+
+        position = start;
+
+        while (position < end) {
+            lineNumber++;
+
+            final long userID = parseLong(buffer, end);
+            skipField(buffer, end);
+            final long itemID = parseLong(buffer, end);
+            final long rank = parseLong(buffer, end);
+            if (rank < Integer.MIN_VALUE || rank > Integer.MAX_VALUE) {
+                throw new NumberFormatException("Rank out of range: " + rank);
+            }
+            final double score = parseDouble(buffer, end);
+
+            handler.accept(userID, itemID, (int) rank, score);
+
+            skipLine(buffer, end);
+        }
+
+    }
+
+    /**
+     * Get the position after the last line feed of the buffer.
+     *
+     * @param buffer
+     *            the buffer
+     * @param length
+     *            the length of the buffer
+     * @return the position after the last line feed or 0 if there is none
+     */
+    private static int lastLineEnd(final ByteBuffer buffer, final int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Check whether the given byte terminates a field.
+     *
+     * @param b
+     *            the byte
+     * @return true if it is a tab or a line terminator
+     */
+    private static boolean isDelimiter(final byte b) {
+        return b == '\t' || b == '\n' || b == '\r';
+    }
+
+    /**
+     * Consume the field delimiter that follows a field. Line terminators are
+     * not consumed.
+     *
+     * @param buffer
+     *            the buffer
+     * @param end
+     *            the end of the parsing range
+     */
+    private void endField(final ByteBuffer buffer, final int end) {
+        if (position < end) {
+            final byte b = buffer.get(position);
+            if (b == '\t') {
+                position++;
+            } else if (b != '\n' && b != '\r') {
+                throw new NumberFormatException(
+                        "Unexpected character '" + (char) b + "' in field");
+            }
+        }
+    }
+
+    /**
+     * Check that a field starts at the current position.
+     *
+     * @param buffer
+     *            the buffer
+     * @param end
+     *            the end of the parsing range
+     */
+    private void checkField(final ByteBuffer buffer, final int end) {
+        if (position >= end || isDelimiter(buffer.get(position))) {
+            throw new NumberFormatException("Missing or empty field");
+        }
+    }
+
+    /**
+     * Skip the current field.
+     *
+     * @param buffer
+     *            the buffer
+     * @param end
+     *            the end of the parsing range
+     */
+    private void skipField(final ByteBuffer buffer, final int end) {
+        checkField(buffer, end);
+        while (position < end && !isDelimiter(buffer.get(position))) {
+            position++;
+        }
+        endField(buffer, end);
+    }
+
+    /**
+     * Skip the rest of the line including its terminator.
+     *
+     * @param buffer
+     *            the buffer
+     * @param end
+     *            the end of the parsing range
+     */
+    private void skipLine(final ByteBuffer buffer, final int end) {
+        while (position < end) {
+            final byte b = buffer.get(position++);
+            if (b == '\n') {
+                return;
+            }
+            if (b == '\r') {
+                if (position < end && buffer.get(position) == '\n') {
+                    position++;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Parse a long field with the same syntax as {@link Long#parseLong}.
+     *
+     * @param buffer
+     *            the buffer
+     * @param end
+     *            the end of the parsing range
+     * @return the long
+     */
+    private long parseLong(final ByteBuffer buffer, final int end) {
+
+        checkField(buffer, end);
+
+        boolean negative = false;
+        byte b = buffer.get(position);
+        if (b == '-' || b == '+') {
+            negative = b == '-';
+            position++;
+        }
+
+        // Accumulate negatively to cover Long.MIN_VALUE
+        final long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        final long multiplyLimit = limit / 10;
+        long result = 0;
+        int digits = 0;
+
+        while (position < end && !isDelimiter(b = buffer.get(position))) {
+            final int digit = b - '0';
+            if (digit < 0 || digit > 9 || result < multiplyLimit) {
+                throw new NumberFormatException("Invalid integer field");
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                throw new NumberFormatException("Invalid integer field");
+            }
+            result -= digit;
+            digits++;
+            position++;
+        }
+
+        if (digits == 0) {
+            throw new NumberFormatException("Invalid integer field");
+        }
+
+        endField(buffer, end);
+        return negative ? result : -result;
+
+    }
+
+    /**
+     * Parse a double field. Plain decimal numbers with at most 15 significant
+     * digits and a small exponent are converted exactly with a single
+     * multiplication or division; anything else falls back to
+     * {@link Double#parseDouble} so that the result is always the same.
+     *
+     * @param buffer
+     *            the buffer
+     * @param end
+     *            the end of the parsing range
+     * @return the double
+     */
+    private double parseDouble(final ByteBuffer buffer, final int end) {
+
+        checkField(buffer, end);
+
+        final int start = position;
+        boolean negative = false;
+        byte b = buffer.get(position);
+        if (b == '-' || b == '+') {
+            negative = b == '-';
+            position++;
+        }
+
+        long mantissa = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+        int digits = 0;
+        boolean fraction = false;
+        boolean simple = true;
+
+        while (position < end && !isDelimiter(b = buffer.get(position))) {
+            if (b >= '0' && b <= '9') {
+                digits++;
+                if (mantissa != 0 || b != '0') {
+                    if (++significantDigits > 15) {
+                        simple = false;
+                        break;
+                    }
+                    mantissa = mantissa * 10 + (b - '0');
+                }
+                if (fraction) {
+                    exponent--;
+                }
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else if ((b == 'e' || b == 'E') && digits > 0) {
+                position++;
+                final int exp = parseExponent(buffer, end);
+                if (exp == Integer.MIN_VALUE) {
+                    simple = false;
+                    break;
+                }
+                exponent += exp;
+                break;
+            } else {
+                simple = false;
+                break;
+            }
+            position++;
+        }
+
+        if (simple && digits > 0 && (position >= end || isDelimiter(buffer.get(position)))) {
+
+            double result;
+            if (mantissa == 0) {
+                result = 0.0;
+            } else if (mantissa < MAX_EXACT_MANTISSA && exponent >= 0
+                    && exponent < POWERS_OF_TEN.length) {
+                result = mantissa * POWERS_OF_TEN[exponent];
+            } else if (mantissa < MAX_EXACT_MANTISSA && exponent < 0
+                    && -exponent < POWERS_OF_TEN.length) {
+                result = mantissa / POWERS_OF_TEN[-exponent];
+            } else {
+                result = slowParseDouble(buffer, start, end);
+            }
+
+            endField(buffer, end);
+            return negative ? -result : result;
+
+        }
+
+        final double result = slowParseDouble(buffer, start, end);
+        endField(buffer, end);
+        return result;
+
+    }
+
+    /**
+     * Parse the exponent of a double field.
+     *
+     * @param buffer
+     *            the buffer
+     * @param end
+     *            the end of the parsing range
+     * @return the exponent or {@code Integer.MIN_VALUE} if it is not a plain
+     *         small exponent
+     */
+    private int parseExponent(final ByteBuffer buffer, final int end) {
+
+        boolean negative = false;
+        byte b;
+        if (position < end && ((b = buffer.get(position)) == '-' || b == '+')) {
+            negative = b == '-';
+            position++;
+        }
+
+        int exponent = 0;
+        int digits = 0;
+        while (position < end && !isDelimiter(b = buffer.get(position))) {
+            if (b < '0' || b > '9' || exponent > 1000) {
+                return Integer.MIN_VALUE;
+            }
+            exponent = exponent * 10 + (b - '0');
+            digits++;
+            position++;
+        }
+
+        if (digits == 0) {
+            return Integer.MIN_VALUE;
+        }
+        return negative ? -exponent : exponent;
+
+    }
+
+    /**
+     * Parse the double field that starts in the given position with
+     * {@link Double#parseDouble}.
+     *
+     * @param buffer
+     *            the buffer
+     * @param start
+     *            the start of the field
+     * @param end
+     *            the end of the parsing range
+     * @return the double
+     */
+    private double slowParseDouble(final ByteBuffer buffer, final int start, final int end) {
+
+        position = start;
+        while (position < end && !isDelimiter(buffer.get(position))) {
+            position++;
+        }
+
+        final byte[] bytes = new byte[position - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+
+        return Double.parseDouble(new String(bytes, StandardCharsets.ISO_8859_1));
+
+    }
+
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.structures;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+import es.udc.fi.dc.irlab.metarecsys.normalisation.NormalisationAlgorithm;
+
+/**
+ * The Class RunSidecar. A compact binary copy of a parsed and normalised run
+ * file which can be memory-mapped instead of parsing the run file again.
+ *
+ * The sidecar starts with a header that identifies the source run file (size
+ * and modification time), the max rank and the normalisation. The header is
+ * followed by the columns of {@link CompactRankings}: the sorted user ids,
+ * the offsets of the rankings of each user and the item, rank, score and item
+ * order columns.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public final class RunSidecar {
+
+    /** The magic number of sidecar files ("MRSC"). */
+    private static final int MAGIC = 0x4D525343;
+
+    /** The version of the format. */
+    private static final int VERSION = 2;
+
+    /** The path to the sidecar. */
+    private final Path path;
+
+    /** The size of the run file. */
+    private final long sourceSize;
+
+    /** The modification time of the run file. */
+    private final long sourceTime;
+
+    /** The max rank. */
+    private final int maxRank;
+
+    /** The normalisation. */
+    private final String norm;
+
+    /**
+     * Instantiates a new sidecar for the given run file.
+     *
+     * @param cacheFolder
+     *            the folder where sidecars are stored
+     * @param runPath
+     *            the path to the run file
+     * @param maxRank
+     *            the max rank
+     * @param norm
+     *            the normalisation algorithm
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public RunSidecar(final Path cacheFolder, final Path runPath, final int maxRank,
+            final NormalisationAlgorithm norm) throws IOException {
+
+        this.path = cacheFolder.resolve(String.format(Locale.ENGLISH, "%s.%s-m%d.bin",
+                runPath.getFileName(), norm, maxRank));
+        this.sourceSize = Files.size(runPath);
+        this.sourceTime = Files.getLastModifiedTime(runPath).toMillis();
+        this.maxRank = maxRank;
+        this.norm = norm.toString();
+
+    }
+
+    /**
+     * Gets the path to the sidecar.
+     *
+     * @return the path
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Check whether the sidecar exists and matches the run file.
+     *
+     * @return true if the sidecar can be read
+     */
+    public boolean isValid() {
+
+        if (!Files.isRegularFile(path)) {
+            return false;
+        }
+
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(channel.size(), 1024));
+            return readHeader(header);
+        } catch (final Exception e) {
+            return false;
+        }
+
+    }
+
+    /**
+     * Read and check the header.
+     *
+     * @param buffer
+     *            the buffer positioned at the beginning of the header
+     * @return true if the header matches the run file
+     */
+    private boolean readHeader(final ByteBuffer buffer) {
+
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                || buffer.getLong() != sourceSize || buffer.getLong() != sourceTime
+                || buffer.getInt() != maxRank) {
+            return false;
+        }
+
+        final byte[] normBytes = new byte[buffer.getShort()];
+        buffer.get(normBytes);
+        return norm.equals(new String(normBytes, StandardCharsets.UTF_8));
+
+    }
+
+    /**
+     * Read the rankings from the sidecar into the heap.
+     *
+     * @return the rankings
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public CompactRankings read() throws IOException {
+
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+
+            final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(channel.size(), 1024));
+            if (!readHeader(header)) {
+                throw new IOException("Invalid sidecar " + path);
+            }
+
+            final int numUsers = header.getInt();
+            final int numEntries = header.getInt();
+
+            final long[] users = new long[numUsers];
+            final int[] offsets = new int[numUsers + 1];
+            final long[] items = new long[numEntries];
+            final int[] ranks = new int[numEntries];
+            final double[] scores = new double[numEntries];
+            final int[] itemOrder = new int[numEntries];
+
+            long offset = header.position();
+            map(channel, offset, 8L * numUsers).asLongBuffer().get(users);
+            offset += 8L * numUsers;
+            map(channel, offset, 4L * (numUsers + 1)).asIntBuffer().get(offsets);
+            offset += 4L * (numUsers + 1);
+            map(channel, offset, 8L * numEntries).asLongBuffer().get(items);
+            offset += 8L * numEntries;
+            map(channel, offset, 4L * numEntries).asIntBuffer().get(ranks);
+            offset += 4L * numEntries;
+            map(channel, offset, 8L * numEntries).asDoubleBuffer().get(scores);
+            offset += 8L * numEntries;
+            map(channel, offset, 4L * numEntries).asIntBuffer().get(itemOrder);
+
+            return new HeapRankings(users, offsets, items, ranks, scores, itemOrder);
+
+        }
+
+    }
+
+    /**
+     * Map the columns of the sidecar without copying them to the heap.
+     *
+     * @return the rankings
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public OffHeapRankings map() throws IOException {
+
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+
+            final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(channel.size(), 1024));
+            if (!readHeader(header)) {
+                throw new IOException("Invalid sidecar " + path);
+            }
+
+            final int numUsers = header.getInt();
+            final int numEntries = header.getInt();
+
+            long offset = header.position();
+            final LongBuffer users = map(channel, offset, 8L * numUsers).asLongBuffer();
+            offset += 8L * numUsers;
+            final IntBuffer offsets = map(channel, offset, 4L * (numUsers + 1)).asIntBuffer();
+            offset += 4L * (numUsers + 1);
+            final LongBuffer items = map(channel, offset, 8L * numEntries).asLongBuffer();
+            offset += 8L * numEntries;
+            final IntBuffer ranks = map(channel, offset, 4L * numEntries).asIntBuffer();
+            offset += 4L * numEntries;
+            final DoubleBuffer scores = map(channel, offset, 8L * numEntries).asDoubleBuffer();
+            offset += 8L * numEntries;
+            final IntBuffer itemOrder = map(channel, offset, 4L * numEntries).asIntBuffer();
+
+            return new OffHeapRankings(users, offsets, items, ranks, scores, itemOrder);
+
+        }
+
+    }
+
+    /**
+     * Map a region of the sidecar.
+     *
+     * @param channel
+     *            the channel of the sidecar
+     * @param offset
+     *            the offset of the region
+     * @param size
+     *            the size of the region
+     * @return the mapped buffer
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private static ByteBuffer map(final FileChannel channel, final long offset, final long size)
+            throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Sidecar column too big: " + size + " bytes");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+    }
+
+    /**
+     * Write the given rankings to the sidecar. The sidecar is written to a
+     * temporary file first and then moved atomically.
+     *
+     * @param rankings
+     *            the rankings
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public void write(final CompactRankings rankings) throws IOException {
+
+        final Path tempPath = Files.createTempFile(path.getParent(),
+                path.getFileName().toString(), ".tmp");
+
+        try (final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tempPath), 1 << 16))) {
+
+            final byte[] normBytes = norm.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceSize);
+            out.writeLong(sourceTime);
+            out.writeInt(maxRank);
+            out.writeShort(normBytes.length);
+            out.write(normBytes);
+            out.writeInt(rankings.numUsers());
+            out.writeInt(rankings.numEntries());
+
+            final int numUsers = rankings.numUsers();
+            final int numEntries = rankings.numEntries();
+
+            for (int u = 0; u < numUsers; u++) {
+                out.writeLong(rankings.getUserID(u));
+            }
+            for (int u = 0; u < numUsers; u++) {
+                out.writeInt(rankings.getStart(u));
+            }
+            out.writeInt(numEntries);
+            for (int pos = 0; pos < numEntries; pos++) {
+                out.writeLong(rankings.getItem(pos));
+            }
+            for (int pos = 0; pos < numEntries; pos++) {
+                out.writeInt(rankings.getRank(pos));
+            }
+            for (int pos = 0; pos < numEntries; pos++) {
+                out.writeDouble(rankings.getScore(pos));
+            }
+            for (int pos = 0; pos < numEntries; pos++) {
+                out.writeInt(rankings.getItemOrder(pos));
+            }
+
+        } catch (final IOException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+
+        Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+
+    }
+
+}
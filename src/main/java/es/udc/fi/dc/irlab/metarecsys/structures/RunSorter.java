@@ -0,0 +1,542 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.structures;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * The Class RunSorter. It sorts run files by user with an external merge
+ * sort: the run file is split in chunks which are parsed and sorted in
+ * parallel and spilled to temporary files, and the spilled chunks are merged
+ * into a run file sorted by user with a {@link UserIndex}.
+ *
+ * The sort is stable, so the lines of each user keep their order in the
+ * original file and a repeated item still replaces the previous one. The
+ * memory used is about the chunk size times the number of threads of the
+ * common pool.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public final class RunSorter {
+
+    /** The default size of the chunks sorted in memory. */
+    public static final long DEFAULT_CHUNK_SIZE = 64L << 20;
+
+    /** The size of the buffers of the spilled chunks. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** The size of a spilled line: user, item, rank and score. */
+    private static final int RECORD_SIZE = 8 + 8 + 4 + 8;
+
+    /** The folder of the spilled chunks. */
+    private final Path tempFolder;
+
+    /** The size of the chunks sorted in memory. */
+    private final long chunkSize;
+
+    /**
+     * Instantiates a new run sorter.
+     *
+     * @param tempFolder
+     *            the folder of the spilled chunks
+     * @param chunkSize
+     *            the size in bytes of the chunks sorted in memory
+     */
+    public RunSorter(final Path tempFolder, final long chunkSize) {
+
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException(chunkSize + " is not a valid chunk size");
+        }
+
+        this.tempFolder = tempFolder;
+        this.chunkSize = chunkSize;
+
+    }
+
+    /**
+     * Sort the run files of the given folder by user into the destination
+     * folder, keeping their names. Run files already sorted from their current
+     * version are not sorted again.
+     *
+     * @param folder
+     *            the folder of the run files
+     * @param destFolder
+     *            the destination folder, created if needed
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public void sortRuns(final Path folder, final Path destFolder) throws IOException {
+
+        Files.createDirectories(destFolder);
+        if (Files.isSameFile(folder, destFolder)) {
+            throw new IllegalArgumentException("The runs cannot be sorted in their folder");
+        }
+
+        for (final List<Path> runPaths : RunFile.listRuns(folder).values()) {
+            for (final Path runPath : runPaths) {
+                sort(runPath, destFolder.resolve(runPath.getFileName()));
+            }
+        }
+
+    }
+
+    /**
+     * Sort a run file by user unless the sorted file is up to date.
+     *
+     * @param runPath
+     *            the path to the run file
+     * @param sortedPath
+     *            the path to the sorted run file
+     * @return the index of the sorted run file
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public UserIndex sort(final Path runPath, final Path sortedPath) throws IOException {
+
+        final UserIndex existing = UserIndex.read(sortedPath);
+        if (existing != null && existing.isSortedFrom(runPath)) {
+            Logger.getGlobal().info(String.format(Locale.ENGLISH, "%s is already sorted in %s",
+                    runPath.getFileName(), sortedPath));
+            return existing;
+        }
+
+        Logger.getGlobal().info(String.format(Locale.ENGLISH, "Sorting %s into %s",
+                runPath.getFileName(), sortedPath));
+
+        final long sourceSize = Files.size(runPath);
+        final long sourceTime = Files.getLastModifiedTime(runPath).toMillis();
+        final List<Path> spills = new ArrayList<Path>();
+
+        try {
+
+            // Sort the chunks in parallel
+            try (final FileChannel channel = FileChannel.open(runPath,
+                    StandardOpenOption.READ)) {
+                final int parts = (int) Math.max(1, (sourceSize + chunkSize - 1) / chunkSize);
+                final long[] offsets = RunParser.split(channel, parts);
+                final Path[] chunks = new Path[offsets.length - 1];
+                try {
+                    IntStream.range(0, chunks.length).parallel().forEach(i -> {
+                        chunks[i] = spillChunk(runPath, channel, offsets[i], offsets[i + 1]);
+                    });
+                } finally {
+                    Arrays.stream(chunks).filter(chunk -> chunk != null).forEach(spills::add);
+                }
+            }
+
+            // Merge them
+            final Path tempPath = Files.createTempFile(sortedPath.toAbsolutePath().getParent(),
+                    sortedPath.getFileName().toString(), ".tmp");
+            final UserIndex index;
+            try {
+                index = merge(spills, tempPath, RunFile.nameOf(runPath), sourceSize, sourceTime);
+            } catch (final IOException | RuntimeException e) {
+                Files.deleteIfExists(tempPath);
+                throw e;
+            }
+            // The index of a previous sort is no longer valid
+            Files.deleteIfExists(UserIndex.indexPath(sortedPath));
+            Files.move(tempPath, sortedPath, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            index.write(sortedPath);
+
+            return index;
+
+        } finally {
+            for (final Path spill : spills) {
+                Files.deleteIfExists(spill);
+            }
+        }
+
+    }
+
+    /**
+     * Parse a chunk of the run file, sort its lines by user and spill them.
+     *
+     * @param runPath
+     *            the path to the run file
+     * @param channel
+     *            the channel of the run file
+     * @param start
+     *            the start offset of the chunk
+     * @param end
+     *            the end offset of the chunk
+     * @return the path to the spilled chunk
+     */
+    private Path spillChunk(final Path runPath, final FileChannel channel, final long start,
+            final long end) {
+
+        final Chunk chunk = new Chunk((int) Math.min((end - start) / 16 + 1, 1 << 20));
+        final RunParser parser = new RunParser(chunk::add);
+
+        try {
+            parser.parse(channel, start, end);
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        } catch (final Exception e) {
+            Logger.getGlobal().severe(String.format(Locale.ENGLISH,
+                    "Error in line number %d after byte %d in file %s", parser.getLineNumber(),
+                    start, runPath));
+            throw e;
+        }
+
+        final int[] order = chunk.sortByUser();
+
+        try {
+            final Path spill = Files.createTempFile(tempFolder,
+                    runPath.getFileName().toString(), ".spill");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(spill), BUFFER_SIZE))) {
+                out.writeInt(chunk.size);
+                for (final int line : order) {
+                    out.writeLong(chunk.users[line]);
+                    out.writeLong(chunk.items[line]);
+                    out.writeInt(chunk.ranks[line]);
+                    out.writeDouble(chunk.scores[line]);
+                }
+            }
+            return spill;
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+
+    }
+
+    /**
+     * Merge the spilled chunks into a run file sorted by user. The lines of a
+     * user found in several chunks are written in the order of the chunks.
+     *
+     * @param spills
+     *            the spilled chunks in file order
+     * @param sortedPath
+     *            the path to the sorted run file
+     * @param name
+     *            the name of the run
+     * @param sourceSize
+     *            the size of the run file
+     * @param sourceTime
+     *            the modification time of the run file
+     * @return the index of the sorted run file
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private static UserIndex merge(final List<Path> spills, final Path sortedPath,
+            final String name, final long sourceSize, final long sourceTime)
+            throws IOException {
+
+        final PriorityQueue<SpillReader> queue = new PriorityQueue<SpillReader>(
+                Math.max(1, spills.size()), Comparator.comparingLong(SpillReader::getUserID)
+                        .thenComparingInt(SpillReader::getNumber));
+
+        long[] users = new long[1024];
+        long[] offsets = new long[1025];
+        int numUsers = 0;
+        long offset = 0;
+
+        try (OutputStream out = Files.newOutputStream(sortedPath)) {
+
+            for (int i = 0; i < spills.size(); i++) {
+                final SpillReader reader = new SpillReader(spills.get(i), i);
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+
+            final TrecEncoder encoder = new TrecEncoder(2 * BUFFER_SIZE);
+
+            while (!queue.isEmpty()) {
+
+                final SpillReader reader = queue.poll();
+
+                if (numUsers == 0 || users[numUsers - 1] != reader.userID) {
+                    if (numUsers == users.length) {
+                        users = Arrays.copyOf(users, 2 * numUsers);
+                        offsets = Arrays.copyOf(offsets, 2 * numUsers + 1);
+                    }
+                    users[numUsers] = reader.userID;
+                    offsets[numUsers++] = offset + encoder.size();
+                }
+
+                encoder.appendExactLine(reader.userID, reader.itemID, reader.rank,
+                        reader.score, name);
+                if (encoder.size() >= BUFFER_SIZE) {
+                    encoder.writeTo(out);
+                    offset += encoder.size();
+                    encoder.clear();
+                }
+
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+
+            }
+
+            encoder.writeTo(out);
+            offset += encoder.size();
+
+        } finally {
+            for (final SpillReader reader : queue) {
+                reader.close();
+            }
+        }
+
+        offsets[numUsers] = offset;
+        return new UserIndex(sourceSize, sourceTime, Arrays.copyOf(users, numUsers),
+                Arrays.copyOf(offsets, numUsers + 1));
+
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "RunSorter[%s,chunk=%d]", tempFolder, chunkSize);
+    }
+
+    /**
+     * The Class Chunk. The parsed lines of a chunk in columns.
+     *
+     * @author daniel.valcarce@udc.es
+     */
+    private static final class Chunk {
+
+        /** The user column. */
+        private long[] users;
+
+        /** The item column. */
+        private long[] items;
+
+        /** The rank column. */
+        private int[] ranks;
+
+        /** The score column. */
+        private double[] scores;
+
+        /** The number of lines. */
+        private int size;
+
+        /**
+         * Instantiates a new chunk.
+         *
+         * @param capacity
+         *            the initial number of lines
+         */
+        Chunk(final int capacity) {
+            this.users = new long[capacity];
+            this.items = new long[capacity];
+            this.ranks = new int[capacity];
+            this.scores = new double[capacity];
+        }
+
+        /**
+         * Add a parsed line.
+         *
+         * @param userID
+         *            the user id
+         * @param itemID
+         *            the item id
+         * @param rank
+         *            the rank
+         * @param score
+         *            the score
+         */
+        void add(final long userID, final long itemID, final int rank, final double score) {
+
+            if (size == users.length) {
+                final int capacity = size * 2;
+                users = Arrays.copyOf(users, capacity);
+                items = Arrays.copyOf(items, capacity);
+                ranks = Arrays.copyOf(ranks, capacity);
+                scores = Arrays.copyOf(scores, capacity);
+            }
+
+            users[size] = userID;
+            items[size] = itemID;
+            ranks[size] = rank;
+            scores[size] = score;
+            size++;
+
+        }
+
+        /**
+         * Sort the lines by user keeping the order of the lines of each user.
+         *
+         * @return the lines in order
+         */
+        int[] sortByUser() {
+
+            int[] order = IntStream.range(0, size).toArray();
+
+            boolean sorted = true;
+            for (int i = 1; i < size && sorted; i++) {
+                sorted = users[i - 1] <= users[i];
+            }
+            if (sorted) {
+                return order;
+            }
+
+            // Bottom-up merge sort, which is stable
+            int[] merged = new int[size];
+            for (int width = 1; width < size; width *= 2) {
+                for (int from = 0; from < size; from += 2 * width) {
+                    final int middle = Math.min(from + width, size);
+                    final int to = Math.min(from + 2 * width, size);
+                    int left = from;
+                    int right = middle;
+                    for (int i = from; i < to; i++) {
+                        if (right >= to
+                                || left < middle && users[order[left]] <= users[order[right]]) {
+                            merged[i] = order[left++];
+                        } else {
+                            merged[i] = order[right++];
+                        }
+                    }
+                }
+                final int[] swap = order;
+                order = merged;
+                merged = swap;
+            }
+
+            return order;
+
+        }
+
+    }
+
+    /**
+     * The Class SpillReader. It reads the lines of a spilled chunk in order.
+     *
+     * @author daniel.valcarce@udc.es
+     */
+    private static final class SpillReader implements AutoCloseable {
+
+        /** The stream. */
+        private final DataInputStream in;
+
+        /** The number of the chunk in the file. */
+        private final int number;
+
+        /** The number of lines left. */
+        private int remaining;
+
+        /** The user of the current line. */
+        private long userID;
+
+        /** The item of the current line. */
+        private long itemID;
+
+        /** The rank of the current line. */
+        private int rank;
+
+        /** The score of the current line. */
+        private double score;
+
+        /**
+         * Instantiates a new spill reader.
+         *
+         * @param spill
+         *            the path to the spilled chunk
+         * @param number
+         *            the number of the chunk in the file
+         * @throws IOException
+         *             Signals that an I/O exception has occurred.
+         */
+        SpillReader(final Path spill, final int number) throws IOException {
+            this.in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(spill), BUFFER_SIZE));
+            this.number = number;
+            this.remaining = in.readInt();
+            if (Files.size(spill) != 4 + (long) RECORD_SIZE * remaining) {
+                in.close();
+                throw new IOException("Truncated chunk " + spill);
+            }
+        }
+
+        /**
+         * Move to the next line.
+         *
+         * @return true if there is a next line
+         * @throws IOException
+         *             Signals that an I/O exception has occurred.
+         */
+        boolean next() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            userID = in.readLong();
+            itemID = in.readLong();
+            rank = in.readInt();
+            score = in.readDouble();
+            return true;
+        }
+
+        /**
+         * Gets the user of the current line.
+         *
+         * @return the user id
+         */
+        long getUserID() {
+            return userID;
+        }
+
+        /**
+         * Gets the number of the chunk in the file.
+         *
+         * @return the number
+         */
+        int getNumber() {
+            return number;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.lang.AutoCloseable#close()
+         */
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,547 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.structures;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * The Class SegmentOutputStore. It appends the runs to a few large segment
+ * files instead of writing a file per run, and records the segment, offset and
+ * length of each run in an index. This avoids the creation, lookup and rename
+ * of a file per run.
+ *
+ * The index is a tab-separated text file with a line per committed run: name,
+ * segment, offset and length. The bytes of a run are written to its segment
+ * before its line is appended to the index, so the runs of an interrupted
+ * execution which are not in the index are computed again when it is
+ * resumed. Each execution appends to new segments.
+ *
+ * Each run being written holds a segment of its own, taken from a pool when
+ * it is created and returned when it is committed or discarded, so the runs
+ * are streamed to their segments without buffering them and without a lock.
+ * The bytes of a discarded run are left unindexed and overwritten by the next
+ * run of the segment.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public final class SegmentOutputStore implements OutputStore, AutoCloseable {
+
+    /** The name of the index file. */
+    public static final String INDEX_FILE = "index.tsv";
+
+    /** The format of the name of a segment file. */
+    private static final String SEGMENT_FORMAT = "segment-%05d.bin";
+
+    /** The size of the buffer of a run being written. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** The folder. */
+    private final Path folder;
+
+    /** The maximum size of a segment in bytes. */
+    private final long segmentSize;
+
+    /** The committed runs by name. */
+    private final Map<String, Location> index = new ConcurrentHashMap<String, Location>();
+
+    /** The names of the runs being written. */
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    /** The writer of the index (null if the store is read-only). */
+    private Writer indexWriter;
+
+    /** The open segments which are not held by a run. */
+    private final Deque<Segment> free = new ArrayDeque<Segment>();
+
+    /** The open segments. */
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    /** The number of the next segment. */
+    private int segmentNumber;
+
+    /**
+     * Instantiates a new segment output store in the given folder, reading the
+     * index of a previous execution if it exists.
+     *
+     * @param folder
+     *            the folder, created if needed
+     * @param segmentSize
+     *            the size in bytes above which a new segment is started
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public SegmentOutputStore(final Path folder, final long segmentSize) throws IOException {
+        this(folder, segmentSize, false);
+    }
+
+    /**
+     * Instantiates a new segment output store.
+     *
+     * @param folder
+     *            the folder
+     * @param segmentSize
+     *            the size in bytes above which a new segment is started
+     * @param readOnly
+     *            whether the store is only read
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private SegmentOutputStore(final Path folder, final long segmentSize,
+            final boolean readOnly) throws IOException {
+
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException(segmentSize + " is not a valid segment size");
+        }
+        if (!readOnly) {
+            Files.createDirectories(folder);
+        }
+        if (!Files.isDirectory(folder)) {
+            throw new IllegalArgumentException("Path " + folder + " is not a folder");
+        }
+
+        this.folder = folder;
+        this.segmentSize = segmentSize;
+
+        final Path indexPath = folder.resolve(INDEX_FILE);
+        if (Files.exists(indexPath)) {
+            final long length = readIndex(indexPath);
+            if (!readOnly && length < Files.size(indexPath)) {
+                try (FileChannel channel = FileChannel.open(indexPath,
+                        StandardOpenOption.WRITE)) {
+                    channel.truncate(length);
+                }
+            }
+        }
+
+        // Each execution starts a new segment
+        try (Stream<Path> files = Files.list(folder)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.matches("segment-\\d+\\.bin")).forEach(name -> {
+                        final int number = Integer.parseInt(name.replaceAll("\\D", ""));
+                        segmentNumber = Math.max(segmentNumber, number + 1);
+                    });
+        }
+
+        if (!readOnly) {
+            this.indexWriter = Files.newBufferedWriter(indexPath, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+    }
+
+    /**
+     * Open an existing store for reading.
+     *
+     * @param folder
+     *            the folder of the store
+     * @return the store
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public static SegmentOutputStore open(final Path folder) throws IOException {
+        if (!Files.exists(folder.resolve(INDEX_FILE))) {
+            throw new IllegalArgumentException("There is no " + INDEX_FILE + " in " + folder);
+        }
+        return new SegmentOutputStore(folder, Long.MAX_VALUE, true);
+    }
+
+    /**
+     * Read the index. An incomplete last line, left by an interrupted
+     * execution, is ignored.
+     *
+     * @param indexPath
+     *            the path to the index
+     * @return the length of the complete lines in bytes
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private long readIndex(final Path indexPath) throws IOException {
+
+        long length = 0;
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(indexPath))) {
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                length += line.size() + 1;
+                final String[] fields = new String(line.toByteArray(), StandardCharsets.UTF_8)
+                        .split("\t");
+                line.reset();
+                try {
+                    index.put(fields[0], new Location(Integer.parseInt(fields[1]),
+                            Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+                } catch (final NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    throw new IllegalArgumentException("Invalid index line in " + indexPath
+                            + ": " + String.join("\t", fields), e);
+                }
+            }
+        }
+
+        return length;
+
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * es.udc.fi.dc.irlab.metarecsys.structures.OutputStore#create(java.lang.
+     * String)
+     */
+    @Override
+    public Entry create(final String name) throws IOException {
+
+        if (indexWriter == null) {
+            throw new IllegalStateException("The store is read-only");
+        }
+        if (name.indexOf('\t') >= 0 || name.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException(name + " is not a valid run name");
+        }
+        if (index.containsKey(name) || !pending.add(name)) {
+            return null;
+        }
+
+        final Segment segment;
+        try {
+            segment = acquire();
+        } catch (final IOException | RuntimeException e) {
+            pending.remove(name);
+            throw e;
+        }
+
+        // The run starts after the committed runs of the segment
+        final long start = segment.size;
+        try {
+            segment.channel.position(start);
+        } catch (final IOException | RuntimeException e) {
+            pending.remove(name);
+            release(segment);
+            throw e;
+        }
+        final OutputStream out = new BufferedOutputStream(
+                Channels.newOutputStream(segment.channel), BUFFER_SIZE);
+
+        return new Entry() {
+
+            /** The number of bytes of the run. */
+            private long length;
+
+            /** Whether the entry has been closed. */
+            private boolean closed;
+
+            /*
+             * (non-Javadoc)
+             *
+             * @see java.io.OutputStream#write(int)
+             */
+            @Override
+            public void write(final int b) throws IOException {
+                out.write(b);
+                length++;
+            }
+
+            /*
+             * (non-Javadoc)
+             *
+             * @see java.io.OutputStream#write(byte[], int, int)
+             */
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                out.write(b, off, len);
+                length += len;
+            }
+
+            /*
+             * (non-Javadoc)
+             *
+             * @see
+             * es.udc.fi.dc.irlab.metarecsys.structures.OutputStore.Entry#commit()
+             */
+            @Override
+            public void commit() throws IOException {
+                closed = true;
+                try {
+                    out.flush();
+                    segment.size = start + length;
+                    append(name, new Location(segment.number, start, length));
+                } finally {
+                    pending.remove(name);
+                    release(segment);
+                }
+            }
+
+            /*
+             * (non-Javadoc)
+             *
+             * @see java.io.OutputStream#close()
+             */
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    pending.remove(name);
+                    release(segment);
+                }
+            }
+
+        };
+
+    }
+
+    /**
+     * Take a segment for a new run, opening a new one if all of them are held
+     * by other runs.
+     *
+     * @return the segment
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private synchronized Segment acquire() throws IOException {
+
+        final Segment segment = free.poll();
+        if (segment != null) {
+            return segment;
+        }
+
+        final Segment newSegment = new Segment(segmentNumber,
+                FileChannel.open(segmentPath(segmentNumber), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        segmentNumber++;
+        segments.add(newSegment);
+        return newSegment;
+
+    }
+
+    /**
+     * Return a segment once its run has been committed or discarded. A segment
+     * bigger than the segment size is closed.
+     *
+     * @param segment
+     *            the segment
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private synchronized void release(final Segment segment) throws IOException {
+        if (segment.size < segmentSize) {
+            free.push(segment);
+        } else {
+            segments.remove(segment);
+            segment.channel.close();
+        }
+    }
+
+    /**
+     * Append the location of a run whose bytes have been written to the index.
+     *
+     * @param name
+     *            the name of the run
+     * @param location
+     *            the location of the run
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private synchronized void append(final String name, final Location location)
+            throws IOException {
+        indexWriter.write(String.format(Locale.ENGLISH, "%s\t%d\t%d\t%d\n", name,
+                location.segment, location.offset, location.length));
+        indexWriter.flush();
+        index.put(name, location);
+    }
+
+    /**
+     * Gets the names of the committed runs in order.
+     *
+     * @return the names
+     */
+    public SortedSet<String> names() {
+        return Collections.unmodifiableSortedSet(new TreeSet<String>(index.keySet()));
+    }
+
+    /**
+     * Check whether the given run has been committed.
+     *
+     * @param name
+     *            the name of the run
+     * @return true if the run has been committed
+     */
+    public boolean contains(final String name) {
+        return index.containsKey(name);
+    }
+
+    /**
+     * Copy a committed run in TREC format to the given stream.
+     *
+     * @param name
+     *            the name of the run
+     * @param out
+     *            the stream
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public void extract(final String name, final OutputStream out) throws IOException {
+
+        final Location location = index.get(name);
+        if (location == null) {
+            throw new IllegalArgumentException("There is no run " + name + " in " + folder);
+        }
+
+        try (FileChannel channel = FileChannel.open(segmentPath(location.segment),
+                StandardOpenOption.READ)) {
+            long position = location.offset;
+            final long end = location.offset + location.length;
+            while (position < end) {
+                position += channel.transferTo(position, end - position,
+                        Channels.newChannel(out));
+            }
+        }
+        out.flush();
+
+    }
+
+    /**
+     * Gets the path to the given segment.
+     *
+     * @param number
+     *            the number of the segment
+     * @return the path
+     */
+    private Path segmentPath(final int number) {
+        return folder.resolve(String.format(Locale.ENGLISH, SEGMENT_FORMAT, number));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.AutoCloseable#close()
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            for (final Segment segment : segments) {
+                segment.channel.close();
+            }
+        } finally {
+            if (indexWriter != null) {
+                indexWriter.close();
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return folder.toString();
+    }
+
+    /**
+     * The Class Location. The position of a run in the segments.
+     *
+     * @author daniel.valcarce@udc.es
+     */
+    private static final class Location {
+
+        /** The number of the segment. */
+        private final int segment;
+
+        /** The offset of the run in the segment. */
+        private final long offset;
+
+        /** The length of the run in bytes. */
+        private final long length;
+
+        /**
+         * Instantiates a new location.
+         *
+         * @param segment
+         *            the number of the segment
+         * @param offset
+         *            the offset of the run in the segment
+         * @param length
+         *            the length of the run in bytes
+         */
+        Location(final int segment, final long offset, final long length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+    }
+
+    /**
+     * The Class Segment. An open segment file, held by at most one run at a
+     * time.
+     *
+     * @author daniel.valcarce@udc.es
+     */
+    private static final class Segment {
+
+        /** The number of the segment. */
+        private final int number;
+
+        /** The channel of the segment. */
+        private final FileChannel channel;
+
+        /** The number of bytes of the committed runs. */
+        private long size;
+
+        /**
+         * Instantiates a new segment.
+         *
+         * @param number
+         *            the number of the segment
+         * @param channel
+         *            the channel of the segment
+         */
+        Segment(final int number, final FileChannel channel) {
+            this.number = number;
+            this.channel = channel;
+        }
+
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.structures;
+
+/**
+ * The Enum Storage. The places where the rankings of a run can be stored.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public enum Storage {
+
+    /** Java arrays on the heap. */
+    HEAP("heap"),
+
+    /** Direct buffers or memory-mapped sidecars outside the heap. */
+    OFF_HEAP("offheap");
+
+    /** The name. */
+    private final String name;
+
+    /**
+     * Instantiates a new storage.
+     *
+     * @param name
+     *            the name
+     */
+    Storage(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * Gets the storage specified by its name.
+     *
+     * @param name
+     *            the name
+     * @return the storage
+     */
+    public static Storage build(final String name) {
+        for (final Storage storage : values()) {
+            if (storage.name.equals(name)) {
+                return storage;
+            }
+        }
+        throw new IllegalArgumentException(name + " is not a valid storage");
+    }
+
+    /**
+     * Move the given rankings to this storage.
+     *
+     * @param rankings
+     *            the rankings
+     * @return the rankings in this storage
+     */
+    public CompactRankings store(final CompactRankings rankings) {
+        if (this == OFF_HEAP && !(rankings instanceof OffHeapRankings)) {
+            return OffHeapRankings.copyOf(rankings);
+        }
+        return rankings;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Enum#toString()
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.structures;
+
+/**
+ * The Class TopKCollector. It keeps the k best items of a ranking in a binary
+ * min-heap of primitive arrays. Items are ordered by decreasing score (as
+ * {@link Double#compare(double, double)}) and ties are broken by increasing
+ * item id.
+ *
+ * The collector is meant to be reused: {@link #clear()} empties it without
+ * releasing its arrays.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public final class TopKCollector {
+
+    /** The item ids. */
+    private final long[] items;
+
+    /** The scores. */
+    private final double[] scores;
+
+    /** The number of items. */
+    private int size;
+
+    /** Whether the items are sorted (and no longer form a heap). */
+    private boolean sorted;
+
+    /**
+     * Instantiates a new top-k collector.
+     *
+     * @param capacity
+     *            the number of items to keep
+     */
+    public TopKCollector(final int capacity) {
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException(capacity + " is not a valid capacity");
+        }
+
+        this.items = new long[capacity];
+        this.scores = new double[capacity];
+
+    }
+
+    /**
+     * Remove all the items.
+     */
+    public void clear() {
+        size = 0;
+        sorted = false;
+    }
+
+    /**
+     * Add an item. It is discarded if the collector is full and the item is
+     * worse than all the items in the collector.
+     *
+     * @param itemID
+     *            the item id
+     * @param score
+     *            the score
+     */
+    public void add(final long itemID, final double score) {
+
+        if (sorted) {
+            throw new IllegalStateException("The collector has already been sorted");
+        }
+
+        if (size < items.length) {
+            siftUp(size++, itemID, score);
+        } else if (isWorse(items[0], scores[0], itemID, score)) {
+            siftDown(0, size, itemID, score);
+        }
+
+    }
+
+    /**
+     * Sort the items from best to worst. No items can be added afterwards
+     * until the collector is cleared.
+     */
+    public void sort() {
+
+        if (sorted) {
+            return;
+        }
+
+        // Heapsort: move the worst item to the end of the heap
+        for (int end = size - 1; end > 0; end--) {
+            final long itemID = items[end];
+            final double score = scores[end];
+            items[end] = items[0];
+            scores[end] = scores[0];
+            siftDown(0, end, itemID, score);
+        }
+
+        sorted = true;
+
+    }
+
+    /**
+     * Check whether the collector keeps as many items as its capacity.
+     *
+     * @return true if the collector is full
+     */
+    public boolean isFull() {
+        return size == items.length;
+    }
+
+    /**
+     * Gets the score of the worst item. The collector must not be empty nor
+     * sorted.
+     *
+     * @return the lowest score
+     */
+    public double getMinScore() {
+        return scores[0];
+    }
+
+    /**
+     * Gets the number of items.
+     *
+     * @return the number of items
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the item at the given position. Items are ordered only after
+     * calling {@link #sort()}.
+     *
+     * @param i
+     *            the position
+     * @return the item id
+     */
+    public long getItem(final int i) {
+        return items[i];
+    }
+
+    /**
+     * Gets the score at the given position. Items are ordered only after
+     * calling {@link #sort()}.
+     *
+     * @param i
+     *            the position
+     * @return the score
+     */
+    public double getScore(final int i) {
+        return scores[i];
+    }
+
+    /**
+     * Check whether the first item goes after the second one.
+     *
+     * @param item1
+     *            the first item id
+     * @param score1
+     *            the first score
+     * @param item2
+     *            the second item id
+     * @param score2
+     *            the second score
+     * @return true if the first item is worse
+     */
+    private static boolean isWorse(final long item1, final double score1, final long item2,
+            final double score2) {
+        final int cmp = Double.compare(score1, score2);
+        return cmp < 0 || cmp == 0 && item1 > item2;
+    }
+
+    /**
+     * Place an item at the given position of the heap or above it.
+     *
+     * @param start
+     *            the position
+     * @param itemID
+     *            the item id
+     * @param score
+     *            the score
+     */
+    private void siftUp(final int start, final long itemID, final double score) {
+
+        int pos = start;
+
+        while (pos > 0) {
+            final int parent = (pos - 1) >>> 1;
+            if (!isWorse(itemID, score, items[parent], scores[parent])) {
+                break;
+            }
+            items[pos] = items[parent];
+            scores[pos] = scores[parent];
+            pos = parent;
+        }
+
+        items[pos] = itemID;
+        scores[pos] = score;
+
+    }
+
+    /**
+     * Place an item at the given position of the heap or below it.
+     *
+     * @param start
+     *            the position
+     * @param end
+     *            the size of the heap
+     * @param itemID
+     *            the item id
+     * @param score
+     *            the score
+     */
+    private void siftDown(final int start, final int end, final long itemID,
+            final double score) {
+
+        int pos = start;
+        int child;
+        while ((child = 2 * pos + 1) < end) {
+            if (child + 1 < end
+                    && isWorse(items[child + 1], scores[child + 1], items[child], scores[child])) {
+                child++;
+            }
+            if (!isWorse(items[child], scores[child], itemID, score)) {
+                break;
+            }
+            items[pos] = items[child];
+            scores[pos] = scores[child];
+            pos = child;
+        }
+
+        items[pos] = itemID;
+        scores[pos] = score;
+
+    }
+
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.structures;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The Class TrecEncoder. It encodes TREC run lines directly into a reusable
+ * byte buffer. The output is the same as that of
+ * {@code String.format(Locale.ENGLISH, "%d\tQ0\t%d\t%d\t%f\t%s\n", ...)}.
+ *
+ * Scores are printed with six decimals rounding half up like
+ * {@link java.util.Formatter}. The fast path scales the score by 10^6 and
+ * rounds it; scores which are too big, not finite or too close to a tie fall
+ * back to {@link String#format(Locale, String, Object...)}.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public final class TrecEncoder {
+
+    /** The scale of the six decimals. */
+    private static final long SCALE = 1_000_000L;
+
+    /** The largest score printed by the fast path. */
+    private static final double MAX_FAST_SCORE = 1e6;
+
+    /** The distance to a tie below which the fast path is not used. */
+    private static final double TIE_MARGIN = 1e-3;
+
+    /** The bytes of the constant field. */
+    private static final byte[] Q0 = { '\t', 'Q', '0', '\t' };
+
+    /** The buffer. */
+    private byte[] buffer;
+
+    /** The number of bytes in the buffer. */
+    private int size;
+
+    /**
+     * Instantiates a new TREC encoder.
+     *
+     * @param capacity
+     *            the initial capacity in bytes
+     */
+    public TrecEncoder(final int capacity) {
+        this.buffer = new byte[Math.max(capacity, 64)];
+    }
+
+    /**
+     * Append a line of a run.
+     *
+     * @param userID
+     *            the user id
+     * @param itemID
+     *            the item id
+     * @param rank
+     *            the rank
+     * @param score
+     *            the score
+     * @param name
+     *            the name of the run (ASCII)
+     */
+    public void appendLine(final long userID, final long itemID, final int rank,
+            final double score, final String name) {
+
+        ensureCapacity(3 * 20 + 32 + Q0.length + 3 + name.length());
+
+        appendLong(userID);
+        System.arraycopy(Q0, 0, buffer, size, Q0.length);
+        size += Q0.length;
+        appendLong(itemID);
+        buffer[size++] = '\t';
+        appendLong(rank);
+        buffer[size++] = '\t';
+        appendScore(score);
+        buffer[size++] = '\t';
+        for (int i = 0; i < name.length(); i++) {
+            buffer[size++] = (byte) name.charAt(i);
+        }
+        buffer[size++] = '\n';
+
+    }
+
+    /**
+     * Append a line of a run printing the score exactly as
+     * {@link Double#toString(double)} does, so that parsing the line gives
+     * back the same score.
+     *
+     * @param userID
+     *            the user id
+     * @param itemID
+     *            the item id
+     * @param rank
+     *            the rank
+     * @param score
+     *            the score
+     * @param name
+     *            the name of the run (ASCII)
+     */
+    public void appendExactLine(final long userID, final long itemID, final int rank,
+            final double score, final String name) {
+
+        ensureCapacity(3 * 20 + Q0.length + 2);
+
+        appendLong(userID);
+        System.arraycopy(Q0, 0, buffer, size, Q0.length);
+        size += Q0.length;
+        appendLong(itemID);
+        buffer[size++] = '\t';
+        appendLong(rank);
+        buffer[size++] = '\t';
+        appendAscii(Double.toString(score));
+        ensureCapacity(name.length() + 2);
+        buffer[size++] = '\t';
+        appendAscii(name);
+        buffer[size++] = '\n';
+
+    }
+
+    /**
+     * Gets the number of bytes in the buffer.
+     *
+     * @return the number of bytes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove all the bytes.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Write the bytes to the given stream.
+     *
+     * @param out
+     *            the stream
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return new String(buffer, 0, size, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Make room for the given number of bytes.
+     *
+     * @param bytes
+     *            the number of bytes
+     */
+    private void ensureCapacity(final int bytes) {
+        if (size + bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(size + bytes, 2 * buffer.length));
+        }
+    }
+
+    /**
+     * Append a number in decimal.
+     *
+     * @param value
+     *            the number
+     */
+    private void appendLong(final long value) {
+
+        if (value == Long.MIN_VALUE) {
+            appendAscii(Long.toString(value));
+            return;
+        }
+
+        long v = value;
+        if (v < 0) {
+            buffer[size++] = '-';
+            v = -v;
+        }
+        appendDigits(v, 1);
+
+    }
+
+    /**
+     * Append a non-negative number in decimal with at least the given number
+     * of digits.
+     *
+     * @param value
+     *            the number
+     * @param minDigits
+     *            the minimum number of digits
+     */
+    private void appendDigits(final long value, final int minDigits) {
+
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, minDigits);
+
+        long v = value;
+        for (int i = size + digits - 1; i >= size; i--) {
+            buffer[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        size += digits;
+
+    }
+
+    /**
+     * Append a score with six decimals.
+     *
+     * @param score
+     *            the score
+     */
+    private void appendScore(final double score) {
+
+        final double abs = Math.abs(score);
+        if (!(abs < MAX_FAST_SCORE)) {
+            appendAscii(String.format(Locale.ENGLISH, "%f", score));
+            return;
+        }
+
+        final double scaled = abs * SCALE;
+        final double floor = Math.floor(scaled);
+        if (Math.abs(scaled - floor - 0.5) < TIE_MARGIN) {
+            appendAscii(String.format(Locale.ENGLISH, "%f", score));
+            return;
+        }
+
+        final long units = (long) floor + (scaled - floor > 0.5 ? 1 : 0);
+        if (Double.doubleToRawLongBits(score) < 0) {
+            buffer[size++] = '-';
+        }
+        appendDigits(units / SCALE, 1);
+        buffer[size++] = '.';
+        appendDigits(units % SCALE, 6);
+
+    }
+
+    /**
+     * Append an ASCII string.
+     *
+     * @param value
+     *            the string
+     */
+    private void appendAscii(final String value) {
+        ensureCapacity(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer[size++] = (byte) value.charAt(i);
+        }
+    }
+
+}
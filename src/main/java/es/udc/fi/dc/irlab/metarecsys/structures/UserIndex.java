@@ -0,0 +1,268 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.structures;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The Class UserIndex. The byte range of the lines of each user of a run file
+ * sorted by user, so that the ranking of a user can be read without reading
+ * the whole file.
+ *
+ * The index is stored next to the sorted run file. It starts with a header
+ * that identifies the unsorted run file it was sorted from (size and
+ * modification time) followed by the sorted user ids and the offset of the
+ * first line of each user. The last offset is the size of the sorted file.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public final class UserIndex {
+
+    /** The magic number of index files ("MRUI"). */
+    private static final int MAGIC = 0x4D525549;
+
+    /** The version of the format. */
+    private static final int VERSION = 1;
+
+    /** The size of the header in bytes. */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+
+    /** The size of the source run file. */
+    private final long sourceSize;
+
+    /** The modification time of the source run file. */
+    private final long sourceTime;
+
+    /** The sorted user ids. */
+    private final long[] users;
+
+    /** The offset of the lines of each user (and the size of the file). */
+    private final long[] offsets;
+
+    /**
+     * Instantiates a new user index.
+     *
+     * @param sourceSize
+     *            the size of the source run file
+     * @param sourceTime
+     *            the modification time of the source run file
+     * @param users
+     *            the sorted user ids
+     * @param offsets
+     *            the offset of the lines of each user followed by the size of
+     *            the sorted file
+     */
+    UserIndex(final long sourceSize, final long sourceTime, final long[] users,
+            final long[] offsets) {
+        this.sourceSize = sourceSize;
+        this.sourceTime = sourceTime;
+        this.users = users;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Gets the path to the index of the given sorted run file.
+     *
+     * @param runPath
+     *            the path to the sorted run file
+     * @return the path to the index
+     */
+    public static Path indexPath(final Path runPath) {
+        return runPath.resolveSibling(runPath.getFileName() + ".idx");
+    }
+
+    /**
+     * Read the index of the given sorted run file.
+     *
+     * @param runPath
+     *            the path to the sorted run file
+     * @return the index or null if it does not exist or does not match the
+     *         sorted file
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public static UserIndex read(final Path runPath) throws IOException {
+
+        final Path path = indexPath(runPath);
+        if (!Files.isRegularFile(path) || !Files.isRegularFile(runPath)) {
+            return null;
+        }
+
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+
+            if (channel.size() < HEADER_SIZE) {
+                return null;
+            }
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            final long sourceSize = buffer.getLong();
+            final long sourceTime = buffer.getLong();
+            final int numUsers = buffer.getInt();
+            if (channel.size() != HEADER_SIZE + 8L * numUsers + 8L * (numUsers + 1)) {
+                return null;
+            }
+
+            final long[] users = new long[numUsers];
+            final long[] offsets = new long[numUsers + 1];
+            buffer.asLongBuffer().get(users);
+            buffer.position(buffer.position() + 8 * numUsers);
+            buffer.asLongBuffer().get(offsets);
+
+            if (offsets[numUsers] != Files.size(runPath)) {
+                return null;
+            }
+            return new UserIndex(sourceSize, sourceTime, users, offsets);
+
+        }
+
+    }
+
+    /**
+     * Check whether the index was built sorting the given run file in its
+     * current state.
+     *
+     * @param sourcePath
+     *            the path to the unsorted run file
+     * @return true if the sorted file is up to date
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public boolean isSortedFrom(final Path sourcePath) throws IOException {
+        return sourceSize == Files.size(sourcePath)
+                && sourceTime == Files.getLastModifiedTime(sourcePath).toMillis();
+    }
+
+    /**
+     * Write the index of the given sorted run file. It is written to a
+     * temporary file first and then moved atomically.
+     *
+     * @param runPath
+     *            the path to the sorted run file
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    void write(final Path runPath) throws IOException {
+
+        final Path path = indexPath(runPath);
+        final Path tempPath = Files.createTempFile(path.getParent(),
+                path.getFileName().toString(), ".tmp");
+
+        try (final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tempPath), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceSize);
+            out.writeLong(sourceTime);
+            out.writeInt(users.length);
+            for (final long userID : users) {
+                out.writeLong(userID);
+            }
+            for (final long offset : offsets) {
+                out.writeLong(offset);
+            }
+        } catch (final IOException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+
+        Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+
+    }
+
+    /**
+     * Gets the number of users.
+     *
+     * @return the number of users
+     */
+    public int numUsers() {
+        return users.length;
+    }
+
+    /**
+     * Gets the id of the given user.
+     *
+     * @param u
+     *            the user index
+     * @return the user id
+     */
+    public long getUserID(final int u) {
+        return users[u];
+    }
+
+    /**
+     * Find the index of the given user.
+     *
+     * @param userID
+     *            the user id
+     * @return the user index or a negative number if the user is not present
+     */
+    public int find(final long userID) {
+        return Arrays.binarySearch(users, userID);
+    }
+
+    /**
+     * Gets the offset of the first line of the given user.
+     *
+     * @param u
+     *            the user index
+     * @return the offset
+     */
+    public long getStart(final int u) {
+        return offsets[u];
+    }
+
+    /**
+     * Gets the offset after the last line of the given user.
+     *
+     * @param u
+     *            the user index
+     * @return the offset
+     */
+    public long getEnd(final int u) {
+        return offsets[u + 1];
+    }
+
+    /**
+     * Parse the lines of the given user of the sorted run file.
+     *
+     * @param channel
+     *            the channel of the sorted run file
+     * @param u
+     *            the user index
+     * @param parser
+     *            the parser
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public void parseUser(final FileChannel channel, final int u, final RunParser parser)
+            throws IOException {
+        parser.parse(channel, offsets[u], offsets[u + 1]);
+    }
+
+}
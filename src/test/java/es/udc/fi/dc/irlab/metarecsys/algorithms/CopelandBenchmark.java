@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.algorithms;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * The Class CopelandBenchmark. It compares the time taken by the pairwise and
+ * the dominance counting Copeland kernels on random users with two runs. It is
+ * not run by the test suite; run it with
+ *
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) \
+ *     es.udc.fi.dc.irlab.metarecsys.algorithms.CopelandBenchmark
+ * </pre>
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public final class CopelandBenchmark {
+
+    /** The number of users of each measurement. */
+    private static final int USERS = 50;
+
+    /** The number of measurements. */
+    private static final int ROUNDS = 5;
+
+    /**
+     * Instantiates a new Copeland benchmark.
+     */
+    private CopelandBenchmark() {
+
+    }
+
+    /**
+     * Build random rank vectors of two runs with the given number of ranked
+     * items each. A candidate which is not ranked by one run gets
+     * {@link Integer#MAX_VALUE}.
+     *
+     * @param random
+     *            the random generator
+     * @param maxRank
+     *            the number of items ranked by each run
+     * @return the rank vectors
+     */
+    private static int[][] buildUser(final Random random, final int maxRank) {
+
+        final int n = maxRank * 3 / 2;
+        final int[][] ranks = new int[2][n];
+        for (int r = 0; r < 2; r++) {
+            final int[] permutation = new int[n];
+            for (int i = 0; i < n; i++) {
+                final int j = random.nextInt(i + 1);
+                permutation[i] = permutation[j];
+                permutation[j] = i;
+            }
+            Arrays.fill(ranks[r], Integer.MAX_VALUE);
+            for (int rank = 0; rank < maxRank; rank++) {
+                ranks[r][permutation[rank]] = rank;
+            }
+        }
+        return ranks;
+
+    }
+
+    /**
+     * The main method.
+     *
+     * @param args
+     *            the arguments (ignored)
+     */
+    public static void main(final String[] args) {
+
+        final Random random = new Random(42);
+
+        for (final int maxRank : new int[] { 100, 1000, 5000 }) {
+
+            final int[][][] users = new int[USERS][][];
+            for (int u = 0; u < USERS; u++) {
+                users[u] = buildUser(random, maxRank);
+            }
+            final int n = users[0][0].length;
+
+            for (int round = 0; round < ROUNDS; round++) {
+
+                long checksum = 0;
+
+                long start = System.nanoTime();
+                for (final int[][] ranks : users) {
+                    final int[] scores = new int[n];
+                    Copeland.pairwiseScores(ranks, 2, n, scores);
+                    checksum += scores[0];
+                }
+                final long pairwise = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (final int[][] ranks : users) {
+                    final int[] scores = new int[n];
+                    Copeland.dominanceScores(ranks[0], ranks[1], n, scores);
+                    checksum -= scores[0];
+                }
+                final long dominance = System.nanoTime() - start;
+
+                System.out.println(String.format(Locale.ENGLISH,
+                        "max_rank=%d\tcandidates=%d\tpairwise %.3f ms/user\t"
+                                + "dominance %.3f ms/user\tspeedup %.1fx\t%s",
+                        maxRank, n, pairwise / 1e6 / USERS, dominance / 1e6 / USERS,
+                        (double) pairwise / dominance, checksum == 0 ? "ok" : "MISMATCH"));
+
+            }
+
+        }
+
+    }
+
+}
@@ -15,22 +15,43 @@
  */
 package es.udc.fi.dc.irlab.metarecsys.algorithms;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
-import java.util.Set;
-import java.util.TreeMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import es.udc.fi.dc.irlab.metarecsys.normalisation.NoneNormalisation;
+import es.udc.fi.dc.irlab.metarecsys.normalisation.StandardNormalisation;
+import es.udc.fi.dc.irlab.metarecsys.structures.AsyncFileWriter;
+import es.udc.fi.dc.irlab.metarecsys.structures.FoldDictionary;
+import es.udc.fi.dc.irlab.metarecsys.structures.FoldLoader;
+import es.udc.fi.dc.irlab.metarecsys.structures.FolderOutputStore;
+import es.udc.fi.dc.irlab.metarecsys.structures.OutputStore;
 import es.udc.fi.dc.irlab.metarecsys.structures.RunFile;
-import net.openhft.koloboke.collect.set.LongSet;
-import net.openhft.koloboke.collect.set.hash.HashLongSets;
+import es.udc.fi.dc.irlab.metarecsys.structures.SegmentOutputStore;
+import es.udc.fi.dc.irlab.metarecsys.structures.Storage;
+import es.udc.fi.dc.irlab.metarecsys.structures.TopKCollector;
 import net.openhft.koloboke.collect.set.hash.HashObjSets;
 
 /**
@@ -44,17 +65,105 @@ public class TestMetaRecSys {
     /** The max rank. */
     private final int maxRank = 4;
 
-    /** The runs. */
-    private Set<RunFile> runs;
-
     /** The user id. */
     private final long userID = 1;
 
-    /** The all items. */
-    private LongSet allItems;
+    /** The rankings of the user. */
+    private UserRankings user;
 
     /** The ranking. */
-    private final TreeMap<Double, LongSet> ranking = new TreeMap<Double, LongSet>();
+    private final TopKCollector ranking = new TopKCollector(maxRank);
+
+    /** The temporary folder of each test. */
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    /**
+     * Format a line of a run file.
+     *
+     * @param lineUserID
+     *            the user id
+     * @param itemID
+     *            the item id
+     * @param rank
+     *            the rank
+     * @param score
+     *            the score
+     * @return the line
+     */
+    private static String line(final long lineUserID, final long itemID, final int rank,
+            final double score) {
+        return String.format(Locale.ENGLISH, "%d\tQ0\t%d\t%d\t%f\t-\n", lineUserID, itemID,
+                rank, score);
+    }
+
+    /**
+     * Build the lines of a run with random items and scores.
+     *
+     * @param random
+     *            the source of randomness
+     * @param numUsers
+     *            the number of users
+     * @param missing
+     *            one in this number of users is missing from the run (0 to
+     *            keep all the users)
+     * @param depth
+     *            the number of lines of each user
+     * @param numItems
+     *            the number of items
+     * @return the lines
+     */
+    private static String randomRun(final Random random, final int numUsers, final int missing,
+            final int depth, final int numItems) {
+        final StringBuilder contents = new StringBuilder();
+        for (int u = 0; u < numUsers; u++) {
+            if (missing > 0 && random.nextInt(missing) == 0) {
+                continue;
+            }
+            for (int rank = 0; rank < depth; rank++) {
+                contents.append(line(u, random.nextInt(numItems), rank, random.nextDouble()));
+            }
+        }
+        return contents.toString();
+    }
+
+    /**
+     * Write a run file with the given contents.
+     *
+     * @param folder
+     *            the folder of the run file
+     * @param name
+     *            the name of the run
+     * @param fold
+     *            the fold
+     * @param contents
+     *            the contents
+     * @return the path to the run file
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private static Path writeRun(final Path folder, final String name, final int fold,
+            final String contents) throws IOException {
+        final Path runPath = folder
+                .resolve(String.format(Locale.ENGLISH, "run-%s-fold%d.txt", name, fold));
+        Files.write(runPath, contents.getBytes(StandardCharsets.UTF_8));
+        return runPath;
+    }
+
+    /**
+     * Write a run file of the first fold in the temporary folder.
+     *
+     * @param name
+     *            the name of the run
+     * @param contents
+     *            the contents
+     * @return the path to the run file
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private Path writeRun(final String name, final String contents) throws IOException {
+        return writeRun(temp.getRoot().toPath(), name, 1, contents);
+    }
 
     /**
      * Initialise.
@@ -64,36 +173,32 @@ public class TestMetaRecSys {
      */
     @Before
     public void initialise() throws IOException {
-        final Path runPath1 = Files.createTempFile("run-meta1", "-fold1.txt");
-
-        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(runPath1))) {
-            writer.println(
-                    String.format(Locale.ENGLISH, "%d\tQ0\t%d\t%d\t%f\t-", userID, 3, 0, 5.0));
-            writer.println(
-                    String.format(Locale.ENGLISH, "%d\tQ0\t%d\t%d\t%f\t-", userID, 1, 1, 3.0));
-            writer.println(
-                    String.format(Locale.ENGLISH, "%d\tQ0\t%d\t%d\t%f\t-", userID, 2, 2, 1.0));
-            writer.println(
-                    String.format(Locale.ENGLISH, "%d\tQ0\t%d\t%d\t%f\t-", userID, 4, 3, 0.5));
-        }
-
-        final Path runPath2 = Files.createTempFile("run-meta2", "-fold1.txt");
-
-        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(runPath2))) {
-            writer.println(
-                    String.format(Locale.ENGLISH, "%d\tQ0\t%d\t%d\t%f\t-", userID, 1, 0, 2.0));
-            writer.println(
-                    String.format(Locale.ENGLISH, "%d\tQ0\t%d\t%d\t%f\t-", userID, 2, 1, 1.5));
-            writer.println(
-                    String.format(Locale.ENGLISH, "%d\tQ0\t%d\t%d\t%f\t-", userID, 3, 2, 1.0));
-            writer.println(
-                    String.format(Locale.ENGLISH, "%d\tQ0\t%d\t%d\t%f\t-", userID, 4, 3, 0.5));
-        }
+        final Path runPath1 = writeRun("meta1", line(userID, 3, 0, 5.0) + line(userID, 1, 1, 3.0)
+                + line(userID, 2, 2, 1.0) + line(userID, 4, 3, 0.5));
+        final Path runPath2 = writeRun("meta2", line(userID, 1, 0, 2.0) + line(userID, 2, 1, 1.5)
+                + line(userID, 3, 2, 1.0) + line(userID, 4, 3, 0.5));
 
         final RunFile run1 = new RunFile(runPath1, maxRank, new NoneNormalisation());
         final RunFile run2 = new RunFile(runPath2, maxRank, new NoneNormalisation());
-        runs = HashObjSets.newImmutableSet(new RunFile[] { run1, run2 });
-        allItems = run1.getItems();
+        user = new UserRankings(HashObjSets.newImmutableSet(new RunFile[] { run1, run2 }));
+        user.load(user.getDictionary().getUserKey(userID));
+    }
+
+    /**
+     * Check that the ranking contains the given items and scores in order.
+     *
+     * @param items
+     *            the expected items
+     * @param scores
+     *            the expected scores
+     */
+    private void assertRanking(final long[] items, final double[] scores) {
+        ranking.sort();
+        Assert.assertEquals(items.length, ranking.size());
+        for (int i = 0; i < items.length; i++) {
+            Assert.assertEquals(items[i], ranking.getItem(i));
+            Assert.assertEquals(scores[i], ranking.getScore(i), 0.0);
+        }
     }
 
     /**
@@ -104,15 +209,9 @@ public class TestMetaRecSys {
 
         final RankAggregation borda = RankAggregation.build("borda", maxRank);
 
-        borda.computeUserRanking(runs, userID, allItems, ranking);
-
-        final TreeMap<Double, LongSet> userRanking = new TreeMap<Double, LongSet>();
-        userRanking.put(5.0, HashLongSets.newUpdatableSet(new long[] { 1 }));
-        userRanking.put(4.0, HashLongSets.newUpdatableSet(new long[] { 3 }));
-        userRanking.put(3.0, HashLongSets.newUpdatableSet(new long[] { 2 }));
-        userRanking.put(0.0, HashLongSets.newUpdatableSet(new long[] { 4 }));
+        borda.computeUserRanking(user, ranking);
 
-        Assert.assertEquals(userRanking, ranking);
+        assertRanking(new long[] { 1, 3, 2, 4 }, new double[] { 5.0, 4.0, 3.0, 0.0 });
 
     }
 
@@ -124,15 +223,40 @@ public class TestMetaRecSys {
 
         final RankAggregation borda = RankAggregation.build("condorcet", maxRank);
 
-        borda.computeUserRanking(runs, userID, allItems, ranking);
+        borda.computeUserRanking(user, ranking);
+
+        assertRanking(new long[] { 3, 1, 2, 4 }, new double[] { 4.0, 3.0, 2.0, 1.0 });
+
+    }
+
+    /**
+     * Test Condorcet with more candidates than the insertion sort threshold.
+     * The first run disagrees with the majority, so the initial order of the
+     * candidates is reversed.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testCondorcetMergeSort() throws IOException {
+
+        final int numItems = 30;
+        final RunFile[] runs = new RunFile[3];
+        for (int r = 0; r < runs.length; r++) {
+            final StringBuilder contents = new StringBuilder();
+            for (int rank = 0; rank < numItems; rank++) {
+                contents.append(line(userID, r == 0 ? numItems - rank : rank + 1, rank, 1.0));
+            }
+            runs[r] = new RunFile(writeRun("condorcet" + r, contents.toString()), numItems,
+                    new NoneNormalisation());
+        }
 
-        final TreeMap<Double, LongSet> userRanking = new TreeMap<Double, LongSet>();
-        userRanking.put(4.0, HashLongSets.newUpdatableSet(new long[] { 3 }));
-        userRanking.put(3.0, HashLongSets.newUpdatableSet(new long[] { 1 }));
-        userRanking.put(2.0, HashLongSets.newUpdatableSet(new long[] { 2 }));
-        userRanking.put(1.0, HashLongSets.newUpdatableSet(new long[] { 4 }));
+        final UserRankings condorcetUser = new UserRankings(
+                HashObjSets.newImmutableSet(runs));
+        condorcetUser.load(condorcetUser.getDictionary().getUserKey(userID));
+        RankAggregation.build("condorcet", maxRank).computeUserRanking(condorcetUser, ranking);
 
-        Assert.assertEquals(userRanking, ranking);
+        assertRanking(new long[] { 1, 2, 3, 4 }, new double[] { 4.0, 3.0, 2.0, 1.0 });
 
     }
 
@@ -144,15 +268,482 @@ public class TestMetaRecSys {
 
         final RankAggregation borda = RankAggregation.build("copeland", maxRank);
 
-        borda.computeUserRanking(runs, userID, allItems, ranking);
+        borda.computeUserRanking(user, ranking);
+
+        assertRanking(new long[] { 1, 3, 2, 4 }, new double[] { 2.0, 1.0, 0.0, -3.0 });
+
+    }
+
+    /**
+     * Test that the dominance counting of Copeland gives the same scores as
+     * comparing every pair of candidates, with missing and repeated ranks.
+     */
+    @Test
+    public void testCopelandDominance() {
+
+        final Random random = new Random(42);
+        for (int n = 0; n < 200; n += 7) {
+            final int[][] ranks = new int[2][n];
+            for (int r = 0; r < 2; r++) {
+                for (int i = 0; i < n; i++) {
+                    ranks[r][i] = random.nextInt(4) == 0 ? Integer.MAX_VALUE
+                            : random.nextInt(n / 2 + 1);
+                }
+            }
+
+            final int[] expected = new int[n];
+            final int[] actual = new int[n];
+            Copeland.pairwiseScores(ranks, 2, n, expected);
+            Copeland.dominanceScores(ranks[0], ranks[1], n, actual);
+            Assert.assertArrayEquals(expected, actual);
+        }
+
+    }
+
+    /**
+     * Test the lazy enumeration and the count of combinations.
+     */
+    @Test
+    public void testCombinations() {
 
-        final TreeMap<Double, LongSet> userRanking = new TreeMap<Double, LongSet>();
-        userRanking.put(2.0, HashLongSets.newUpdatableSet(new long[] { 1 }));
-        userRanking.put(1.0, HashLongSets.newUpdatableSet(new long[] { 3 }));
-        userRanking.put(0.0, HashLongSets.newUpdatableSet(new long[] { 2 }));
-        userRanking.put(-3.0, HashLongSets.newUpdatableSet(new long[] { 4 }));
+        final List<String> combinations = new ArrayList<String>();
+        for (final int[] indexes : CombinationUtils.indexCombination(5, 3)) {
+            combinations.add(Arrays.toString(indexes));
+        }
+        Assert.assertEquals(CombinationUtils.count(5, 3), combinations.size());
+        Assert.assertEquals("[0, 1, 2]", combinations.get(0));
+        Assert.assertEquals("[0, 1, 3]", combinations.get(1));
+        Assert.assertEquals("[2, 3, 4]", combinations.get(9));
 
-        Assert.assertEquals(userRanking, ranking);
+        Assert.assertEquals(155117520L, CombinationUtils.count(30, 15));
+        Assert.assertEquals((1L << 30) - 31, CombinationUtils.count(30, 2, 30));
+        Assert.assertEquals(Long.MAX_VALUE, CombinationUtils.count(100, 50));
+        Assert.assertEquals(Long.MAX_VALUE, CombinationUtils.count(100, 2, 100));
+
+    }
+
+    /**
+     * Test that the scheduler runs every task with a bounded queue, longest
+     * first, and rethrows the first failure of a task or a group when closed.
+     */
+    @Test
+    public void testScheduler() {
+
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicInteger maxPending = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+        try (FusionScheduler scheduler = new FusionScheduler(2, 3)) {
+            for (int i = 0; i < 100; i++) {
+                maxPending.accumulateAndGet(pending.incrementAndGet(), Math::max);
+                scheduler.submit(() -> {
+                    pending.decrementAndGet();
+                    done.incrementAndGet();
+                });
+            }
+        }
+        Assert.assertEquals(100, done.get());
+        Assert.assertTrue(maxPending.get() <= 2 + 3 + 1);
+
+        // Pending tasks run longest first
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        try (FusionScheduler scheduler = new FusionScheduler(1, 3)) {
+            scheduler.submit(() -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            started.await();
+            for (final int cost : new int[] { 1, 3, 2 }) {
+                scheduler.submit("cost", cost, () -> order.add(cost));
+            }
+            release.countDown();
+            Assert.assertTrue(scheduler.report().contains("task"));
+        } catch (final InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        Assert.assertEquals(Arrays.asList(3, 2, 1), order);
+
+        final FusionScheduler scheduler = new FusionScheduler(1, 0);
+        scheduler.submit(() -> {
+            throw new IllegalStateException("failure");
+        });
+        try {
+            scheduler.close();
+            Assert.fail("The failure of the task was not rethrown");
+        } catch (final IllegalStateException e) {
+            Assert.assertEquals("failure", e.getMessage());
+        }
+
+        // The failure of the action of a group is rethrown as well
+        final FusionScheduler parent = new FusionScheduler(1, 0);
+        try (FusionScheduler group = parent.newGroup(() -> {
+            throw new IllegalStateException("group failure");
+        })) {
+            group.submit(() -> done.incrementAndGet());
+        }
+        try {
+            parent.close();
+            Assert.fail("The failure of the group was not rethrown");
+        } catch (final IllegalStateException e) {
+            Assert.assertEquals("group failure", e.getMessage());
+        }
+
+    }
+
+    /**
+     * Test that fusing the users of a combination in parallel blocks gives the
+     * same output as fusing them one by one.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testUserBlocks() throws IOException {
+
+        final Random random = new Random(11);
+        final List<RunFile> runs = new ArrayList<RunFile>();
+        final int numUsers = 5 * CombinationFusion.USER_BLOCK_SIZE + 3;
+        for (int r = 0; r < 2; r++) {
+            final Path runPath = writeRun("blocks" + r, randomRun(random, numUsers, 0, 5, 50));
+            runs.add(new RunFile(runPath, 5, new StandardNormalisation()));
+        }
+        final FoldDictionary dictionary = FoldDictionary.encode(runs);
+        final BitSet users = new BitSet();
+        runs.forEach(run -> users.or(run.getUserSet()));
+
+        for (final String name : new String[] { "combMNZ", "copeland" }) {
+
+            final RankAggregation alg = RankAggregation.build(name, 3);
+            final UserRankings rankings = new UserRankings(runs);
+            final TopKCollector collector = new TopKCollector(3);
+            final StringBuilder expected = new StringBuilder();
+            for (int userKey = 0; userKey < dictionary.numUsers(); userKey++) {
+                rankings.load(userKey);
+                collector.clear();
+                alg.computeUserRanking(rankings, collector);
+                collector.sort();
+                for (int rank = 0; rank < collector.size(); rank++) {
+                    expected.append(String.format(Locale.ENGLISH, "%d\tQ0\t%d\t%d\t%f\t%s\n",
+                            rankings.getUserID(), collector.getItem(rank), rank,
+                            collector.getScore(rank), rank == 0 ? alg.toString() : "-"));
+                }
+            }
+
+            // The blocks are fused on the pool of a scheduler
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try (FusionScheduler scheduler = new FusionScheduler(2, 0)) {
+                CombinationFusion.fuseAndPrint(scheduler.getForkJoinPool(),
+                        Collections.singletonList(alg), runs, users,
+                        Collections.singletonList(output));
+            }
+            Assert.assertEquals(expected.toString(),
+                    output.toString(StandardCharsets.UTF_8.name()));
+
+        }
+
+    }
+
+    /**
+     * Test that fusing several algorithms in a single pass gives the same
+     * outputs as fusing each algorithm on its own, storing them in segments.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testSharedPass() throws IOException {
+
+        final Random random = new Random(13);
+        final List<RunFile> runs = new ArrayList<RunFile>();
+        for (int r = 0; r < 3; r++) {
+            final Path runPath = writeRun("shared" + r, randomRun(random, 20, 0, 6, 30));
+            runs.add(new RunFile(runPath, 6, new StandardNormalisation()));
+        }
+
+        final List<RankAggregation> algs = new ArrayList<RankAggregation>();
+        for (final String name : new String[] { "borda", "combSum", "copeland", "condorcet" }) {
+            algs.add(RankAggregation.build(name, 4));
+        }
+
+        final Path separate = temp.newFolder().toPath();
+        final Path shared = temp.newFolder().toPath();
+        try (SegmentOutputStore store = new SegmentOutputStore(shared, 4096);
+                FusionScheduler scheduler = new FusionScheduler(2, 2)) {
+            for (final RankAggregation alg : algs) {
+                alg.computeAllCombinations(scheduler, 1, runs, separate);
+            }
+            new CombinationFusion(algs).computeAllCombinations(scheduler, 1, runs, store, 2,
+                    runs.size());
+        }
+
+        // A second execution finds all the runs in the index
+        try (SegmentOutputStore store = new SegmentOutputStore(shared, 4096);
+                FusionScheduler scheduler = new FusionScheduler(2, 2)) {
+            new CombinationFusion(algs).computeAllCombinations(scheduler, 1, runs, store, 2,
+                    runs.size());
+        }
+
+        try (Stream<Path> outputs = Files.list(separate);
+                SegmentOutputStore store = SegmentOutputStore.open(shared)) {
+            final List<Path> separateOutputs = outputs.collect(Collectors.toList());
+            Assert.assertEquals(4 * 4, separateOutputs.size());
+            Assert.assertEquals(4 * 4, store.names().size());
+            for (final Path output : separateOutputs) {
+                final ByteArrayOutputStream extracted = new ByteArrayOutputStream();
+                store.extract(output.getFileName().toString(), extracted);
+                Assert.assertArrayEquals(Files.readAllBytes(output), extracted.toByteArray());
+            }
+        }
+
+    }
+
+    /**
+     * Test that the runs written at the same time are streamed to their own
+     * segments and that the discarded runs are left out of the index.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testSegmentStore() throws IOException {
+
+        final Path folder = temp.newFolder().toPath();
+        try (SegmentOutputStore store = new SegmentOutputStore(folder, 16)) {
+            final OutputStore.Entry first = store.create("first");
+            final OutputStore.Entry discarded = store.create("discarded");
+            Assert.assertNull(store.create("first"));
+            first.write("first run\n".getBytes(StandardCharsets.US_ASCII));
+            discarded.write("discarded run\n".getBytes(StandardCharsets.US_ASCII));
+            discarded.close();
+            final OutputStore.Entry second = store.create("second");
+            second.write("second run\n".getBytes(StandardCharsets.US_ASCII));
+            second.commit();
+            first.write("first run again\n".getBytes(StandardCharsets.US_ASCII));
+            first.commit();
+        }
+
+        try (SegmentOutputStore store = SegmentOutputStore.open(folder)) {
+            Assert.assertEquals(Arrays.asList("first", "second"),
+                    new ArrayList<String>(store.names()));
+            final ByteArrayOutputStream first = new ByteArrayOutputStream();
+            store.extract("first", first);
+            Assert.assertEquals("first run\nfirst run again\n",
+                    first.toString(StandardCharsets.US_ASCII.name()));
+            final ByteArrayOutputStream second = new ByteArrayOutputStream();
+            store.extract("second", second);
+            Assert.assertEquals("second run\n",
+                    second.toString(StandardCharsets.US_ASCII.name()));
+        }
+
+    }
+
+    /**
+     * Test that fusing the runs while they are read gives the same output as
+     * fusing the loaded runs.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testStreaming() throws IOException {
+
+        final Random random = new Random(17);
+        final List<Path> runPaths = new ArrayList<Path>();
+        final List<RunFile> runs = new ArrayList<RunFile>();
+        for (int r = 0; r < 3; r++) {
+            final Path runPath = writeRun("stream" + r, randomRun(random, 25, 4, 8, 30));
+            runPaths.add(runPath);
+            runs.add(new RunFile(runPath, 6, new StandardNormalisation()));
+        }
+
+        final List<RankAggregation> algs = new ArrayList<RankAggregation>();
+        for (final String name : new String[] { "borda", "combMNZ", "copeland" }) {
+            algs.add(RankAggregation.build(name, 4));
+        }
+
+        final Path loaded = temp.newFolder().toPath();
+        final Path streamed = temp.newFolder().toPath();
+        try (FusionScheduler scheduler = new FusionScheduler(2, 2)) {
+            new CombinationFusion(algs).computeAllCombinations(scheduler, 1, runs,
+                    new FolderOutputStore(loaded), 2, runs.size());
+            new CombinationFusion(algs).computeStreamingCombinations(scheduler, 1, runPaths, 6,
+                    new StandardNormalisation(), new FolderOutputStore(streamed), 2,
+                    runs.size());
+        }
+
+        try (Stream<Path> outputs = Files.list(loaded)) {
+            final List<Path> loadedOutputs = outputs.collect(Collectors.toList());
+            Assert.assertEquals(3 * 4, loadedOutputs.size());
+            for (final Path output : loadedOutputs) {
+                Assert.assertArrayEquals(Files.readAllBytes(output),
+                        Files.readAllBytes(streamed.resolve(output.getFileName())));
+            }
+        }
+
+    }
+
+    /**
+     * Test that fusing the folds one at a time gives the same output as fusing
+     * all the folds read at once, and that a fold is not read beyond the
+     * budget until the tasks of the previous one have finished.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testFoldLoader() throws IOException {
+
+        final Random random = new Random(23);
+        final Path runsFolder = temp.newFolder("folds").toPath();
+        for (int fold = 1; fold <= 3; fold++) {
+            for (int r = 0; r < 3; r++) {
+                writeRun(runsFolder, "r" + r, fold, randomRun(random, 20, 0, 5, 25));
+            }
+        }
+
+        final List<RankAggregation> algs = Arrays.asList(RankAggregation.build("borda", 4),
+                RankAggregation.build("combSum", 4));
+
+        final Path all = temp.newFolder().toPath();
+        final Path byFold = temp.newFolder().toPath();
+        final AtomicInteger released = new AtomicInteger();
+        try (FusionScheduler scheduler = new FusionScheduler(2, 2)) {
+
+            RunFile.readRuns(runsFolder, 4, new StandardNormalisation())
+                    .forEach((fold, runs) -> new CombinationFusion(algs)
+                            .computeAllCombinations(scheduler, fold, runs,
+                                    new FolderOutputStore(all), 2, runs.size()));
+
+            try (FoldLoader loader = new FoldLoader(RunFile.listRuns(runsFolder), 4,
+                    new NoneNormalisation(), null, Storage.HEAP, 0, 1, 0)) {
+                int expectedFold = 1;
+                for (List<RunFile> runs = loader.next(); runs != null; runs = loader.next()) {
+                    final int fold = runs.get(0).getFold();
+                    Assert.assertEquals(expectedFold++, fold);
+                    Assert.assertEquals(fold - 1, released.get());
+                    final List<RunFile> normalised = runs.stream()
+                            .map(run -> run.normalise(new StandardNormalisation()))
+                            .collect(Collectors.toList());
+                    try (FusionScheduler group = scheduler.newGroup(() -> {
+                        released.incrementAndGet();
+                        loader.release(fold);
+                    })) {
+                        new CombinationFusion(algs).computeAllCombinations(group, fold,
+                                normalised, new FolderOutputStore(byFold), 2, runs.size());
+                    }
+                }
+                Assert.assertEquals(4, expectedFold);
+            }
+
+        }
+        Assert.assertEquals(3, released.get());
+
+        try (Stream<Path> outputs = Files.list(all)) {
+            final List<Path> allOutputs = outputs.collect(Collectors.toList());
+            Assert.assertEquals(3 * 2 * 4, allOutputs.size());
+            for (final Path output : allOutputs) {
+                Assert.assertArrayEquals(Files.readAllBytes(output),
+                        Files.readAllBytes(byFold.resolve(output.getFileName())));
+            }
+        }
+
+    }
+
+    /**
+     * Test that walking the lattice of combinations gives the same output as
+     * fusing each combination from scratch, with and without cache.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testLattice() throws IOException {
+
+        final Random random = new Random(7);
+        final List<RunFile> runs = new ArrayList<RunFile>();
+        for (int r = 0; r < 4; r++) {
+            final Path runPath = writeRun("lattice" + r, randomRun(random, 30, 5, 10, 40));
+            runs.add(new RunFile(runPath, 8, new StandardNormalisation()));
+        }
+        FoldDictionary.encode(runs);
+
+        // The outputs of the lattice are written by a writer thread
+        try (AsyncFileWriter writer = new AsyncFileWriter(2)) {
+
+            for (final String name : new String[] { "combSum", "combMNZ", "borda" }) {
+
+                final RankAggregation alg = RankAggregation.build(name, 5);
+                final CombinationFusion fusion = new CombinationFusion(
+                        Collections.singletonList(alg));
+                final Path expected = temp.newFolder().toPath();
+                for (int k = 2; k <= runs.size(); k++) {
+                    for (final List<RunFile> combination : CombinationUtils.combination(runs, k)) {
+                        final BitSet users = new BitSet();
+                        combination.forEach(run -> users.or(run.getUserSet()));
+                        final String files = String.join("-", combination.stream()
+                                .map(RunFile::getName).sorted().collect(Collectors.toList()));
+                        try (OutputStream output = new BufferedOutputStream(
+                                Files.newOutputStream(expected.resolve(String.format(
+                                        Locale.ENGLISH, "%s-standard-n%d-%s-fold1.txt", alg, k,
+                                        files))))) {
+                            CombinationFusion.fuseAndPrint(null, Collections.singletonList(alg),
+                                    combination, users, Collections.singletonList(output));
+                        }
+                    }
+                }
+
+                for (final long cacheSize : new long[] { 0, Long.MAX_VALUE }) {
+                    final Path actual = temp.newFolder().toPath();
+                    final AtomicLong budget = new AtomicLong(cacheSize);
+                    for (int first = 0; first < runs.size(); first++) {
+                        for (int second = first + 1; second < runs.size(); second++) {
+                            fusion.new LatticeWalk(null, 1, runs,
+                                    new FolderOutputStore(actual, writer), 2, runs.size(),
+                                    budget).fuse(new int[] { first, second });
+                        }
+                    }
+                    Assert.assertEquals(cacheSize, budget.get());
+                    writer.sync();
+
+                    try (Stream<Path> outputs = Files.list(expected)) {
+                        final List<Path> expectedOutputs = outputs.collect(Collectors.toList());
+                        Assert.assertEquals(11, expectedOutputs.size());
+                        for (final Path output : expectedOutputs) {
+                            Assert.assertArrayEquals(Files.readAllBytes(output),
+                                    Files.readAllBytes(actual.resolve(output.getFileName())));
+                        }
+                    }
+                }
+
+                // Only the combinations of three runs
+                final Path range = temp.newFolder().toPath();
+                final AtomicLong budget = new AtomicLong(Long.MAX_VALUE);
+                for (int first = 0; first < runs.size(); first++) {
+                    for (int second = first + 1; second < runs.size(); second++) {
+                        fusion.new LatticeWalk(null, 1, runs,
+                                new FolderOutputStore(range, writer), 3, 3, budget)
+                                .fuse(new int[] { first, second });
+                    }
+                }
+                writer.sync();
+                try (Stream<Path> outputs = Files.list(range)) {
+                    final List<Path> rangeOutputs = outputs.collect(Collectors.toList());
+                    Assert.assertEquals(4, rangeOutputs.size());
+                    for (final Path output : rangeOutputs) {
+                        Assert.assertArrayEquals(
+                                Files.readAllBytes(expected.resolve(output.getFileName())),
+                                Files.readAllBytes(output));
+                    }
+                }
+
+            }
+
+        }
 
     }
 
@@ -164,15 +755,9 @@ public class TestMetaRecSys {
 
         final RankAggregation borda = RankAggregation.build("combSum", maxRank);
 
-        borda.computeUserRanking(runs, userID, allItems, ranking);
-
-        final TreeMap<Double, LongSet> userRanking = new TreeMap<Double, LongSet>();
-        userRanking.put(6.0, HashLongSets.newUpdatableSet(new long[] { 3 }));
-        userRanking.put(5.0, HashLongSets.newUpdatableSet(new long[] { 1 }));
-        userRanking.put(2.5, HashLongSets.newUpdatableSet(new long[] { 2 }));
-        userRanking.put(1.0, HashLongSets.newUpdatableSet(new long[] { 4 }));
+        borda.computeUserRanking(user, ranking);
 
-        Assert.assertEquals(userRanking, ranking);
+        assertRanking(new long[] { 3, 1, 2, 4 }, new double[] { 6.0, 5.0, 2.5, 1.0 });
 
     }
 
@@ -184,15 +769,31 @@ public class TestMetaRecSys {
 
         final RankAggregation borda = RankAggregation.build("combANZ", maxRank);
 
-        borda.computeUserRanking(runs, userID, allItems, ranking);
+        borda.computeUserRanking(user, ranking);
 
-        final TreeMap<Double, LongSet> userRanking = new TreeMap<Double, LongSet>();
-        userRanking.put(3.0, HashLongSets.newUpdatableSet(new long[] { 3 }));
-        userRanking.put(2.5, HashLongSets.newUpdatableSet(new long[] { 1 }));
-        userRanking.put(1.25, HashLongSets.newUpdatableSet(new long[] { 2 }));
-        userRanking.put(0.5, HashLongSets.newUpdatableSet(new long[] { 4 }));
+        assertRanking(new long[] { 3, 1, 2, 4 }, new double[] { 3.0, 2.5, 1.25, 0.5 });
 
-        Assert.assertEquals(userRanking, ranking);
+    }
+
+    /**
+     * Test that the collector keeps the best items and breaks ties by item id.
+     */
+    @Test
+    public void testTopKCollector() {
+
+        final long[] items = { 9, 4, 7, 1, 8, 2, 6 };
+        final double[] scores = { 1.0, 3.0, 2.0, 3.0, 0.5, 2.0, 5.0 };
+        for (int i = 0; i < items.length; i++) {
+            ranking.add(items[i], scores[i]);
+        }
+
+        assertRanking(new long[] { 6, 1, 4, 2 }, new double[] { 5.0, 3.0, 3.0, 2.0 });
+
+        ranking.clear();
+        ranking.add(3, Double.NaN);
+        ranking.add(5, 0.0);
+        ranking.add(4, -0.0);
+        assertRanking(new long[] { 3, 5, 4 }, new double[] { Double.NaN, 0.0, -0.0 });
 
     }
 
@@ -204,15 +805,89 @@ public class TestMetaRecSys {
 
         final RankAggregation borda = RankAggregation.build("combMNZ", maxRank);
 
-        borda.computeUserRanking(runs, userID, allItems, ranking);
+        borda.computeUserRanking(user, ranking);
 
-        final TreeMap<Double, LongSet> userRanking = new TreeMap<Double, LongSet>();
-        userRanking.put(12.0, HashLongSets.newUpdatableSet(new long[] { 3 }));
-        userRanking.put(10.0, HashLongSets.newUpdatableSet(new long[] { 1 }));
-        userRanking.put(5.0, HashLongSets.newUpdatableSet(new long[] { 2 }));
-        userRanking.put(2.0, HashLongSets.newUpdatableSet(new long[] { 4 }));
+        assertRanking(new long[] { 3, 1, 2, 4 }, new double[] { 12.0, 10.0, 5.0, 2.0 });
 
-        Assert.assertEquals(userRanking, ranking);
+    }
+
+    /**
+     * Test that the threshold algorithm gives the same output as accumulating
+     * all the candidates and reads fewer entries when the runs agree. A user
+     * with unsorted scores in a run is accumulated without affecting the rest.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testThreshold() throws IOException {
+
+        final List<RunFile> runs = new ArrayList<RunFile>();
+        for (int r = 0; r < 3; r++) {
+            final Random random = new Random(r);
+            final StringBuilder contents = new StringBuilder();
+            for (int u = 0; u < 20; u++) {
+                // The runs swap some neighbouring items of the same order
+                final int[] items = new int[30];
+                for (int rank = 0; rank < items.length; rank++) {
+                    items[rank] = rank * 20 + u;
+                }
+                for (int rank = 1; rank < items.length; rank++) {
+                    if (random.nextBoolean()) {
+                        final int itemID = items[rank];
+                        items[rank] = items[rank - 1];
+                        items[rank - 1] = itemID;
+                    }
+                }
+                // The scores of the first user of the first run increase
+                for (int rank = 0; rank < items.length; rank++) {
+                    contents.append(line(u, items[rank], rank,
+                            r == 0 && u == 0 ? rank / 30.0 : 1.0 - rank / 30.0));
+                }
+            }
+            runs.add(new RunFile(writeRun("threshold" + r, contents.toString()), 30,
+                    new NoneNormalisation()));
+        }
+
+        for (final String name : new String[] { "combSum", "combMNZ" }) {
+
+            final Comb exhaustive = (Comb) RankAggregation.build(name, 5);
+            final Comb threshold = (Comb) RankAggregation.build(name, 5);
+            threshold.setThreshold(true);
+
+            final Path exhaustiveFolder = temp.newFolder().toPath();
+            final Path thresholdFolder = temp.newFolder().toPath();
+            try (FusionScheduler scheduler = new FusionScheduler(2, 2)) {
+                new CombinationFusion(Collections.singletonList(exhaustive))
+                        .computeAllCombinations(scheduler, 1, runs,
+                                new FolderOutputStore(exhaustiveFolder), 2, runs.size());
+                new CombinationFusion(Collections.singletonList(threshold))
+                        .computeAllCombinations(scheduler, 1, runs,
+                                new FolderOutputStore(thresholdFolder), 2, runs.size());
+            }
+
+            try (Stream<Path> outputs = Files.list(exhaustiveFolder)) {
+                final List<Path> exhaustiveOutputs = outputs.collect(Collectors.toList());
+                Assert.assertEquals(4, exhaustiveOutputs.size());
+                for (final Path output : exhaustiveOutputs) {
+                    Assert.assertArrayEquals(Files.readAllBytes(output), Files
+                            .readAllBytes(thresholdFolder.resolve(output.getFileName())));
+                }
+            }
+
+            Assert.assertEquals(0, exhaustive.getThresholdUsers());
+            Assert.assertEquals(4 * 20 - 3, threshold.getThresholdUsers());
+            Assert.assertEquals(3, threshold.getUnsortedUsers());
+            Assert.assertTrue(threshold.getSavedAccesses() > 0);
+
+        }
+
+        try {
+            ((Comb) RankAggregation.build("combANZ", 5)).setThreshold(true);
+            Assert.fail();
+        } catch (final IllegalStateException e) {
+            // combANZ is not monotone
+        }
 
     }
 
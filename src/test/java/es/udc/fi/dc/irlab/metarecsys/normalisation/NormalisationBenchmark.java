@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.normalisation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import es.udc.fi.dc.irlab.metarecsys.structures.RankScore;
+import net.openhft.koloboke.collect.map.LongObjMap;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMaps;
+
+/**
+ * The Class NormalisationBenchmark. It compares the time per user taken by the
+ * normalisation kernels on a slice of a score column and by the former
+ * implementation, which streamed over the boxed values of a map several
+ * times. It is not run by the test suite; run it with
+ *
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) \
+ *     es.udc.fi.dc.irlab.metarecsys.normalisation.NormalisationBenchmark
+ * </pre>
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public final class NormalisationBenchmark {
+
+    /** The number of users of each measurement. */
+    private static final int USERS = 2000;
+
+    /** The number of measurements. */
+    private static final int ROUNDS = 5;
+
+    /**
+     * Instantiates a new normalisation benchmark.
+     */
+    private NormalisationBenchmark() {
+
+    }
+
+    /**
+     * The former standard normalisation of a user ranking.
+     *
+     * @param userRanking
+     *            the ranking of a user
+     */
+    private static void streamStandard(final LongObjMap<RankScore> userRanking) {
+        final double min = userRanking.values().stream().mapToDouble(pref -> pref.getScore())
+                .min().getAsDouble();
+        final double max = userRanking.values().stream().mapToDouble(pref -> pref.getScore())
+                .max().getAsDouble();
+        final double den = max - min;
+        userRanking.values().stream().forEach(pref -> pref.setScore((pref.getScore() - min) / den));
+    }
+
+    /**
+     * The former ZMUV normalisation of a user ranking.
+     *
+     * @param userRanking
+     *            the ranking of a user
+     */
+    private static void streamZMUV(final LongObjMap<RankScore> userRanking) {
+        final double n = userRanking.size();
+        final double mean = userRanking.values().stream().mapToDouble(p -> p.getScore()).sum()
+                / n;
+        final double meanSquared = userRanking.values().stream()
+                .mapToDouble(p -> p.getScore() * p.getScore()).sum() / n;
+        final double std = Math.sqrt((meanSquared - mean * mean) * n / (n - 1));
+        userRanking.values().stream().forEach(p -> p.setScore((p.getScore() - mean) / std));
+    }
+
+    /**
+     * The main method.
+     *
+     * @param args
+     *            the arguments (ignored)
+     */
+    public static void main(final String[] args) {
+
+        final Random random = new Random(42);
+
+        for (final int maxRank : new int[] { 10, 100, 1000 }) {
+
+            final double[] column = new double[USERS * maxRank];
+            for (int pos = 0; pos < column.length; pos++) {
+                column[pos] = random.nextDouble() * 100;
+            }
+
+            for (final String name : new String[] { "standard", "zmuv" }) {
+
+                final NormalisationAlgorithm norm = NormalisationAlgorithm.build(name);
+
+                for (int round = 0; round < ROUNDS; round++) {
+
+                    final List<LongObjMap<RankScore>> maps = new ArrayList<>(USERS);
+                    for (int u = 0; u < USERS; u++) {
+                        final LongObjMap<RankScore> map = HashLongObjMaps.newUpdatableMap(maxRank);
+                        for (int i = 0; i < maxRank; i++) {
+                            map.put(i, new RankScore(i, column[u * maxRank + i]));
+                        }
+                        maps.add(map);
+                    }
+                    final double[] scores = column.clone();
+
+                    long start = System.nanoTime();
+                    for (final LongObjMap<RankScore> map : maps) {
+                        if ("zmuv".equals(name)) {
+                            streamZMUV(map);
+                        } else {
+                            streamStandard(map);
+                        }
+                    }
+                    final long streams = System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    for (int u = 0; u < USERS; u++) {
+                        norm.apply(scores, u * maxRank, (u + 1) * maxRank);
+                    }
+                    final long kernel = System.nanoTime() - start;
+
+                    double error = 0;
+                    for (int u = 0; u < USERS; u++) {
+                        for (int i = 0; i < maxRank; i++) {
+                            error = Math.max(error, Math.abs(
+                                    maps.get(u).get(i).getScore() - scores[u * maxRank + i]));
+                        }
+                    }
+
+                    System.out.println(String.format(Locale.ENGLISH,
+                            "%s\tmax_rank=%d\tstreams %.3f us/user\tkernel %.3f us/user\t"
+                                    + "speedup %.1fx\tmax error %.1e",
+                            name, maxRank, streams / 1e3 / USERS, kernel / 1e3 / USERS,
+                            (double) streams / kernel, error));
+
+                }
+
+            }
+
+        }
+
+    }
+
+}
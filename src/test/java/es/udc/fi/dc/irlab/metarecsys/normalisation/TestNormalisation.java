@@ -15,6 +15,9 @@
  */
 package es.udc.fi.dc.irlab.metarecsys.normalisation;
 
+import java.util.Arrays;
+import java.util.stream.DoubleStream;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -99,6 +102,14 @@ public class TestNormalisation {
 
         Assert.assertEquals(userRanking2, norm.apply(userRanking1));
 
+        // The small scores of the tail are not lost in the sum
+        final double[] scores = new double[11];
+        Arrays.fill(scores, 1e-16);
+        scores[0] = 1.0;
+        final double den = DoubleStream.of(scores).sum() - 1e-16 * scores.length;
+        norm.apply(scores, 0, scores.length);
+        Assert.assertEquals((1.0 - 1e-16) / den, scores[0], 0.0);
+
     }
 
     /**
@@ -125,4 +136,51 @@ public class TestNormalisation {
 
     }
 
+    /**
+     * Test that normalising a slice of an array gives the same scores as
+     * normalising a map.
+     */
+    @Test
+    public void testArrayNormalisation() {
+
+        for (final String name : new String[] { "none", "standard", "sum", "zmuv", "zmuv1",
+                "zmuv2" }) {
+
+            final NormalisationAlgorithm norm = NormalisationAlgorithm.build(name);
+
+            final LongObjMap<RankScore> userRanking = HashLongObjMaps.<RankScore> newImmutableMap(
+                    new long[] { 1L, 2L, 3L }, new RankScore[] { new RankScore(0, 8.0),
+                            new RankScore(1, 4.0), new RankScore(2, 2.0) });
+            final double[] scores = { -1.0, 8.0, 4.0, 2.0, -1.0 };
+
+            norm.apply(userRanking);
+            norm.apply(scores, 1, 4);
+
+            Assert.assertEquals(-1.0, scores[0], 0.0);
+            Assert.assertEquals(userRanking.get(1L).getScore(), scores[1], 1e-12);
+            Assert.assertEquals(userRanking.get(2L).getScore(), scores[2], 1e-12);
+            Assert.assertEquals(userRanking.get(3L).getScore(), scores[3], 1e-12);
+            Assert.assertEquals(-1.0, scores[4], 0.0);
+
+        }
+
+    }
+
+    /**
+     * Test that ZMUV normalisation is stable when the scores are large
+     * compared to their spread.
+     */
+    @Test
+    public void testZMUVStability() {
+
+        final double[] scores = { 1e9 + 2.0, 1e9 + 4.0, 1e9 + 8.0 };
+
+        new ZMUVNormalisation(0.0).apply(scores, 0, scores.length);
+
+        Assert.assertEquals(-4.0 / Math.sqrt(21), scores[0], 1e-6);
+        Assert.assertEquals(-1.0 / Math.sqrt(21), scores[1], 1e-6);
+        Assert.assertEquals(5.0 / Math.sqrt(21), scores[2], 1e-6);
+
+    }
+
 }
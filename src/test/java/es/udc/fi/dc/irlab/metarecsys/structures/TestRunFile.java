@@ -0,0 +1,621 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.structures;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import es.udc.fi.dc.irlab.metarecsys.normalisation.NoneNormalisation;
+import es.udc.fi.dc.irlab.metarecsys.normalisation.NormalisationAlgorithm;
+import es.udc.fi.dc.irlab.metarecsys.normalisation.StandardNormalisation;
+import net.openhft.koloboke.collect.map.LongObjMap;
+
+/**
+ * The Class TestRunFile. It checks the parsing of TREC run files.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public class TestRunFile {
+
+    /**
+     * Write a temporary run file with the given contents.
+     *
+     * @param contents
+     *            the contents
+     * @return the path to the run file
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private static Path writeRun(final String contents) throws IOException {
+        final Path runPath = Files.createTempFile("run-test", "-fold1.txt");
+        Files.write(runPath, contents.getBytes(StandardCharsets.UTF_8));
+        runPath.toFile().deleteOnExit();
+        return runPath;
+    }
+
+    /**
+     * Test that the parser decodes the same values as the standard Java
+     * parsing methods.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testParser() throws IOException {
+
+        final String[] scores = { "5.000000", "-0.0", "0", "1e-7", "3.5E10", "-12.75",
+                "0.12345678901234567890", "123456789012345678", "NaN", "-Infinity", "4.9e-324",
+                "+2.5", ".5", "7." };
+
+        final Random random = new Random(42);
+        final StringBuilder contents = new StringBuilder();
+        final List<String[]> expected = new ArrayList<String[]>();
+
+        for (int i = 0; i < 200; i++) {
+            final String[] fields = { String.valueOf(random.nextLong()), "Q0",
+                    String.valueOf(random.nextInt()), String.valueOf(random.nextInt(1000)),
+                    scores[i % scores.length] };
+            expected.add(fields);
+            contents.append(String.join("\t", fields));
+            contents.append(i % 3 == 0 ? "\t-" : "");
+            contents.append(i % 2 == 0 ? "\n" : "\r\n");
+        }
+
+        final List<Object[]> parsed = new ArrayList<Object[]>();
+        final RunParser parser = new RunParser((userID, itemID, rank, score) -> parsed
+                .add(new Object[] { userID, itemID, rank, score }));
+        parser.parse(writeRun(contents.toString()));
+
+        Assert.assertEquals(expected.size(), parser.getLineNumber());
+
+        Assert.assertEquals(expected.size(), parsed.size());
+        for (int i = 0; i < expected.size(); i++) {
+            final String[] fields = expected.get(i);
+            final Object[] values = parsed.get(i);
+            Assert.assertEquals(Long.parseLong(fields[0]), values[0]);
+            Assert.assertEquals(Long.parseLong(fields[2]), values[1]);
+            Assert.assertEquals(Integer.parseInt(fields[3]), values[2]);
+            Assert.assertEquals(Double.doubleToRawLongBits(Double.parseDouble(fields[4])),
+                    Double.doubleToRawLongBits((Double) values[3]));
+        }
+
+    }
+
+    /**
+     * Test that a run file with Windows line endings is parsed in small
+     * segments whatever segment boundary falls between a carriage return and
+     * its line feed.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testSegments() throws IOException {
+
+        final StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            contents.append(String.format(Locale.ENGLISH, "%d\tQ0\t%d\t%d\t%f\r\n", i / 5,
+                    i * 7, i % 5, 1.0 / (i + 1)));
+        }
+        final Path runPath = writeRun(contents.toString());
+
+        final List<Long> expected = new ArrayList<Long>();
+        new RunParser((userID, itemID, rank, score) -> expected.add(itemID)).parse(runPath);
+
+        try (final FileChannel channel = FileChannel.open(runPath, StandardOpenOption.READ)) {
+            // Segments of one and a half to three lines
+            for (int segmentSize = 30; segmentSize < 60; segmentSize++) {
+                final List<Long> parsed = new ArrayList<Long>();
+                new RunParser((userID, itemID, rank, score) -> parsed.add(itemID))
+                        .parse(channel, 0, channel.size(), segmentSize);
+                Assert.assertEquals(expected, parsed);
+            }
+        }
+
+    }
+
+    /**
+     * Test that a malformed line is rejected.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test(expected = NumberFormatException.class)
+    public void testMalformedLine() throws IOException {
+        new RunParser((userID, itemID, rank, score) -> {
+        }).parse(writeRun("1\tQ0\t2\t0\t1.0\n1\tQ0\tx\t1\t1.0\n"));
+    }
+
+    /**
+     * Test that the run file is split on user boundaries.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testSplit() throws IOException {
+
+        final StringBuilder contents = new StringBuilder();
+        for (long userID = 1; userID <= 50; userID++) {
+            for (int rank = 0; rank < userID % 7 + 1; rank++) {
+                contents.append(String.format(Locale.ENGLISH, "%d\tQ0\t%d\t%d\t%f\t-\r\n",
+                        userID, rank, rank, 1.0 / (rank + 1)));
+            }
+        }
+        final Path runPath = writeRun(contents.toString());
+
+        try (final FileChannel channel = FileChannel.open(runPath, StandardOpenOption.READ)) {
+
+            final long[] offsets = RunParser.split(channel, 16);
+            Assert.assertTrue(offsets.length > 2);
+            Assert.assertEquals(0, offsets[0]);
+            Assert.assertEquals(channel.size(), offsets[offsets.length - 1]);
+
+            final List<Long> users = new ArrayList<Long>();
+            long lines = 0;
+            for (int i = 0; i < offsets.length - 1; i++) {
+                final List<Long> chunkUsers = new ArrayList<Long>();
+                final RunParser parser = new RunParser((userID, itemID, rank, score) -> {
+                    if (chunkUsers.isEmpty()
+                            || chunkUsers.get(chunkUsers.size() - 1) != userID) {
+                        chunkUsers.add(userID);
+                    }
+                });
+                parser.parse(channel, offsets[i], offsets[i + 1]);
+                lines += parser.getLineNumber();
+
+                // No user spans two chunks
+                Assert.assertFalse(users.contains(chunkUsers.get(0)));
+                users.addAll(chunkUsers);
+            }
+
+            Assert.assertEquals(50, users.size());
+            Assert.assertEquals(contents.toString().split("\n").length, lines);
+
+        }
+
+    }
+
+    /**
+     * Test reading a run file.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testReadRun() throws IOException {
+
+        final StringBuilder contents = new StringBuilder();
+        for (long userID = 1; userID <= 3; userID++) {
+            for (int rank = 0; rank < 5; rank++) {
+                contents.append(String.format(Locale.ENGLISH, "%d\tQ0\t%d\t%d\t%f\t-\n", userID,
+                        userID * 10 + rank, rank, 5.0 - rank));
+            }
+        }
+
+        final RunFile run = new RunFile(writeRun(contents.toString()), 3, new NoneNormalisation());
+
+        Assert.assertEquals(1, run.getFold());
+        Assert.assertEquals(3, run.getUsers().size());
+        Assert.assertEquals(9, run.getItems().size());
+
+        final LongObjMap<RankScore> ranking = run.getRanking(2);
+        Assert.assertEquals(3, ranking.size());
+        Assert.assertEquals(new RankScore(1, 4.0), ranking.get(21));
+        Assert.assertEquals(4.0, run.getScore(2, 21, Double.NaN), 0.0);
+        Assert.assertEquals(2, run.getRank(2, 22, -1));
+        Assert.assertEquals(-1, run.getRank(2, 23, -1));
+
+    }
+
+    /**
+     * Test that a cursor reads the same rankings as the run file, user by
+     * user.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testRunCursor() throws IOException {
+
+        final Random random = new Random(11);
+        final StringBuilder contents = new StringBuilder();
+        for (long userID = 1; userID <= 40; userID++) {
+            if (userID % 5 == 0) {
+                continue;
+            }
+            for (int rank = 0; rank < 8; rank++) {
+                contents.append(String.format(Locale.ENGLISH, "%d	Q0	%d	%d	%f	-\n",
+                        userID, random.nextInt(10), rank, random.nextDouble() * 10));
+            }
+        }
+        final Path runPath = writeRun(contents.toString());
+        final NormalisationAlgorithm norm = new StandardNormalisation();
+        final RunFile run = new RunFile(runPath, 6, norm);
+
+        int numUsers = 0;
+        try (RunCursor cursor = new RunCursor(runPath, 6, norm)) {
+            Assert.assertEquals(run.getName(), cursor.getName());
+            while (cursor.next()) {
+                Assert.assertTrue(cursor.hasUser());
+                final LongObjMap<RankScore> ranking = run.getRanking(cursor.getUserID());
+                Assert.assertEquals(ranking.size(), cursor.size());
+                for (int i = 0; i < cursor.size(); i++) {
+                    final RankScore rankScore = ranking.get(cursor.getItem(i));
+                    Assert.assertEquals(rankScore.getRank(), cursor.getRank(i));
+                    Assert.assertEquals(rankScore.getScore(), cursor.getScore(i), 1e-12);
+                }
+                numUsers++;
+            }
+            Assert.assertFalse(cursor.hasUser());
+        }
+        Assert.assertEquals(run.getUsers().size(), numUsers);
+
+    }
+
+    /**
+     * Test that a cursor rejects a run which is not sorted by user.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsortedRunCursor() throws IOException {
+        try (RunCursor cursor = new RunCursor(
+                writeRun("2\tQ0\t1\t0\t1.0\n1\tQ0\t1\t0\t1.0\n"), 5,
+                new NoneNormalisation())) {
+            while (cursor.next()) {
+                continue;
+            }
+        }
+    }
+
+    /**
+     * Test that sorting a run sharded by item keeps all the lines of each user
+     * in order and that the index finds the lines of each user.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testRunSorter() throws IOException {
+
+        // Two shards with the same users and some repeated items
+        final Random random = new Random(5);
+        final StringBuilder contents = new StringBuilder();
+        final Map<Long, List<String>> userLines = new TreeMap<Long, List<String>>();
+        for (int shard = 0; shard < 2; shard++) {
+            for (long userID = 30; userID > 0; userID -= random.nextInt(3) + 1) {
+                for (int rank = 0; rank < 4; rank++) {
+                    final String line = String.format(Locale.ENGLISH, "%d\tQ0\t%d\t%d\t%s",
+                            userID, random.nextInt(12), rank + 4 * shard,
+                            Double.toString(random.nextDouble()));
+                    contents.append(line).append("\t-\n");
+                    userLines.computeIfAbsent(userID, u -> new ArrayList<String>()).add(line);
+                }
+            }
+        }
+        final Path runPath = writeRun(contents.toString());
+
+        final Path folder = Files.createTempDirectory("metarecsys-sort");
+        final Path sortedPath = folder.resolve(runPath.getFileName());
+        final RunSorter sorter = new RunSorter(folder, 256);
+        final UserIndex index = sorter.sort(runPath, sortedPath);
+
+        // The lines of each user in the order of the original file
+        final List<String> expected = new ArrayList<String>();
+        userLines.values().forEach(expected::addAll);
+        final List<String> actual = new ArrayList<String>();
+        for (final String line : Files.readAllLines(sortedPath)) {
+            actual.add(line.substring(0, line.lastIndexOf('\t')));
+        }
+        Assert.assertEquals(expected, actual);
+
+        // Seek the lines of each user
+        Assert.assertEquals(userLines.size(), index.numUsers());
+        try (FileChannel channel = FileChannel.open(sortedPath, StandardOpenOption.READ)) {
+            for (final Map.Entry<Long, List<String>> entry : userLines.entrySet()) {
+                final int u = index.find(entry.getKey());
+                Assert.assertEquals(entry.getKey().longValue(), index.getUserID(u));
+                final List<Long> users = new ArrayList<Long>();
+                index.parseUser(channel, u, new RunParser(
+                        (userID, itemID, rank, score) -> users.add(userID)));
+                Assert.assertEquals(entry.getValue().size(), users.size());
+                Assert.assertTrue(users.stream().allMatch(entry.getKey()::equals));
+            }
+        }
+        Assert.assertTrue(index.find(31) < 0);
+
+        // The sorted run is read like the run with all the lines of each user
+        try (RunCursor cursor = new RunCursor(sortedPath, 100, new NoneNormalisation())) {
+            while (cursor.next()) {
+                continue;
+            }
+        }
+
+        // The sorted run is up to date
+        final long time = Files.getLastModifiedTime(sortedPath).toMillis();
+        Assert.assertNotNull(UserIndex.read(sortedPath));
+        sorter.sort(runPath, sortedPath);
+        Assert.assertEquals(time, Files.getLastModifiedTime(sortedPath).toMillis());
+        try (DirectoryStream<Path> spills = Files.newDirectoryStream(folder, "*.spill")) {
+            Assert.assertFalse(spills.iterator().hasNext());
+        }
+
+    }
+
+    /**
+     * Test the compact rankings with unsorted users, repeated users and
+     * repeated items.
+     */
+    @Test
+    public void testCompactRankings() {
+
+        final CompactRankings.Builder builder = new CompactRankings.Builder(
+                new NoneNormalisation());
+        builder.startUser(7);
+        builder.add(70, 0, 3.0);
+        builder.add(71, 1, 2.0);
+        builder.startUser(3);
+        builder.add(35, 0, 1.0);
+        builder.add(31, 1, 0.5);
+        builder.add(35, 2, 0.25);
+        builder.startUser(7);
+        builder.add(72, 0, 9.0);
+        final CompactRankings rankings = builder.build();
+
+        Assert.assertEquals(2, rankings.numUsers());
+        Assert.assertEquals(3, rankings.getUserID(0));
+        Assert.assertEquals(7, rankings.getUserID(1));
+        Assert.assertEquals(-1, rankings.indexOf(5));
+
+        // Repeated items keep their first position and their last value
+        final int u3 = rankings.indexOf(3);
+        Assert.assertEquals(2, rankings.getEnd(u3) - rankings.getStart(u3));
+        Assert.assertEquals(35, rankings.getItem(rankings.getStart(u3)));
+        Assert.assertEquals(2, rankings.getRank(rankings.find(u3, 35)));
+        Assert.assertEquals(0.5, rankings.getScore(rankings.find(u3, 31)), 0.0);
+        Assert.assertEquals(-1, rankings.find(u3, 70));
+
+        // Repeated users keep their last ranking
+        final int u7 = rankings.indexOf(7);
+        Assert.assertEquals(1, rankings.getEnd(u7) - rankings.getStart(u7));
+        Assert.assertEquals(-1, rankings.find(u7, 70));
+        Assert.assertEquals(9.0, rankings.getScore(rankings.find(u7, 72)), 0.0);
+
+    }
+
+    /**
+     * Test that a run read from its binary sidecar or stored off the heap
+     * equals the parsed run.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testSidecar() throws IOException {
+
+        final StringBuilder contents = new StringBuilder();
+        for (long userID = 1; userID <= 20; userID++) {
+            for (int rank = 0; rank < 10; rank++) {
+                contents.append(String.format(Locale.ENGLISH, "%d\tQ0\t%d\t%d\t%f\t-\n", userID,
+                        (userID * 31 + rank * 17) % 50, rank, 10.0 / (rank + 1)));
+            }
+        }
+        final Path runPath = writeRun(contents.toString());
+        final Path cacheFolder = Files.createTempDirectory("metarecsys-cache");
+
+        final RunFile parsed = new RunFile(runPath, 8, new StandardNormalisation(), cacheFolder,
+                Storage.HEAP);
+        final RunSidecar sidecar = new RunSidecar(cacheFolder, runPath, 8,
+                new StandardNormalisation());
+        Assert.assertTrue(sidecar.isValid());
+        Assert.assertFalse(new RunSidecar(cacheFolder, runPath, 8, new NoneNormalisation())
+                .isValid());
+
+        final RunFile cached = new RunFile(runPath, 8, new StandardNormalisation(), cacheFolder,
+                Storage.HEAP);
+        final RunFile mapped = new RunFile(runPath, 8, new StandardNormalisation(), cacheFolder,
+                Storage.OFF_HEAP);
+        final RunFile direct = new RunFile(runPath, 8, new StandardNormalisation(), null,
+                Storage.OFF_HEAP);
+        Assert.assertTrue(mapped.getRankings() instanceof OffHeapRankings);
+        Assert.assertTrue(direct.getRankings() instanceof OffHeapRankings);
+
+        for (final RunFile run : new RunFile[] { cached, mapped, direct }) {
+            Assert.assertEquals(parsed.getUsers(), run.getUsers());
+            Assert.assertEquals(parsed.getItems(), run.getItems());
+            for (final long userID : parsed.getUsers()) {
+                Assert.assertEquals(parsed.getRanking(userID), run.getRanking(userID));
+                Assert.assertEquals(parsed.getScore(userID, 17, -1.0),
+                        run.getScore(userID, 17, -1.0), 0.0);
+            }
+        }
+
+        Files.delete(sidecar.getPath());
+        Files.delete(cacheFolder);
+
+    }
+
+    /**
+     * Test that the runs of a fold are encoded with a shared dictionary whose
+     * keys follow the order of ids.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testDictionary() throws IOException {
+
+        final Path runPath1 = writeRun("5\tQ0\t50\t0\t1.0\n5\tQ0\t20\t1\t0.5\n");
+        final Path runPath2 = writeRun("2\tQ0\t30\t0\t1.0\n5\tQ0\t40\t0\t1.0\n");
+
+        for (final Storage storage : Storage.values()) {
+
+            final RunFile run1 = new RunFile(runPath1, 10, new NoneNormalisation(), null,
+                    storage);
+            final RunFile run2 = new RunFile(runPath2, 10, new NoneNormalisation(), null,
+                    storage);
+
+            final FoldDictionary dictionary = FoldDictionary.encode(Arrays.asList(run1, run2));
+            Assert.assertSame(dictionary, FoldDictionary.encode(Arrays.asList(run2, run1)));
+            Assert.assertSame(dictionary, run1.getDictionary());
+
+            Assert.assertEquals(2, dictionary.numUsers());
+            Assert.assertEquals(4, dictionary.numItems());
+            Assert.assertEquals(1, dictionary.getUserKey(5));
+            Assert.assertEquals(-1, dictionary.getUserKey(3));
+            Assert.assertEquals(30, dictionary.getItemID(1));
+
+            Assert.assertEquals(-1, run1.getUserIndex(0));
+            Assert.assertTrue(run2.getUserSet().get(0));
+            final int u = run1.getUserIndex(dictionary.getUserKey(5));
+            Assert.assertEquals(5, run1.getRankings().getUserID(u));
+            Assert.assertEquals(dictionary.getItemKey(50),
+                    run1.getItemKey(run1.getRankings().getStart(u)));
+            Assert.assertEquals(1, run1.getRankings().getRank(run1.findKey(u, 0)));
+            Assert.assertEquals(-1, run1.findKey(u, 1));
+
+        }
+
+    }
+
+    /**
+     * Test that the normalised views of a raw run have the scores of the run
+     * read with each normalisation and share its encoding.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testNormalise() throws IOException {
+
+        final Random random = new Random(3);
+        final StringBuilder contents = new StringBuilder();
+        for (long userID = 1; userID <= 20; userID++) {
+            for (int rank = 0; rank < 6; rank++) {
+                contents.append(String.format(Locale.ENGLISH, "%d\tQ0\t%d\t%d\t%f\t-\n",
+                        userID, random.nextInt(100), rank, random.nextDouble() * 10));
+            }
+        }
+        final Path runPath = writeRun(contents.toString());
+
+        final RunFile raw = new RunFile(runPath, 5, new NoneNormalisation());
+        FoldDictionary.encode(Arrays.asList(raw));
+
+        for (final String name : new String[] { "none", "standard", "sum", "zmuv", "zmuv2" }) {
+
+            final NormalisationAlgorithm norm = NormalisationAlgorithm.build(name);
+            for (final Storage storage : Storage.values()) {
+
+                final RunFile expected = new RunFile(runPath, 5, norm, null, storage);
+                final RunFile view = new RunFile(runPath, 5, new NoneNormalisation(), null,
+                        storage).normalise(norm);
+                Assert.assertEquals(norm.toString(), view.getNorm().toString());
+                for (int pos = 0; pos < expected.getRankings().numEntries(); pos++) {
+                    Assert.assertEquals(expected.getRankings().getScore(pos),
+                            view.getRankings().getScore(pos), 0.0);
+                    Assert.assertEquals(expected.getRankings().getRank(pos),
+                            view.getRankings().getRank(pos));
+                }
+
+            }
+
+            final RunFile view = raw.normalise(norm);
+            Assert.assertSame(raw.getDictionary(), view.getDictionary());
+            for (int pos = 0; pos < raw.getRankings().numEntries(); pos++) {
+                Assert.assertEquals(raw.getItemKey(pos), view.getItemKey(pos));
+            }
+            Assert.assertSame(raw.getDictionary(), FoldDictionary.encode(Arrays.asList(view)));
+
+        }
+
+    }
+
+    /**
+     * Test that the run cache shares the raw runs between normalisations,
+     * evicts the runs released over the budget and waits for the pinned ones.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public void testRunCache() throws Exception {
+
+        final List<Path> fold1 = Arrays.asList(
+                writeRun("1\tQ0\t10\t0\t3.0\n1\tQ0\t20\t1\t1.0\n2\tQ0\t10\t0\t2.0\n"),
+                writeRun("1\tQ0\t30\t0\t5.0\n3\tQ0\t20\t0\t4.0\n"));
+        final List<Path> fold2 = Arrays.asList(writeRun("4\tQ0\t40\t0\t1.0\n"));
+
+        // A large budget keeps everything
+        final RunCache large = new RunCache(10, null, Storage.HEAP, 1 << 20);
+        final List<RunFile> raws = large.acquire(fold1, new NoneNormalisation());
+        final List<RunFile> views = large.acquire(fold1, new StandardNormalisation());
+        Assert.assertSame(raws.get(0).getDictionary(), views.get(1).getDictionary());
+        Assert.assertEquals(1.0, views.get(0).getScore(1, 10, 0), 1e-9);
+        large.release(raws);
+        large.release(views);
+        Assert.assertSame(raws.get(1), large.acquire(fold1, new NoneNormalisation()).get(1));
+        Assert.assertSame(views.get(0),
+                large.acquire(fold1, new StandardNormalisation()).get(0));
+        Assert.assertEquals(4, large.getMisses());
+        Assert.assertEquals(4, large.getHits());
+        Assert.assertEquals(0, large.getEvictions());
+
+        // A budget of zero evicts the runs once they are released
+        final RunCache small = new RunCache(10, null, Storage.HEAP, 0);
+        final List<RunFile> first = small.acquire(fold1, new NoneNormalisation());
+        final List<RunFile> normalised = small.acquire(fold1, new StandardNormalisation());
+        Assert.assertEquals(0, small.getEvictions());
+        small.release(normalised);
+        Assert.assertEquals(2, small.getEvictions());
+
+        // Acquiring another fold waits until the pinned runs are released
+        final CompletableFuture<List<RunFile>> second = CompletableFuture
+                .supplyAsync(() -> small.acquire(fold2, new NoneNormalisation()));
+        Thread.sleep(200);
+        Assert.assertFalse(second.isDone());
+        small.release(first);
+        Assert.assertEquals(1, second.get(10, TimeUnit.SECONDS).size());
+        Assert.assertEquals(4, small.getEvictions());
+
+        // A run read again is encoded with the dictionary of its fold
+        small.release(second.get());
+        final List<RunFile> again = small.acquire(fold1, new NoneNormalisation());
+        Assert.assertNotSame(first.get(0), again.get(0));
+        Assert.assertSame(first.get(0).getDictionary(), again.get(0).getDictionary());
+        Assert.assertEquals(first.get(1).getUserKey(0), again.get(1).getUserKey(0));
+
+    }
+
+}
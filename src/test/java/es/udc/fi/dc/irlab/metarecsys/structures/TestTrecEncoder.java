@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016 Information Retrieval Lab - University of A Coruña
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.udc.fi.dc.irlab.metarecsys.structures;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The Class TestTrecEncoder. It checks the encoding and writing of TREC run
+ * files.
+ *
+ * @author daniel.valcarce@udc.es
+ */
+public class TestTrecEncoder {
+
+    /**
+     * Format a line of a run with {@link String#format(Locale, String, Object...)}.
+     *
+     * @param userID
+     *            the user id
+     * @param itemID
+     *            the item id
+     * @param rank
+     *            the rank
+     * @param score
+     *            the score
+     * @param name
+     *            the name of the run
+     * @return the line
+     */
+    private static String format(final long userID, final long itemID, final int rank,
+            final double score, final String name) {
+        return String.format(Locale.ENGLISH, "%d\tQ0\t%d\t%d\t%f\t%s\n", userID, itemID, rank,
+                score, name);
+    }
+
+    /**
+     * Test that the encoder gives the same lines as String.format.
+     */
+    @Test
+    public void testEncoder() {
+
+        final double[] scores = { 0.0, -0.0, 1.0, -1.0, 0.5, 1e-7, -1e-7, 5e-7, 4.9999995e-7,
+                0.0000005, 0.1234565, 2.5e-6, 999999.9999995, 1e6, -1e6, 1e300, Double.MIN_VALUE,
+                Double.MAX_VALUE, Double.NaN, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY };
+        final long[] ids = { 0, 1, -1, 9, 10, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE };
+
+        final TrecEncoder encoder = new TrecEncoder(0);
+        final StringBuilder expected = new StringBuilder();
+        for (final double score : scores) {
+            for (final long id : ids) {
+                encoder.appendLine(id, -id, 3, score, "combSum");
+                expected.append(format(id, -id, 3, score, "combSum"));
+            }
+        }
+
+        final Random random = new Random(19);
+        for (int i = 0; i < 200000; i++) {
+            final double score;
+            switch (i % 4) {
+            case 0:
+                score = random.nextDouble();
+                break;
+            case 1:
+                score = (random.nextDouble() - 0.5) * 2e6;
+                break;
+            case 2:
+                // Exact ties at the seventh decimal
+                score = (random.nextInt(2000000) - 1000000 + 0.5) / 1e6;
+                break;
+            default:
+                score = random.nextGaussian() * Math.pow(10, random.nextInt(20) - 10);
+                break;
+            }
+            final long userID = random.nextInt(100000);
+            final long itemID = random.nextLong();
+            encoder.appendLine(userID, itemID, i, score, "-");
+            expected.append(format(userID, itemID, i, score, "-"));
+        }
+
+        Assert.assertEquals(expected.toString(), encoder.toString());
+
+        encoder.clear();
+        Assert.assertEquals(0, encoder.size());
+
+    }
+
+    /**
+     * Test that the writer thread writes the files in order.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testAsyncFileWriter() throws IOException {
+
+        final Path file1 = Files.createTempFile("metarecsys-writer", ".txt");
+        final Path file2 = Files.createTempFile("metarecsys-writer", ".txt");
+        file1.toFile().deleteOnExit();
+        file2.toFile().deleteOnExit();
+
+        final StringBuilder expected1 = new StringBuilder();
+        final StringBuilder expected2 = new StringBuilder();
+
+        try (AsyncFileWriter writer = new AsyncFileWriter(1)) {
+            try (OutputStream out1 = writer.open(file1);
+                    OutputStream out2 = writer.open(file2)) {
+                final TrecEncoder encoder = new TrecEncoder(64);
+                for (int u = 0; u < 20000; u++) {
+                    encoder.clear();
+                    encoder.appendLine(u, 2 * u, 0, u / 7.0, "combSum");
+                    expected1.append(encoder);
+                    encoder.writeTo(out1);
+                    if (u % 3 == 0) {
+                        out2.write('a' + u % 26);
+                        expected2.append((char) ('a' + u % 26));
+                    }
+                }
+            }
+        }
+
+        Assert.assertEquals(expected1.toString(),
+                new String(Files.readAllBytes(file1), StandardCharsets.US_ASCII));
+        Assert.assertEquals(expected2.toString(),
+                new String(Files.readAllBytes(file2), StandardCharsets.US_ASCII));
+
+    }
+
+    /**
+     * Test that the errors of the writer thread are rethrown when the writer is
+     * closed.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testAsyncFileWriterFailure() throws IOException {
+
+        final Path file = Files.createTempFile("metarecsys-writer", ".txt");
+        file.toFile().deleteOnExit();
+
+        final AsyncFileWriter writer = new AsyncFileWriter(1);
+        final AsyncFileWriter.FileStream out = writer.open(file);
+        out.write('a');
+        out.close(() -> {
+            throw new IOException("failure");
+        });
+
+        try {
+            writer.close();
+            Assert.fail("The error of the writer thread was lost");
+        } catch (final IOException e) {
+            Assert.assertEquals("failure", e.getMessage());
+        }
+        Assert.assertEquals(1, Files.size(file));
+
+    }
+
+}